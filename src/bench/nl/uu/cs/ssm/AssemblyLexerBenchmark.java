@@ -0,0 +1,142 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Compares AssemblyLexer with the java.io.StreamTokenizer configuration it replaces.
+ * Both must give the same tokens and line numbers, after which both are timed,
+ * as well as the Assembler with and without splitting the source into chunks.
+ * Usage: AssemblyLexerBenchmark [file.ssm ...], without files a generated program is used.
+ */
+public class AssemblyLexerBenchmark
+{
+    private static final int    ROUNDS  = 10 ;
+
+    private static StreamTokenizer newStreamTokenizer( char[] src )
+    {
+        StreamTokenizer tokens = new StreamTokenizer( new CharArrayReader( src ) ) ;
+        tokens.resetSyntax() ;
+        tokens.wordChars( '0', '9' ) ;
+        tokens.wordChars( 'a', 'z' ) ;
+        tokens.wordChars( 'A', 'Z' ) ;
+        tokens.wordChars( 0xA0, 0xF0 ) ;
+        tokens.wordChars( '_', '_' ) ;
+        tokens.wordChars( '-', '-' ) ;
+        tokens.whitespaceChars( 0x00, 0x20 ) ;
+        tokens.commentChar( ';' ) ;
+        tokens.quoteChar( '"' ) ;
+        tokens.eolIsSignificant( true ) ;
+        tokens.slashSlashComments( true ) ;
+        return tokens ;
+    }
+
+    private static String generate( int nLines )
+    {
+        StringBuffer b = new StringBuffer() ;
+        b.append( "main: bsr f\n      halt\n" ) ;
+        for ( int i = 0 ; i < nLines / 8 ; i++ )
+        {
+            b.append( "f" + i + ":  link 2 ; frame\n" ) ;
+            b.append( "      ldl -2\n" ) ;
+            b.append( "      annote SP 0 0 green \"local\"\n" ) ;
+            b.append( "      ldc " + i + "\n" ) ;
+            b.append( "      add // sum\n" ) ;
+            b.append( "      brf f" + ( i + 1 ) + "\n" ) ;
+            b.append( "      unlink\n" ) ;
+            b.append( "      ret\n" ) ;
+        }
+        return b.toString() ;
+    }
+
+    /**
+     * @return The position of the first difference, -1 if none
+     */
+    private static int compare( char[] src ) throws IOException
+    {
+        StreamTokenizer st = newStreamTokenizer( src ) ;
+        AssemblyLexer lx = new AssemblyLexer( src, 0, src.length ) ;
+        for ( int n = 0 ; ; n++ )
+        {
+            int t1 = st.nextToken() ;
+            int t2 = lx.nextToken() ;
+            String s1 = ( t1 == StreamTokenizer.TT_WORD || t1 == '"' ) ? st.sval : null ;
+            if ( t1 != t2 || st.lineno() != lx.lineno() || ( s1 == null ? lx.sval != null : ! s1.equals( lx.sval ) ) )
+                return n ;
+            if ( t1 == StreamTokenizer.TT_EOF )
+                return -1 ;
+        }
+    }
+
+    private static int countStreamTokenizer( char[] src ) throws IOException
+    {
+        StreamTokenizer st = newStreamTokenizer( src ) ;
+        int n = 0 ;
+        while ( st.nextToken() != StreamTokenizer.TT_EOF )
+            n++ ;
+        return n ;
+    }
+
+    private static int countLexer( char[] src )
+    {
+        AssemblyLexer lx = new AssemblyLexer( src, 0, src.length ) ;
+        int n = 0 ;
+        while ( lx.nextToken() != AssemblyLexer.TT_EOF )
+            n++ ;
+        return n ;
+    }
+
+    private static void run( String name, char[] src ) throws IOException
+    {
+        int diff = compare( src ) ;
+        if ( diff >= 0 )
+        {
+            System.out.println( name + ": tokens differ at token " + diff ) ;
+            return ;
+        }
+        long best1 = Long.MAX_VALUE, best2 = Long.MAX_VALUE, best3 = Long.MAX_VALUE, best4 = Long.MAX_VALUE ;
+        int n = 0 ;
+        for ( int r = 0 ; r < ROUNDS ; r++ )
+        {
+            long t0 = System.nanoTime() ;
+            n = countStreamTokenizer( src ) ;
+            long t1 = System.nanoTime() ;
+            countLexer( src ) ;
+            long t2 = System.nanoTime() ;
+            new Assembler().assemble( CharBuffer.wrap( src ), 1 ) ;
+            long t3 = System.nanoTime() ;
+            new Assembler().assemble( CharBuffer.wrap( src ) ) ;
+            long t4 = System.nanoTime() ;
+            best1 = Math.min( best1, t1 - t0 ) ;
+            best2 = Math.min( best2, t2 - t1 ) ;
+            best3 = Math.min( best3, t3 - t2 ) ;
+            best4 = Math.min( best4, t4 - t3 ) ;
+        }
+        System.out.println( name + ": " + src.length + " chars, " + n + " tokens" ) ;
+        System.out.println( "  StreamTokenizer : " + best1 / 1000000.0 + " ms" ) ;
+        System.out.println( "  AssemblyLexer   : " + best2 / 1000000.0 + " ms" ) ;
+        System.out.println( "  Assembler       : " + best3 / 1000000.0 + " ms" ) ;
+        System.out.println( "  Assembler, " + Runtime.getRuntime().availableProcessors() + " cpus : " + best4 / 1000000.0 + " ms" ) ;
+    }
+
+    public static void main( String[] args ) throws IOException
+    {
+        if ( args.length == 0 )
+            run( "generated", generate( 400000 ).toCharArray() ) ;
+        for ( int i = 0 ; i < args.length ; i++ )
+            run( args[ i ], new String( Files.readAllBytes( Paths.get( args[ i ] ) ) ).toCharArray() ) ;
+    }
+
+}
@@ -0,0 +1,685 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Two pass assembler, building the code image in a buffer of its own.
+ * The first pass appends each instruction to the code buffer, defines labels at the address reached,
+ * and keeps a backpatch list of operands using labels.
+ * The second pass patches those operands, after which the image can be copied into memory at once.
+ * The time taken is linear in the size of the program.
+ * A large source is split at line boundaries into chunks which are assembled in parallel,
+ * each at addresses starting at 0, after which the chunks are merged in order.
+ * A source can also be assembled into a relocatable module, to be linked with others,
+ * using the lines 'export label ...' and 'import label ...' to tell which labels are shared.
+ * An assembler does not use any user interface, one can be used for several programs but not by several threads at once.
+ */
+public class Assembler
+{
+    public static final int UNDEFINED = Integer.MAX_VALUE ;
+
+    /**
+     * The minimal size in chars of a chunk assembled in parallel.
+     */
+    public static final int CHUNK_SIZE = 1 << 18 ;
+
+    private static final int NO_LABEL_USE   = -2 ;
+    private static final int LABELS_DROPPED = -1 ;
+
+    /**
+     * An assembled instruction, with what is needed for showing it.
+     */
+    private class Instr
+    {
+        int                         memLoc ;
+        int                         lineNr ;
+        String                      labelName ;
+        String                      usedLabelName ;
+        Vector<MetaInstruction>     metaInstructions ;
+
+        Instr( int loc, int l )
+        {
+            memLoc = loc ;
+            lineNr = l ;
+        }
+    }
+
+    /**
+     * An operand to be patched with the value of a label.
+     */
+    private class Fixup
+    {
+        String      label ;
+        int         instrLoc ;
+        int         at ;
+        int         pcOffset ;
+        boolean     isRelative ;
+
+        Fixup( String l, int loc, int a, int pcoffs, boolean isRel )
+        {
+            label = l ;
+            instrLoc = loc ;
+            at = a ;
+            pcOffset = pcoffs ;
+            isRelative = isRel ;
+        }
+    }
+
+    private int                         code[]          ;
+    private int                         codeSize        ;
+    private Vector<Instr>               instrs          ;
+    private Hashtable<String,Integer>   symbols         ;
+    private Vector<Fixup>               fixups          ;
+    private Vector<String>              messages        ;
+    private Vector<Integer>             messageLines    ;
+    private Vector<String>              exports         ;
+    private Vector<String>              imports         ;
+
+    // only used when assembling a module
+    private final boolean               isModule        ;
+    private Vector<Integer>             relocs          ;
+    private Vector<Fixup>               importRefs      ;
+
+    // only used when assembling a chunk which is not at the start of the source
+    private final boolean               isChunk         ;
+    private int                         firstLabelUse   ;
+    private Vector<MetaInstruction>     leadingMetas    ;
+    private String                      trailingLabels[];
+    private int                         nLines          ;
+    private boolean                     failed          ;
+
+    // only used when assembling a program in parts
+    private AssemblyParser              partParser      ;
+
+    public Assembler()
+    {
+        this( false, false ) ;
+    }
+
+    private Assembler( boolean isModule, boolean isChunk )
+    {
+        this.isModule = isModule ;
+        this.isChunk = isChunk ;
+    }
+
+    private void reset()
+    {
+        code = new int[ 1024 ] ;
+        codeSize = 0 ;
+        instrs = new Vector<Instr>() ;
+        symbols = new Hashtable<String,Integer>() ;
+        fixups = new Vector<Fixup>() ;
+        messages = new Vector<String>() ;
+        messageLines = new Vector<Integer>() ;
+        exports = new Vector<String>() ;
+        imports = new Vector<String>() ;
+        relocs = new Vector<Integer>() ;
+        importRefs = new Vector<Fixup>() ;
+        firstLabelUse = NO_LABEL_USE ;
+        leadingMetas = null ;
+    }
+
+    private void addMessage( int lineNr, String msg )
+    {
+        messages.addElement( msg ) ;
+        messageLines.addElement( lineNr ) ;
+    }
+
+    private int emit( int v )
+    {
+        if ( codeSize == code.length )
+        {
+            int newCode[] = new int[ 2 * code.length ] ;
+            System.arraycopy( code, 0, newCode, 0, codeSize ) ;
+            code = newCode ;
+        }
+        code[ codeSize ] = v ;
+        return codeSize++ ;
+    }
+
+    /**
+     * Assemble a program, with a halt added at the end.
+     * Problems are reported as messages of the image.
+     */
+    public ProgramImage assemble( Reader r )
+    {
+        return assemble( AssemblyParser.readAll( r ) ) ;
+    }
+
+    public ProgramImage assemble( CharBuffer s )
+    {
+        int n = Math.min( s.remaining() / CHUNK_SIZE, Runtime.getRuntime().availableProcessors() ) ;
+        return assemble( s, Math.max( n, 1 ) ) ;
+    }
+
+    /**
+     * Assemble a file, which is mapped into memory instead of read.
+     */
+    public ProgramImage assemble( File f ) throws IOException
+    {
+        try ( FileChannel ch = FileChannel.open( f.toPath(), StandardOpenOption.READ ) )
+        {
+            MappedByteBuffer bytes = ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() ) ;
+            return assemble( Charset.defaultCharset().decode( bytes ) ) ;
+        }
+    }
+
+    /**
+     * Assemble a relocatable module, without a halt added at the end.
+     * Labels which are used but not defined are only reported when not imported.
+     */
+    public ObjectModule assembleModule( CharBuffer s )
+    {
+        return (ObjectModule)new Assembler( true, false ).assemble( s ) ;
+    }
+
+    public ObjectModule assembleModule( Reader r )
+    {
+        return assembleModule( AssemblyParser.readAll( r ) ) ;
+    }
+
+    public ObjectModule assembleModule( File f ) throws IOException
+    {
+        try ( FileChannel ch = FileChannel.open( f.toPath(), StandardOpenOption.READ ) )
+        {
+            MappedByteBuffer bytes = ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() ) ;
+            return assembleModule( Charset.defaultCharset().decode( bytes ) ) ;
+        }
+    }
+
+    /**
+     * Assemble a program split into at most nChunks chunks, which are assembled in parallel.
+     * The result is the same as assembling it as a whole.
+     */
+    public ProgramImage assemble( CharBuffer s, int nChunks )
+    {
+        int bounds[] = splitAtLines( s, nChunks ) ;
+        if ( bounds.length > 2 )
+        {
+            final Assembler chunks[] = new Assembler[ bounds.length - 1 ] ;
+            final CharBuffer sources[] = new CharBuffer[ chunks.length ] ;
+            for ( int i = 0 ; i < chunks.length ; i++ )
+            {
+                chunks[ i ] = new Assembler( isModule, i > 0 ) ;
+                sources[ i ] = s.duplicate() ;
+                sources[ i ].limit( bounds[ i + 1 ] ).position( bounds[ i ] ) ;
+            }
+            ForkJoinPool.commonPool().invoke( new RecursiveAction()
+                {
+                    protected void compute()
+                    {
+                        RecursiveAction tasks[] = new RecursiveAction[ chunks.length ] ;
+                        for ( int i = 0 ; i < chunks.length ; i++ )
+                            tasks[ i ] = new ChunkTask( chunks[ i ], sources[ i ] ) ;
+                        invokeAll( tasks ) ;
+                    }
+                } ) ;
+            if ( merge( chunks ) )
+                return finish() ;
+        }
+        reset() ;
+        assembleLines( new AssemblyParser( s ) ) ;
+        return finish() ;
+    }
+
+    private static class ChunkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L ;
+
+        private Assembler   chunk ;
+        private CharBuffer  source ;
+
+        ChunkTask( Assembler a, CharBuffer s )
+        {
+            chunk = a ;
+            source = s ;
+        }
+
+        protected void compute()
+        {
+            chunk.reset() ;
+            chunk.failed = ! chunk.assembleLines( new AssemblyParser( source ) ) ;
+        }
+    }
+
+    /**
+     * Split the remaining chars of s into at most n chunks, each ending just after an end of line.
+     * No token spans an end of line, so each chunk can be lexed on its own.
+     * @return The chunk boundaries, including start and end
+     */
+    private static int[] splitAtLines( CharBuffer s, int n )
+    {
+        int bounds[] = new int[ n + 1 ] ;
+        int start = s.position(), end = s.limit() ;
+        int nBounds = 0 ;
+        bounds[ nBounds++ ] = start ;
+        for ( int i = 1 ; i < n ; i++ )
+        {
+            int p = Math.max( start + (int)( (long)( end - start ) * i / n ), bounds[ nBounds - 1 ] ) ;
+            while ( p < end && s.get( p ) != '\n' && s.get( p ) != '\r' )
+                p++ ;
+            if ( p < end && s.get( p ) == '\r' && p + 1 < end && s.get( p + 1 ) == '\n' )
+                p++ ;
+            if ( ++p >= end )
+                break ;
+            bounds[ nBounds++ ] = p ;
+        }
+        bounds[ nBounds++ ] = end ;
+        int result[] = new int[ nBounds ] ;
+        System.arraycopy( bounds, 0, result, 0, nBounds ) ;
+        return result ;
+    }
+
+    /**
+     * Start assembling a program given in parts, so it can be run while the rest still is being read.
+     */
+    public void startParts()
+    {
+        reset() ;
+        partParser = null ;
+    }
+
+    /**
+     * Assemble the next part of a program, which must end at the end of a line unless it is the last.
+     * Operands using labels defined by now are patched right away.
+     */
+    public void assemblePart( CharBuffer s )
+    {
+        if ( partParser == null )
+            partParser = new AssemblyParser( s ) ;
+        else
+            partParser.continueWith( s ) ;
+        assembleLines( partParser ) ;
+        Vector<Fixup> pending = new Vector<Fixup>() ;
+        for ( Enumeration<Fixup> e = fixups.elements() ; e.hasMoreElements() ; )
+        {
+            Fixup f = e.nextElement() ;
+            Integer loc = symbols.get( f.label ) ;
+            if ( loc == null )
+                pending.addElement( f ) ;
+            else
+                code[ f.at ] = f.isRelative ? loc - f.pcOffset : loc ;
+        }
+        fixups = pending ;
+    }
+
+    /**
+     * @return The size of the code assembled so far which will not change anymore,
+     *         that is, up to the first instruction using a label not yet defined
+     */
+    public int getFinishedCodeSize()
+    {
+        return fixups.size() > 0 ? fixups.elementAt( 0 ).instrLoc : codeSize ;
+    }
+
+    /**
+     * @return The code assembled so far, valid up to getFinishedCodeSize()
+     */
+    protected int[] getCode()
+    {
+        return code ;
+    }
+
+    /**
+     * Finish a program given in parts, with a halt added at the end.
+     */
+    public ProgramImage finishParts()
+    {
+        partParser = null ;
+        return finish() ;
+    }
+
+    /**
+     * Enter all lines of the parser.
+     * @return False if an exception stopped assembling
+     */
+    private boolean assembleLines( AssemblyParser ap )
+    {
+        String msg ;
+        try
+        {
+            while ( ! ap.isAtEOF() )
+            {
+                ap.parse1Line() ;
+                if ( ap.message != null )
+                    addMessage( ap.lineNr, ap.message ) ;
+                else if ( ap.getNrWords() > 0 )
+                {
+                    msg = enterParsedLine( ap ) ;
+                    if ( msg != null )
+                        addMessage( ap.lineNr, msg ) ;
+                }
+            }
+            return true ;
+        }
+        catch ( Exception ex )
+        {
+            if ( ! isChunk )
+                ex.printStackTrace() ;
+            return false ;
+        }
+        finally
+        {
+            trailingLabels = new String[ ap.getNrLabels() ] ;
+            for ( int i = 0 ; i < trailingLabels.length ; i++ )
+                trailingLabels[ i ] = ap.getLabel( i ) ;
+            nLines = ap.lineno() - 1 ;
+        }
+    }
+
+    /**
+     * Merge chunks assembled separately, as if their lines had been entered one after another.
+     * Labels left over at the end of a chunk go to the first instruction of a next chunk,
+     * unless an error there drops them first.
+     * @return False if merging cannot give the same result, so the whole must be assembled instead
+     */
+    private boolean merge( Assembler chunks[] )
+    {
+        reset() ;
+        Vector<String> pendingLabels = new Vector<String>() ;
+        int lineBase = 0 ;
+        for ( int c = 0 ; c < chunks.length ; c++ )
+        {
+            Assembler chunk = chunks[ c ] ;
+            if ( chunk.failed )
+                return false ;
+            if ( chunk.leadingMetas != null )
+            {
+                if ( instrs.size() == 0 )
+                    return false ;
+                Instr prev = instrs.lastElement() ;
+                if ( prev.metaInstructions == null )
+                    prev.metaInstructions = new Vector<MetaInstruction>() ;
+                prev.metaInstructions.addAll( chunk.leadingMetas ) ;
+            }
+
+            int base = codeSize ;
+            if ( base + chunk.codeSize > code.length )
+            {
+                int newCode[] = new int[ Math.max( 2 * code.length, base + chunk.codeSize ) ] ;
+                System.arraycopy( code, 0, newCode, 0, base ) ;
+                code = newCode ;
+            }
+            System.arraycopy( chunk.code, 0, code, base, chunk.codeSize ) ;
+            codeSize += chunk.codeSize ;
+
+            if ( chunk.firstLabelUse >= 0 && pendingLabels.size() > 0 )
+            {
+                Instr in = chunk.instrs.elementAt( chunk.firstLabelUse ) ;
+                for ( Enumeration<String> e = pendingLabels.elements() ; e.hasMoreElements() ; )
+                {
+                    String l = e.nextElement() ;
+                    if ( Registers.findRegOfName( l ) < 0 && ! symbols.containsKey( l ) )
+                        symbols.put( l, base + in.memLoc ) ;
+                }
+                if ( in.labelName == null )
+                    in.labelName = pendingLabels.lastElement() ;
+            }
+            if ( chunk.firstLabelUse != NO_LABEL_USE )
+                pendingLabels.removeAllElements() ;
+            for ( int i = 0 ; i < chunk.trailingLabels.length ; i++ )
+                pendingLabels.addElement( chunk.trailingLabels[ i ] ) ;
+
+            for ( Enumeration<String> e = chunk.symbols.keys() ; e.hasMoreElements() ; )
+            {
+                String l = e.nextElement() ;
+                if ( ! symbols.containsKey( l ) )
+                    symbols.put( l, base + chunk.symbols.get( l ) ) ;
+            }
+            for ( Enumeration<Instr> e = chunk.instrs.elements() ; e.hasMoreElements() ; )
+            {
+                Instr in = e.nextElement() ;
+                in.memLoc += base ;
+                in.lineNr += lineBase ;
+                instrs.addElement( in ) ;
+            }
+            for ( Enumeration<Fixup> e = chunk.fixups.elements() ; e.hasMoreElements() ; )
+            {
+                Fixup f = e.nextElement() ;
+                f.instrLoc += base ;
+                f.at += base ;
+                f.pcOffset += base ;
+                fixups.addElement( f ) ;
+            }
+            for ( int i = 0 ; i < chunk.messages.size() ; i++ )
+                addMessage( chunk.messageLines.elementAt( i ) + lineBase, chunk.messages.elementAt( i ) ) ;
+            exports.addAll( chunk.exports ) ;
+            imports.addAll( chunk.imports ) ;
+            lineBase += chunk.nLines ;
+        }
+        return true ;
+    }
+
+    private ProgramImage finish()
+    {
+        String msg = resolveFixups() ;
+        if ( msg != null )
+            addMessage( 0, msg ) ;
+        if ( isModule )
+        {
+            Vector<String> undefined = new Vector<String>() ;
+            for ( Enumeration<String> e = exports.elements() ; e.hasMoreElements() ; )
+            {
+                String l = e.nextElement() ;
+                if ( ! symbols.containsKey( l ) )
+                    undefined.addElement( l ) ;
+            }
+            if ( undefined.size() > 0 )
+                addMessage( 0, "undefined exported labels " + undefined ) ;
+        }
+        else
+            instrs.addElement( new Instr( emit( Instruction.I_HALT ), 0 ) ) ;
+        return makeImage() ;
+    }
+
+    private ProgramImage makeImage()
+    {
+        int n = instrs.size() ;
+        int instrCode[] = new int[ codeSize ] ;
+        int instrLocs[] = new int[ n ] ;
+        int lineNrs[] = new int[ n ] ;
+        String labelNames[] = new String[ n ] ;
+        String usedLabels[] = new String[ n ] ;
+        MetaInstruction metas[][] = new MetaInstruction[ n ][] ;
+        System.arraycopy( code, 0, instrCode, 0, codeSize ) ;
+        for ( int i = 0 ; i < n ; i++ )
+        {
+            Instr in = instrs.elementAt( i ) ;
+            instrLocs[ i ] = in.memLoc ;
+            lineNrs[ i ] = in.lineNr ;
+            labelNames[ i ] = in.labelName ;
+            usedLabels[ i ] = in.usedLabelName ;
+            if ( in.metaInstructions != null )
+                metas[ i ] = in.metaInstructions.toArray( new MetaInstruction[ in.metaInstructions.size() ] ) ;
+        }
+        String msgs[] = new String[ messages.size() ] ;
+        for ( int i = 0 ; i < msgs.length ; i++ )
+        {
+            int lineNr = messageLines.elementAt( i ) ;
+            msgs[ i ] = lineNr > 0 ? ( "Line " + lineNr + ": " + messages.elementAt( i ) ) : messages.elementAt( i ) ;
+        }
+        if ( ! isModule )
+            return new ProgramImage( instrCode, instrLocs, lineNrs, labelNames, usedLabels, metas, symbols, msgs ) ;
+
+        int relocAts[] = new int[ relocs.size() ] ;
+        for ( int i = 0 ; i < relocAts.length ; i++ )
+            relocAts[ i ] = relocs.elementAt( i ) ;
+        int nRefs = importRefs.size() ;
+        String importLabels[] = new String[ nRefs ] ;
+        int importAts[] = new int[ nRefs ] ;
+        int importPCOffsets[] = new int[ nRefs ] ;
+        boolean importIsRelative[] = new boolean[ nRefs ] ;
+        for ( int i = 0 ; i < nRefs ; i++ )
+        {
+            Fixup f = importRefs.elementAt( i ) ;
+            importLabels[ i ] = f.label ;
+            importAts[ i ] = f.at ;
+            importPCOffsets[ i ] = f.pcOffset ;
+            importIsRelative[ i ] = f.isRelative ;
+        }
+        Vector<String> exported = new Vector<String>() ;
+        for ( Enumeration<String> e = exports.elements() ; e.hasMoreElements() ; )
+        {
+            String l = e.nextElement() ;
+            if ( symbols.containsKey( l ) && ! exported.contains( l ) )
+                exported.addElement( l ) ;
+        }
+        return new ObjectModule
+            ( instrCode, instrLocs, lineNrs, labelNames, usedLabels, metas, symbols, msgs
+            , exported.toArray( new String[ exported.size() ] ), relocAts
+            , importLabels, importAts, importPCOffsets, importIsRelative
+            ) ;
+    }
+
+    /**
+     * Enter the instruction of a line.
+     * The labels defined are used up, except by a meta instruction which leaves them for the next instruction.
+     */
+    private String enterParsedLine( AssemblyParser ap )
+    {
+        String repr = ap.getWord( 0 ).toLowerCase() ;
+        int nArgs = ap.getNrWords() - 1 ;
+        if ( isModule && ( repr.equals( "export" ) || repr.equals( "import" ) ) )
+        {
+            // like a meta instruction the labels are left for the next instruction
+            if ( nArgs < 1 )
+            {
+                if ( firstLabelUse == NO_LABEL_USE )
+                    firstLabelUse = LABELS_DROPPED ;
+                ap.clearLabels() ;
+                return "not enough arguments for " + repr ;
+            }
+            for ( int i = 1 ; i <= nArgs ; i++ )
+                ( repr.equals( "export" ) ? exports : imports ).addElement( ap.getWord( i ) ) ;
+            return null ;
+        }
+        Instruction instr = Instruction.findByRepr( repr ) ;
+
+        if ( instr == null || nArgs < instr.getNrInlineOpnds() || ( instr.isMeta() && instrs.size() == 0 && ! isChunk ) )
+        {
+            if ( firstLabelUse == NO_LABEL_USE )
+                firstLabelUse = LABELS_DROPPED ;
+            ap.clearLabels() ;
+            if ( instr == null )
+                return "unknown instruction: " + ap.wordsToString() ;
+            if ( nArgs < instr.getNrInlineOpnds() )
+                return "not enough arguments for " + instr.getRepr() ;
+            return "cannot add meta at start of code (currently)" ;
+        }
+
+        if ( instr.isMeta() )
+        {
+            Vector<String> args = new Vector<String>( nArgs ) ;
+            for ( int i = 1 ; i <= nArgs ; i++ )
+                args.addElement( ap.getWord( i ) ) ;
+            Vector<MetaInstruction> metas ;
+            if ( instrs.size() == 0 )
+            {
+                // at the start of a chunk, for the last instruction of the chunks before
+                if ( leadingMetas == null )
+                    leadingMetas = new Vector<MetaInstruction>() ;
+                metas = leadingMetas ;
+            }
+            else
+            {
+                Instr prev = instrs.lastElement() ;
+                if ( prev.metaInstructions == null )
+                    prev.metaInstructions = new Vector<MetaInstruction>() ;
+                metas = prev.metaInstructions ;
+            }
+            MetaInstruction m = instr.instantiateMeta( args ) ;
+            if ( m != null )
+                metas.addElement( m ) ;
+        }
+        else
+        {
+            Instr in = new Instr( emit( instr.getCode() ), ap.lineNr ) ;
+            if ( firstLabelUse == NO_LABEL_USE )
+                firstLabelUse = instrs.size() ;
+            instrs.addElement( in ) ;
+            for ( int i = 0 ; i < ap.getNrLabels() ; i++ )
+            {
+                in.labelName = ap.getLabel( i ) ;
+                if ( Registers.findRegOfName( in.labelName ) < 0 && ! symbols.containsKey( in.labelName ) )
+                    symbols.put( in.labelName, in.memLoc ) ;
+            }
+            ap.clearLabels() ;
+            for ( int arg = 0 ; arg < instr.getNrInlineOpnds() ; arg++ )
+            {
+                String s = ap.getWord( arg + 1 ) ;
+                int at = emit( 0 ) ;
+                if ( Utils.isNumberRepr( s, false ) )
+                {
+                    code[ at ] = Utils.fromHex( s, false ) ;
+                }
+                else
+                {
+                    int r = Registers.findRegOfName( s ) ;
+                    if ( r >= 0 )
+                        code[ at ] = r ;
+                    else
+                        fixups.addElement( new Fixup( s, in.memLoc, at, in.memLoc + instr.getNrMemCells(), instr.isRelativeOpnd( arg ) ) ) ;
+                    in.usedLabelName = s ;
+                }
+            }
+        }
+        return null ;
+    }
+
+    /**
+     * Patch the operands using labels.
+     * For a module, absolute operands are remembered for relocation and imported labels for the linker.
+     */
+    private String resolveFixups()
+    {
+        Hashtable<String,String> imported = new Hashtable<String,String>() ;
+        for ( Enumeration<String> e = imports.elements() ; e.hasMoreElements() ; )
+        {
+            String l = e.nextElement() ;
+            imported.put( l, l ) ;
+        }
+        Vector<String> unresolved = new Vector<String>() ;
+        for ( Enumeration<Fixup> e = fixups.elements() ; e.hasMoreElements() ; )
+        {
+            Fixup f = e.nextElement() ;
+            Integer loc = symbols.get( f.label ) ;
+            if ( loc == null )
+            {
+                code[ f.at ] = UNDEFINED ;
+                if ( isModule && imported.containsKey( f.label ) )
+                    importRefs.addElement( f ) ;
+                else
+                    unresolved.addElement( f.label ) ;
+            }
+            else
+            {
+                code[ f.at ] = f.isRelative ? loc - f.pcOffset : loc ;
+                if ( isModule && ! f.isRelative )
+                    relocs.addElement( f.at ) ;
+            }
+        }
+        fixups.removeAllElements() ;
+        return unresolved.size() == 0 ? null : ("unresolved labels " + unresolved) ;
+    }
+
+}
@@ -0,0 +1,319 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.nio.CharBuffer;
+
+/**
+ * Lexer for assembly source held in memory.
+ * It accepts exactly what a java.io.StreamTokenizer configured for SSM assembly accepted:
+ * words of 0-9 a-z A-Z _ - and the characters 0xA0..0xF0 and above 0xFF,
+ * ';' and '//' comments up to the end of the line, '"' quoted strings with the usual escapes,
+ * significant ends of line, all other characters being tokens of their own.
+ * Words and strings are interned, so a mnemonic or label occurring many times is one String.
+ */
+public class AssemblyLexer
+{
+    public static final int     TT_EOF      = -1 ;
+    public static final int     TT_EOL      = '\n' ;
+    public static final int     TT_WORD     = -3 ;
+    public static final int     TT_NOTHING  = -4 ;
+
+    private static final int    NEED_CHAR   = Integer.MAX_VALUE ;
+    private static final int    SKIP_LF     = Integer.MAX_VALUE - 1 ;
+
+    private static final byte   CT_WHITESPACE   = 1 ;
+    private static final byte   CT_WORD         = 2 ;
+    private static final byte   CT_QUOTE        = 4 ;
+    private static final byte   CT_COMMENT      = 8 ;
+
+    private static final byte   ctype[]     = new byte[ 256 ] ;
+
+    static
+    {
+        for ( int c = 0x00 ; c <= 0x20 ; c++ )
+            ctype[ c ] = CT_WHITESPACE ;
+        for ( int c = '0' ; c <= '9' ; c++ )
+            ctype[ c ] = CT_WORD ;
+        for ( int c = 'a' ; c <= 'z' ; c++ )
+            ctype[ c ] = CT_WORD ;
+        for ( int c = 'A' ; c <= 'Z' ; c++ )
+            ctype[ c ] = CT_WORD ;
+        for ( int c = 0xA0 ; c <= 0xF0 ; c++ )
+            ctype[ c ] = CT_WORD ;
+        ctype[ '_' ] = CT_WORD ;
+        ctype[ '-' ] = CT_WORD ;
+        ctype[ '"' ] = CT_QUOTE ;
+        ctype[ ';' ] = CT_COMMENT ;
+    }
+
+    private char        src[]       ;
+    private int         pos         ;
+    private int         end         ;
+    private int         peekc       = NEED_CHAR ;
+    private int         lineno      = 1 ;
+
+    private char        buf[]       = new char[ 64 ] ;
+    private String      interned[]  = new String[ 256 ] ;
+    private int         nInterned   ;
+
+    /**
+     * The type of the last token, TT_WORD, TT_EOL, TT_EOF, '"' for a string, or the character itself.
+     */
+    public int          ttype       = TT_NOTHING ;
+
+    /**
+     * The text of the last word or string.
+     */
+    public String       sval        ;
+
+    public AssemblyLexer( char[] s, int offset, int length )
+    {
+        src = s ;
+        pos = offset ;
+        end = offset + length ;
+    }
+
+    /**
+     * A lexer for source following lines already lexed, numbered from firstLineNr.
+     */
+    public AssemblyLexer( CharBuffer s, int firstLineNr )
+    {
+        this( s ) ;
+        lineno = firstLineNr ;
+    }
+
+    public AssemblyLexer( CharBuffer s )
+    {
+        if ( s.hasArray() )
+        {
+            src = s.array() ;
+            pos = s.arrayOffset() + s.position() ;
+            end = s.arrayOffset() + s.limit() ;
+        }
+        else
+        {
+            src = new char[ s.remaining() ] ;
+            s.duplicate().get( src ) ;
+            pos = 0 ;
+            end = src.length ;
+        }
+    }
+
+    public int lineno()
+    {
+        return lineno ;
+    }
+
+    private int read()
+    {
+        return pos < end ? src[ pos++ ] : -1 ;
+    }
+
+    private String intern( char[] cs, int start, int len )
+    {
+        int h = 0 ;
+        for ( int i = start ; i < start + len ; i++ )
+            h = 31 * h + cs[ i ] ;
+        int mask = interned.length - 1 ;
+        for ( int i = ( h ^ ( h >>> 16 ) ) & mask ; ; i = ( i + 1 ) & mask )
+        {
+            String s = interned[ i ] ;
+            if ( s == null )
+            {
+                s = new String( cs, start, len ) ;
+                interned[ i ] = s ;
+                if ( ++nInterned * 2 > interned.length )
+                    rehash() ;
+                return s ;
+            }
+            if ( s.hashCode() == h && s.length() == len )
+            {
+                int j = 0 ;
+                while ( j < len && s.charAt( j ) == cs[ start + j ] )
+                    j++ ;
+                if ( j == len )
+                    return s ;
+            }
+        }
+    }
+
+    private void rehash()
+    {
+        String old[] = interned ;
+        interned = new String[ 2 * old.length ] ;
+        int mask = interned.length - 1 ;
+        for ( int k = 0 ; k < old.length ; k++ )
+        {
+            String s = old[ k ] ;
+            if ( s != null )
+            {
+                int h = s.hashCode() ;
+                int i = ( h ^ ( h >>> 16 ) ) & mask ;
+                while ( interned[ i ] != null )
+                    i = ( i + 1 ) & mask ;
+                interned[ i ] = s ;
+            }
+        }
+    }
+
+    private void putBuf( int i, int c )
+    {
+        if ( i == buf.length )
+        {
+            char newBuf[] = new char[ 2 * buf.length ] ;
+            System.arraycopy( buf, 0, newBuf, 0, i ) ;
+            buf = newBuf ;
+        }
+        buf[ i ] = (char)c ;
+    }
+
+    /**
+     * Scan the next token.
+     * @return Its type, also available as ttype
+     */
+    public int nextToken()
+    {
+        sval = null ;
+        int c = peekc ;
+        if ( c < 0 )
+            c = NEED_CHAR ;
+        if ( c == SKIP_LF )
+        {
+            c = read() ;
+            if ( c < 0 )
+                return ttype = TT_EOF ;
+            if ( c == '\n' )
+                c = NEED_CHAR ;
+        }
+        if ( c == NEED_CHAR )
+        {
+            c = read() ;
+            if ( c < 0 )
+                return ttype = TT_EOF ;
+        }
+        peekc = NEED_CHAR ;
+
+        int ct = c < 256 ? ctype[ c ] : CT_WORD ;
+        while ( ( ct & CT_WHITESPACE ) != 0 )
+        {
+            if ( c == '\r' )
+            {
+                lineno++ ;
+                peekc = SKIP_LF ;
+                return ttype = TT_EOL ;
+            }
+            if ( c == '\n' )
+            {
+                lineno++ ;
+                return ttype = TT_EOL ;
+            }
+            c = read() ;
+            if ( c < 0 )
+                return ttype = TT_EOF ;
+            ct = c < 256 ? ctype[ c ] : CT_WORD ;
+        }
+
+        // the current character always is the one just before pos
+        if ( ( ct & CT_WORD ) != 0 )
+        {
+            int start = pos - 1 ;
+            do
+            {
+                c = read() ;
+                ct = c < 0 ? CT_WHITESPACE : c < 256 ? ctype[ c ] : CT_WORD ;
+            } while ( ( ct & CT_WORD ) != 0 ) ;
+            peekc = c ;
+            sval = intern( src, start, ( c < 0 ? pos : pos - 1 ) - start ) ;
+            return ttype = TT_WORD ;
+        }
+
+        if ( ( ct & CT_QUOTE ) != 0 )
+        {
+            int quote = c ;
+            int i = 0 ;
+            int d = read() ;
+            while ( d >= 0 && d != quote && d != '\n' && d != '\r' )
+            {
+                if ( d == '\\' )
+                {
+                    c = read() ;
+                    int first = c ;
+                    if ( c >= '0' && c <= '7' )
+                    {
+                        c = c - '0' ;
+                        int c2 = read() ;
+                        if ( '0' <= c2 && c2 <= '7' )
+                        {
+                            c = ( c << 3 ) + ( c2 - '0' ) ;
+                            c2 = read() ;
+                            if ( '0' <= c2 && c2 <= '7' && first <= '3' )
+                            {
+                                c = ( c << 3 ) + ( c2 - '0' ) ;
+                                d = read() ;
+                            }
+                            else
+                                d = c2 ;
+                        }
+                        else
+                            d = c2 ;
+                    }
+                    else
+                    {
+                        switch ( c )
+                        {
+                            case 'a' : c = 0x7 ; break ;
+                            case 'b' : c = '\b' ; break ;
+                            case 'f' : c = 0xC ; break ;
+                            case 'n' : c = '\n' ; break ;
+                            case 'r' : c = '\r' ; break ;
+                            case 't' : c = '\t' ; break ;
+                            case 'v' : c = 0xB ; break ;
+                        }
+                        d = read() ;
+                    }
+                }
+                else
+                {
+                    c = d ;
+                    d = read() ;
+                }
+                putBuf( i++, c ) ;
+            }
+            peekc = ( d == quote ) ? NEED_CHAR : d ;
+            sval = intern( buf, 0, i ) ;
+            return ttype = quote ;
+        }
+
+        if ( c == '/' )
+        {
+            c = read() ;
+            if ( c == '/' )
+            {
+                while ( ( c = read() ) != '\n' && c != '\r' && c >= 0 )
+                    ;
+                peekc = c ;
+                return nextToken() ;
+            }
+            peekc = c ;
+            return ttype = '/' ;
+        }
+
+        if ( ( ct & CT_COMMENT ) != 0 )
+        {
+            while ( ( c = read() ) != '\n' && c != '\r' && c >= 0 )
+                ;
+            peekc = c ;
+            return nextToken() ;
+        }
+
+        return ttype = c ;
+    }
+
+}
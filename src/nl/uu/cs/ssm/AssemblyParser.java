@@ -0,0 +1,204 @@
+/*
+	Runner.java
+
+	Title:			Simple Stack Machine Runner
+	Author:			atze
+	Description:
+*/
+
+package nl.uu.cs.ssm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Parser for lines of assembly.
+ * The words of a line and the labels defined for the next instruction are kept in buffers
+ * which are reused from line to line.
+ */
+public class AssemblyParser
+{
+    private AssemblyLexer lexer ;
+    private int tok ;
+
+    protected int lineNr ;
+    protected String message ;
+
+    private String words[] = new String[ 8 ] ;
+    private int nWords ;
+    private String labels[] = new String[ 4 ] ;
+    private int nLabels ;
+
+    protected AssemblyParser( CharBuffer input )
+    {
+        lexer = new AssemblyLexer( input ) ;
+        next() ;
+    }
+
+    protected AssemblyParser( Reader input )
+    {
+        this( readAll( input ) ) ;
+    }
+
+    /**
+     * Continue with the lines following the input parsed so far, keeping the labels not yet used.
+     */
+    protected void continueWith( CharBuffer input )
+    {
+        lexer = new AssemblyLexer( input, lexer.lineno() ) ;
+        tok = AssemblyLexer.TT_NOTHING ;
+        next() ;
+    }
+
+    protected static CharBuffer readAll( Reader input )
+    {
+        char buf[] = new char[ 8192 ] ;
+        int len = 0 ;
+        try
+        {
+            for ( int n ; ( n = input.read( buf, len, buf.length - len ) ) >= 0 ; )
+            {
+                len += n ;
+                if ( len == buf.length )
+                {
+                    char newBuf[] = new char[ 2 * buf.length ] ;
+                    System.arraycopy( buf, 0, newBuf, 0, len ) ;
+                    buf = newBuf ;
+                }
+            }
+        }
+        catch ( IOException ex )
+        {
+        }
+        return CharBuffer.wrap( buf, 0, len ) ;
+    }
+
+    private void next()
+    {
+        if ( ! isAtEOF() )
+            tok = lexer.nextToken() ;
+    }
+
+    /**
+     * @return The line reached, which after the last line is one more than the number of lines
+     */
+    protected int lineno()
+    {
+        return lexer.lineno() ;
+    }
+
+    public boolean isAtEOF()
+    {
+        return tok == AssemblyLexer.TT_EOF ;
+    }
+
+    private boolean isAtEOL()
+    {
+        return tok == AssemblyLexer.TT_EOL || isAtEOF() ;
+    }
+
+    private void addWord( String w )
+    {
+        if ( nWords == words.length )
+        {
+            String newWords[] = new String[ 2 * nWords ] ;
+            System.arraycopy( words, 0, newWords, 0, nWords ) ;
+            words = newWords ;
+        }
+        words[ nWords++ ] = w ;
+    }
+
+    private void addLabel( String l )
+    {
+        if ( nLabels == labels.length )
+        {
+            String newLabels[] = new String[ 2 * nLabels ] ;
+            System.arraycopy( labels, 0, newLabels, 0, nLabels ) ;
+            labels = newLabels ;
+        }
+        labels[ nLabels++ ] = l ;
+    }
+
+    /**
+     * Parse the next line into the instruction and arguments, available as words.
+     * A label defined on the line is added to the labels still defined from previous lines,
+     * until these are cleared.
+     */
+    protected void parse1Line()
+    {
+        lineNr = lexer.lineno() ;
+        message = null ;
+        nWords = 0 ;
+
+        if ( ! isAtEOL() )
+        {
+            if ( tok == AssemblyLexer.TT_WORD )
+            {
+                String s = lexer.sval ;
+                next() ;
+                if ( tok == ':' )
+                {
+                    addLabel( s ) ;
+                    next() ;
+                }
+                else
+                {
+                    addWord( s ) ;
+                }
+
+                while( ! isAtEOL() )
+                {
+                    if ( tok == AssemblyLexer.TT_WORD || tok == '"' )
+                    {
+                        addWord( lexer.sval ) ;
+                    }
+                    else
+                    {
+                        message = "did not expect `" + (char)tok + "'" ;
+                    }
+                    next() ;
+                }
+            }
+            else
+            {
+                message = "expected label or instruction" ;
+            }
+        }
+        next() ;
+    }
+
+    protected int getNrWords()
+    {
+        return nWords ;
+    }
+
+    protected String getWord( int i )
+    {
+        return words[ i ] ;
+    }
+
+    protected String wordsToString()
+    {
+        StringBuffer b = new StringBuffer( "[" ) ;
+        for ( int i = 0 ; i < nWords ; i++ )
+            b.append( i > 0 ? ", " : "" ).append( words[ i ] ) ;
+        return b.append( "]" ).toString() ;
+    }
+
+    protected int getNrLabels()
+    {
+        return nLabels ;
+    }
+
+    protected String getLabel( int i )
+    {
+        return labels[ i ] ;
+    }
+
+    protected void clearLabels()
+    {
+        nLabels = 0 ;
+    }
+
+}
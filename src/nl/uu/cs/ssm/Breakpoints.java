@@ -0,0 +1,175 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Breakpoints on code addresses.
+ * Whether an address has a breakpoint is a single bit probe, so a run loop can ask for every step.
+ * The administration of hit counts is only consulted for addresses with a breakpoint.
+ */
+public class Breakpoints
+{
+    private class Breakpoint
+    {
+        int         hits ;
+        int         stopAtHit ;
+        boolean     isTemporary ;
+        Expression  condition ;
+
+        Breakpoint( int stopAt, boolean isTemp, Expression cond )
+        {
+            stopAtHit = stopAt ;
+            isTemporary = isTemp ;
+            condition = cond ;
+        }
+    }
+
+    private BitSet                          addresses   ;
+    private Hashtable<Integer,Breakpoint>   breakpoints ;
+
+    public Breakpoints()
+    {
+        clearAll() ;
+    }
+
+    public void clearAll()
+    {
+        addresses = new BitSet() ;
+        breakpoints = new Hashtable<Integer,Breakpoint>() ;
+    }
+
+    public void resetHitCounts()
+    {
+        for ( Enumeration<Breakpoint> e = breakpoints.elements() ; e.hasMoreElements() ; )
+            e.nextElement().hits = 0 ;
+    }
+
+    /**
+     * Set a breakpoint which stops at the stopAtHit'th time it is passed with condition true, and every time after.
+     * A null condition always holds.
+     */
+    public void set( int addr, int stopAtHit, boolean isTemporary, Expression condition )
+    {
+        if ( addr >= 0 )
+        {
+            addresses.set( addr ) ;
+            breakpoints.put( addr, new Breakpoint( Math.max( 1, stopAtHit ), isTemporary, condition ) ) ;
+        }
+    }
+
+    public void set( int addr, int stopAtHit, boolean isTemporary )
+    {
+        set( addr, stopAtHit, isTemporary, null ) ;
+    }
+
+    public void set( int addr )
+    {
+        set( addr, 1, false ) ;
+    }
+
+    /**
+     * Set a breakpoint which disappears when hit, as used for run to cursor.
+     * A breakpoint already there is left as it is, so it does not disappear.
+     */
+    public void setTemporary( int addr )
+    {
+        if ( ! isSetAt( addr ) )
+            set( addr, 1, true ) ;
+    }
+
+    public void clear( int addr )
+    {
+        if ( addr >= 0 )
+        {
+            addresses.clear( addr ) ;
+            breakpoints.remove( addr ) ;
+        }
+    }
+
+    public void toggle( int addr )
+    {
+        if ( isSetAt( addr ) )
+            clear( addr ) ;
+        else
+            set( addr ) ;
+    }
+
+    public boolean isSetAt( int addr )
+    {
+        return addr >= 0 && addresses.get( addr ) ;
+    }
+
+    public boolean isEmpty()
+    {
+        return addresses.isEmpty() ;
+    }
+
+    public int getHitCount( int addr )
+    {
+        Breakpoint bp = breakpoints.get( addr ) ;
+        return bp == null ? 0 : bp.hits ;
+    }
+
+    public Expression getCondition( int addr )
+    {
+        Breakpoint bp = breakpoints.get( addr ) ;
+        return bp == null ? null : bp.condition ;
+    }
+
+    /**
+     * Count the passing of a breakpoint, passings with a false condition do not count.
+     * @return True if execution should stop
+     */
+    public boolean hit( int addr )
+    {
+        Breakpoint bp = breakpoints.get( addr ) ;
+        if ( bp == null || ( bp.condition != null && ! bp.condition.isTrue() ) )
+            return false ;
+        bp.hits++ ;
+        if ( bp.hits < bp.stopAtHit )
+            return false ;
+        if ( bp.isTemporary )
+            clear( addr ) ;
+        return true ;
+    }
+
+    /**
+     * Move breakpoints along with code inserted (n > 0) or deleted (n < 0) at pos.
+     */
+    public void shiftAt( int pos, int n )
+    {
+        if ( n == 0 )
+            return ;
+        Hashtable<Integer,Breakpoint> oldBreakpoints = breakpoints ;
+        clearAll() ;
+        for ( Enumeration<Integer> e = oldBreakpoints.keys() ; e.hasMoreElements() ; )
+        {
+            int addr = e.nextElement() ;
+            int newAddr = addr ;
+            if ( addr >= pos )
+            {
+                if ( n < 0 && addr < pos - n )
+                    continue ;
+                newAddr = addr + n ;
+            }
+            addresses.set( newAddr ) ;
+            breakpoints.put( newAddr, oldBreakpoints.get( addr ) ) ;
+        }
+    }
+
+    public String toString()
+    {
+        return "breakpoints " + addresses ;
+    }
+
+}
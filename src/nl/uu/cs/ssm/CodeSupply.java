@@ -0,0 +1,27 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+/**
+ * Supplier of code which is not yet in memory when the machine starts, see Machine.setCodeSupply.
+ */
+public interface CodeSupply
+{
+    /**
+     * Wait until the instruction at addr is in memory, called by the machine before executing it.
+     * @return False if it never will be, which stops the machine
+     */
+    public boolean awaitCode( int addr ) ;
+
+    /**
+     * @return Why the code is not available, after awaitCode failed
+     */
+    public String getUnavailableReason() ;
+
+}
@@ -32,6 +32,8 @@ public class Config
 	
 	public static final String extensionSSM				= "ssm" ;
 	
+	public static final String extensionSSMO			= "ssmo" ;
+	
     public static final int allowedAutomaticMemoryIncrease
     													= 100 ;
     
@@ -0,0 +1,36 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The files on disk, encoded in the default charset, used unless another FileSupply is given.
+ */
+public class DiskFiles
+	implements FileSupply
+{
+    public InputFile openForReading( String name ) throws IOException
+    {
+        return new InputFile( Paths.get( name ), Charset.defaultCharset() ) ;
+    }
+
+    public OutputSink openForWriting( String name ) throws IOException
+    {
+        FileChannel channel = FileChannel.open( Paths.get( name ),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) ;
+        return new OutputSink( Channels.newOutputStream( channel ), Charset.defaultCharset() ) ;
+    }
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.text.ParseException;
+
+/**
+ * Integer expressions over registers and memory, as used for conditional breakpoints and watch expressions.
+ * An expression is parsed once into a tree of nodes bound to the registers and memory of a machine,
+ * evaluation walks the tree without allocating.
+ * Syntax, in order of increasing priority:
+ * <pre>
+ *   e ::= e || e | e &amp;&amp; e
+ *       | e == e | e != e | e &lt; e | e &lt;= e | e &gt; e | e &gt;= e
+ *       | e + e | e - e | e * e | e / e | e % e
+ *       | - e | ! e | ( e ) | mem[ e ] | register | number
+ * </pre>
+ * Registers are named as in instructions (PC, SP, MP, HP, RR, R0 ... R7), numbers are decimal or 0x.. hex.
+ * Reading memory does not trigger watchpoints, division by zero yields 0.
+ */
+public abstract class Expression
+{
+    private String      repr ;
+
+    public abstract int eval() ;
+
+    public boolean isTrue()
+    {
+        return eval() != 0 ;
+    }
+
+    public String toString()
+    {
+        return repr ;
+    }
+
+    private static class Constant extends Expression
+    {
+        private int         value ;
+
+        Constant( int v )
+        {
+            value = v ;
+        }
+
+        public int eval()
+        {
+            return value ;
+        }
+    }
+
+    private static class Register extends Expression
+    {
+        private Registers   registers ;
+        private int         reg ;
+
+        Register( Registers rs, int r )
+        {
+            registers = rs ;
+            reg = r ;
+        }
+
+        public int eval()
+        {
+            return registers.getReg( reg ) ;
+        }
+    }
+
+    private static class MemoryAt extends Expression
+    {
+        private Memory      memory ;
+        private Expression  addr ;
+
+        MemoryAt( Memory m, Expression a )
+        {
+            memory = m ;
+            addr = a ;
+        }
+
+        public int eval()
+        {
+            return memory.peekAt( addr.eval() ) ;
+        }
+    }
+
+    private static class Unop extends Expression
+    {
+        private char        op ;
+        private Expression  e ;
+
+        Unop( char o, Expression e )
+        {
+            op = o ;
+            this.e = e ;
+        }
+
+        public int eval()
+        {
+            int v = e.eval() ;
+            return op == '-' ? -v : ( v == 0 ? 1 : 0 ) ;
+        }
+    }
+
+    private static final int    OP_OR   = 0 ;
+    private static final int    OP_AND  = 1 ;
+    private static final int    OP_EQ   = 2 ;
+    private static final int    OP_NE   = 3 ;
+    private static final int    OP_LT   = 4 ;
+    private static final int    OP_LE   = 5 ;
+    private static final int    OP_GT   = 6 ;
+    private static final int    OP_GE   = 7 ;
+    private static final int    OP_ADD  = 8 ;
+    private static final int    OP_SUB  = 9 ;
+    private static final int    OP_MUL  = 10 ;
+    private static final int    OP_DIV  = 11 ;
+    private static final int    OP_MOD  = 12 ;
+
+    private static final String[][] binopsPerPrio =
+        { { "||" }
+        , { "&&" }
+        , { "==", "!=", "<=", ">=", "<", ">" }
+        , { "+", "-" }
+        , { "*", "/", "%" }
+        } ;
+
+    private static final String[]   binopNames =
+        { "||", "&&", "==", "!=", "<", "<=", ">", ">=", "+", "-", "*", "/", "%" } ;
+
+    private static class Binop extends Expression
+    {
+        private int         op ;
+        private Expression  e1, e2 ;
+
+        Binop( int o, Expression e1, Expression e2 )
+        {
+            op = o ;
+            this.e1 = e1 ;
+            this.e2 = e2 ;
+        }
+
+        public int eval()
+        {
+            int v1 = e1.eval() ;
+            switch ( op )
+            {
+                case OP_OR  : return ( v1 != 0 || e2.eval() != 0 ) ? 1 : 0 ;
+                case OP_AND : return ( v1 != 0 && e2.eval() != 0 ) ? 1 : 0 ;
+            }
+            int v2 = e2.eval() ;
+            switch ( op )
+            {
+                case OP_EQ  : return v1 == v2 ? 1 : 0 ;
+                case OP_NE  : return v1 != v2 ? 1 : 0 ;
+                case OP_LT  : return v1 <  v2 ? 1 : 0 ;
+                case OP_LE  : return v1 <= v2 ? 1 : 0 ;
+                case OP_GT  : return v1 >  v2 ? 1 : 0 ;
+                case OP_GE  : return v1 >= v2 ? 1 : 0 ;
+                case OP_ADD : return v1 + v2 ;
+                case OP_SUB : return v1 - v2 ;
+                case OP_MUL : return v1 * v2 ;
+                case OP_DIV : return v2 == 0 ? 0 : v1 / v2 ;
+                case OP_MOD : return v2 == 0 ? 0 : v1 % v2 ;
+            }
+            return 0 ;
+        }
+    }
+
+    /**
+     * Recursive descent parser, one instance per parse.
+     */
+    private static class Parser
+    {
+        private String      s ;
+        private int         pos ;
+        private Memory      memory ;
+        private Registers   registers ;
+
+        Parser( String s, MachineState st )
+        {
+            this.s = s ;
+            memory = st.getMemory() ;
+            registers = st.getRegisters() ;
+        }
+
+        private void skipSpace()
+        {
+            while ( pos < s.length() && Character.isWhitespace( s.charAt( pos ) ) )
+                pos++ ;
+        }
+
+        private boolean isNext( String tok )
+        {
+            skipSpace() ;
+            return s.startsWith( tok, pos ) ;
+        }
+
+        private void expect( String tok ) throws ParseException
+        {
+            if ( ! isNext( tok ) )
+                throw new ParseException( "expected '" + tok + "' at position " + pos + " in: " + s, pos ) ;
+            pos += tok.length() ;
+        }
+
+        Expression parseAll() throws ParseException
+        {
+            Expression e = parse( 0 ) ;
+            skipSpace() ;
+            if ( pos < s.length() )
+                throw new ParseException( "unexpected '" + s.substring( pos ) + "' in: " + s, pos ) ;
+            return e ;
+        }
+
+        private Expression parse( int prio ) throws ParseException
+        {
+            if ( prio == binopsPerPrio.length )
+                return parseUnary() ;
+            Expression e = parse( prio + 1 ) ;
+            for ( boolean found = true ; found ; )
+            {
+                found = false ;
+                String[] ops = binopsPerPrio[ prio ] ;
+                for ( int i = 0 ; i < ops.length && ! found ; i++ )
+                {
+                    if ( isNext( ops[ i ] ) && ! ( ops[ i ].length() == 1 && isNext( ops[ i ] + ops[ i ] ) ) )
+                    {
+                        pos += ops[ i ].length() ;
+                        e = new Binop( Utils.asVector( binopNames ).indexOf( ops[ i ] ), e, parse( prio + 1 ) ) ;
+                        found = true ;
+                    }
+                }
+            }
+            return e ;
+        }
+
+        private Expression parseUnary() throws ParseException
+        {
+            if ( isNext( "-" ) || ( isNext( "!" ) && ! isNext( "!=" ) ) )
+            {
+                char op = s.charAt( pos++ ) ;
+                return new Unop( op, parseUnary() ) ;
+            }
+            if ( isNext( "(" ) )
+            {
+                pos++ ;
+                Expression e = parse( 0 ) ;
+                expect( ")" ) ;
+                return e ;
+            }
+            int start = pos ;
+            while ( pos < s.length() && Character.isLetterOrDigit( s.charAt( pos ) ) )
+                pos++ ;
+            String word = s.substring( start, pos ) ;
+            if ( word.length() == 0 )
+                throw new ParseException( "expected operand at position " + pos + " in: " + s, pos ) ;
+            if ( Character.isDigit( word.charAt( 0 ) ) )
+            {
+                boolean isHex = word.startsWith( "0x" ) || word.startsWith( "0X" ) ;
+                try
+                {
+                    return new Constant( (int)Long.parseLong( isHex ? word.substring( 2 ) : word, isHex ? 16 : 10 ) ) ;
+                }
+                catch ( NumberFormatException ex )
+                {
+                    throw new ParseException( "illegal number '" + word + "' in: " + s, start ) ;
+                }
+            }
+            if ( word.equalsIgnoreCase( "mem" ) )
+            {
+                expect( "[" ) ;
+                Expression a = parse( 0 ) ;
+                expect( "]" ) ;
+                return new MemoryAt( memory, a ) ;
+            }
+            int r = Registers.findRegOfName( word.toUpperCase() ) ;
+            if ( r < 0 )
+                throw new ParseException( "unknown register or number '" + word + "' in: " + s, start ) ;
+            return new Register( registers, r ) ;
+        }
+    }
+
+    /**
+     * Parse an expression, bound to the registers and memory of st.
+     */
+    public static Expression parse( String s, MachineState st ) throws ParseException
+    {
+        Expression e = new Parser( s, st ).parseAll() ;
+        e.repr = s.trim() ;
+        return e ;
+    }
+
+}
@@ -0,0 +1,29 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.IOException;
+
+/**
+ * Supplier of the files opened by the file traps, see MachineState.setFileSupply.
+ */
+public interface FileSupply
+{
+    /**
+     * @throws IOException If the file does not exist or cannot be read
+     */
+    public InputFile openForReading( String name ) throws IOException ;
+
+    /**
+     * Create the file, or empty it when it exists.
+     * @throws IOException If the file cannot be written
+     */
+    public OutputSink openForWriting( String name ) throws IOException ;
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File read by the file traps, see MachineState.readFromFile.
+ * <p>
+ * A file up to MAP_LIMIT bytes is mapped into memory, a larger one is read through its channel in large blocks,
+ * and a file which is in memory already, see MemoryFiles, is read from there.
+ * The bytes are decoded in blocks as well, so reading a character is mostly taking it from a buffer.
+ */
+public class InputFile
+	implements Closeable
+{
+    private static final int    BUFFER_SIZE = 1 << 16 ;
+    private static final long   MAP_LIMIT   = 1L << 28 ;
+
+    private FileChannel         channel ;
+    private ByteBuffer          bytes   ;
+    private CharsetDecoder      decoder ;
+    private CharBuffer          chars   ;
+    private boolean             eof     ;   // all bytes are in the buffer
+    private boolean             decoded ;   // all bytes are decoded
+
+    public InputFile( Path path, Charset cs ) throws IOException
+    {
+        channel = FileChannel.open( path, StandardOpenOption.READ ) ;
+        long size = channel.size() ;
+        if ( size > 0 && size <= MAP_LIMIT )
+        {
+            bytes = channel.map( FileChannel.MapMode.READ_ONLY, 0, size ) ;
+            eof = true ;
+        }
+        else
+        {
+            bytes = ByteBuffer.allocateDirect( BUFFER_SIZE ) ;
+            bytes.flip() ;
+        }
+        initDecoding( cs ) ;
+    }
+
+    public InputFile( ByteBuffer contents, Charset cs )
+    {
+        bytes = contents ;
+        eof = true ;
+        initDecoding( cs ) ;
+    }
+
+    private void initDecoding( Charset cs )
+    {
+        decoder = cs.newDecoder()
+                    .onMalformedInput( CodingErrorAction.REPLACE )
+                    .onUnmappableCharacter( CodingErrorAction.REPLACE ) ;
+        chars = CharBuffer.allocate( BUFFER_SIZE ) ;
+        chars.flip() ;
+    }
+
+    /**
+     * @return The next UTF-16 unit, -1 at the end of the file
+     */
+    public int read() throws IOException
+    {
+        if ( ! chars.hasRemaining() && ! fill() )
+            return -1 ;
+        return chars.get() ;
+    }
+
+    /**
+     * Decode the next block.
+     * @return False at the end of the file
+     */
+    private boolean fill() throws IOException
+    {
+        chars.clear() ;
+        while ( chars.position() == 0 && ! decoded )
+        {
+            // when not underflowing the chars are full
+            if ( decoder.decode( bytes, chars, eof ).isUnderflow() )
+            {
+                if ( eof )
+                {
+                    decoder.flush( chars ) ;
+                    decoded = true ;
+                }
+                else
+                {
+                    bytes.compact() ;
+                    eof = channel.read( bytes ) < 0 ;
+                    bytes.flip() ;
+                }
+            }
+        }
+        chars.flip() ;
+        return chars.hasRemaining() ;
+    }
+
+    public void close() throws IOException
+    {
+        if ( channel != null )
+            channel.close() ;
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Source of the input read by the input traps without asking the user, see Machine.setInputSource.
+ * <p>
+ * The input is read as lines, the way a user would type it when asked.
+ * A number is a token separated by white space, so several numbers may be on one line.
+ * A character or string is the rest of the line not yet read, or the next line;
+ * a character is the first of it, the remainder of the line is skipped.
+ * An empty line read as character gives the end of line character.
+ */
+public abstract class InputSource
+{
+    private String      line    ;   // the line partly read by readInt, null if none
+    private int         pos     ;
+
+    /**
+     * @return The next line, without the end of line, or null at the end of the input
+     */
+    protected abstract String nextLine() throws IOException ;
+
+    private boolean restIsBlank()
+    {
+        while ( pos < line.length() && Character.isWhitespace( line.charAt( pos ) ) )
+            pos++ ;
+        return pos >= line.length() ;
+    }
+
+    /**
+     * @return The rest of the line partly read, or the next line, null at the end of the input
+     */
+    private String restOfLine() throws IOException
+    {
+        String s = line != null && ! restIsBlank() ? line.substring( pos ) : nextLine() ;
+        line = null ;
+        return s ;
+    }
+
+    /**
+     * @return The next number
+     * @throws IOException At the end of the input, or when the next token is not a number
+     */
+    public int readInt() throws IOException
+    {
+        while ( line == null || restIsBlank() )
+        {
+            if ( ( line = nextLine() ) == null )
+                throw new EOFException( "no more input" ) ;
+            pos = 0 ;
+        }
+        int start = pos ;
+        while ( pos < line.length() && ! Character.isWhitespace( line.charAt( pos ) ) )
+            pos++ ;
+        String token = line.substring( start, pos ) ;
+        try
+        {
+            return Integer.parseInt( token ) ;
+        }
+        catch ( NumberFormatException ex )
+        {
+            throw new IOException( "input " + token + " is not an integer" ) ;
+        }
+    }
+
+    /**
+     * @return The code point of the next character, -1 at the end of the input
+     */
+    public int readChar() throws IOException
+    {
+        String s = restOfLine() ;
+        return s == null ? -1 : s.isEmpty() ? '\n' : s.codePointAt( 0 ) ;
+    }
+
+    /**
+     * @return The code points of the next string
+     * @throws IOException At the end of the input
+     */
+    public int[] readCharArray() throws IOException
+    {
+        String s = restOfLine() ;
+        if ( s == null )
+            throw new EOFException( "no more input" ) ;
+        return s.codePoints().toArray() ;
+    }
+
+}
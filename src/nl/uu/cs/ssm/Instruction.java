@@ -171,6 +171,12 @@ public class Instruction
 	protected final static int		TR_FILE_READ		= 22;
 	protected final static int		TR_FILE_WRITE		= 23;
 	protected final static int		TR_FILE_CLOSE		= 24;
+	protected final static int		TR_MEM_COPY			= 30;
+	protected final static int		TR_MEM_SET			= 31;
+	protected final static int		TR_MEM_COMPARE		= 32;
+	protected final static int		TR_PR_STRING		= 33;
+	protected final static int		TR_IN_LINE_HEAP		= 34;
+	protected final static int		TR_INTRINSIC		= 40;
     /**
      * Metas
      */
@@ -469,6 +475,11 @@ public class Instruction
         return opndInfo[ arg ].inlineOpndKind == OPND_INL_PC_REL ;
     }
     
+    public boolean isRegisterOpnd( int arg )
+    {
+        return opndInfo[ arg ].inlineOpndKind == OPND_INL_REG ;
+    }
+    
     public boolean isMeta( )
     {
         return getCategory() == CTG_META ;
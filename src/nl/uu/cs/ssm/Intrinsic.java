@@ -0,0 +1,46 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+/**
+ * Function implemented in Java which code can call by trap 40, see Intrinsics.
+ * <p>
+ * The arguments are taken from the stack, the first pushed first, and the result, if any, is pushed instead.
+ * An intrinsic must be deterministic, and access memory only by the methods checking the addresses, such as Memory.load and store.
+ * Besides the intrinsics of Intrinsics itself, those registered as service, in META-INF/services/nl.uu.cs.ssm.Intrinsic, are available.
+ */
+public interface Intrinsic
+{
+    /**
+     * @return The number by which code calls it, not used by another intrinsic
+     */
+    public int getCode() ;
+
+    public String getName() ;
+
+    /**
+     * @return The nr of arguments taken from the stack
+     */
+    public int getNrArgs() ;
+
+    /**
+     * @return True if a result is pushed on the stack
+     */
+    public boolean hasResult() ;
+
+    /**
+     * @param args The arguments, the one pushed first at 0
+     * @param memory The memory of the machine
+     * @param messenger For printing
+     * @return The result, ignored without result
+     * @throws IllegalArgumentException When the arguments are wrong, its message is printed
+     */
+    public int call( int args[], Memory memory, Messenger messenger ) ;
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the intrinsics, by their code.
+ * <p>
+ * The standard intrinsics, with codes below 100, are:
+ * <ol>
+ * <li value="1">isqrt n: the square root of n, rounded down.</li>
+ * <li value="2">ipow b e: b to the power e, as with repeated mul, 0 for negative e unless b is 1 or -1.</li>
+ * <li value="3">hash a: the hash of the null-terminated string at address a, computed as by Java.</li>
+ * <li value="4">sort a n: sort the n words from address a, in increasing order, no result.</li>
+ * <li value="5">printnum v r w: print v in radix r, from 2 to 36, padded with spaces on the left to width w, no result.</li>
+ * </ol>
+ */
+public class Intrinsics
+{
+    private static final int            MAX_WIDTH   = 1024 ;   // of printnum
+
+    private static Intrinsics           standard    ;
+
+    private Hashtable<Integer,Intrinsic> intrinsics  = new Hashtable<Integer,Intrinsic>() ;
+
+    /**
+     * @return The standard intrinsics together with those registered as service, loaded once
+     */
+    public static synchronized Intrinsics getStandard()
+    {
+        if ( standard == null )
+        {
+            standard = new Intrinsics() ;
+            standard.registerStandard() ;
+            try
+            {
+                for ( Intrinsic i : ServiceLoader.load( Intrinsic.class ) )
+                {
+                    try
+                    {
+                        standard.register( i ) ;
+                    }
+                    catch ( IllegalArgumentException ex )
+                    {
+                        System.err.println( "intrinsic not loaded: " + ex.getMessage() ) ;
+                    }
+                }
+            }
+            catch ( ServiceConfigurationError err )
+            {
+                System.err.println( "intrinsics not loaded: " + err.getMessage() ) ;
+            }
+        }
+        return standard ;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the code is used already
+     */
+    public void register( Intrinsic i )
+    {
+        Intrinsic old = intrinsics.get( i.getCode() ) ;
+        if ( old != null )
+            throw new IllegalArgumentException( "intrinsic " + i.getName() + " has the code " + i.getCode() + " of " + old.getName() ) ;
+        intrinsics.put( i.getCode(), i ) ;
+    }
+
+    /**
+     * @return The intrinsic with the code, null if none
+     */
+    public Intrinsic get( int code )
+    {
+        return intrinsics.get( code ) ;
+    }
+
+    public Enumeration<Intrinsic> elements()
+    {
+        return intrinsics.elements() ;
+    }
+
+    private static abstract class Standard
+    	implements Intrinsic
+    {
+        private int         code    ;
+        private String      name    ;
+        private int         nArgs   ;
+        private boolean     result  ;
+
+        Standard( int code, String name, int nArgs, boolean result )
+        {
+            this.code = code ;
+            this.name = name ;
+            this.nArgs = nArgs ;
+            this.result = result ;
+        }
+
+        public int getCode()        { return code ; }
+        public String getName()     { return name ; }
+        public int getNrArgs()      { return nArgs ; }
+        public boolean hasResult()  { return result ; }
+    }
+
+    private void registerStandard()
+    {
+        register( new Standard( 1, "isqrt", 1, true )
+            {
+                public int call( int args[], Memory memory, Messenger messenger )
+                {
+                    if ( args[ 0 ] < 0 )
+                        throw new IllegalArgumentException( "square root of negative " + args[ 0 ] ) ;
+                    int r = (int)Math.sqrt( args[ 0 ] ) ;
+                    // the double may be one off for large numbers
+                    while ( (long)r * r > args[ 0 ] )
+                        r-- ;
+                    while ( (long)( r + 1 ) * ( r + 1 ) <= args[ 0 ] )
+                        r++ ;
+                    return r ;
+                }
+            } ) ;
+        register( new Standard( 2, "ipow", 2, true )
+            {
+                public int call( int args[], Memory memory, Messenger messenger )
+                {
+                    int b = args[ 0 ], e = args[ 1 ] ;
+                    if ( e < 0 )
+                        return b == 1 ? 1 : b == -1 ? ( ( e & 1 ) == 0 ? 1 : -1 ) : 0 ;
+                    int r = 1 ;
+                    for ( ; e > 0 ; e >>= 1, b *= b )
+                        if ( ( e & 1 ) != 0 )
+                            r *= b ;
+                    return r ;
+                }
+            } ) ;
+        register( new Standard( 3, "hash", 1, true )
+            {
+                public int call( int args[], Memory memory, Messenger messenger )
+                {
+                    int len = memory.lengthOfString( args[ 0 ] ) ;
+                    int chars[] = len < 0 ? null : memory.load( args[ 0 ], len ) ;
+                    if ( chars == null )
+                        throw new IllegalArgumentException( "no string at " + Utils.asHex( args[ 0 ] ) ) ;
+                    int h = 0 ;
+                    for ( int c : chars )
+                        h = 31 * h + c ;
+                    return h ;
+                }
+            } ) ;
+        register( new Standard( 4, "sort", 2, false )
+            {
+                public int call( int args[], Memory memory, Messenger messenger )
+                {
+                    int vals[] = memory.load( args[ 0 ], args[ 1 ] ) ;
+                    if ( vals == null )
+                        throw new IllegalArgumentException( "cannot sort " + args[ 1 ] + " words at " + Utils.asHex( args[ 0 ] ) ) ;
+                    Arrays.sort( vals ) ;
+                    memory.store( args[ 0 ], vals ) ;
+                    return 0 ;
+                }
+            } ) ;
+        register( new Standard( 5, "printnum", 3, false )
+            {
+                public int call( int args[], Memory memory, Messenger messenger )
+                {
+                    if ( args[ 1 ] < Character.MIN_RADIX || args[ 1 ] > Character.MAX_RADIX )
+                        throw new IllegalArgumentException( "radix " + args[ 1 ] + " out of range" ) ;
+                    if ( args[ 2 ] > MAX_WIDTH )
+                        throw new IllegalArgumentException( "width " + args[ 2 ] + " larger than " + MAX_WIDTH ) ;
+                    StringBuilder s = new StringBuilder( Integer.toString( args[ 0 ], args[ 1 ] ) ) ;
+                    while ( s.length() < args[ 2 ] )
+                        s.insert( 0, ' ' ) ;
+                    messenger.print( s.toString() ) ;
+                    return 0 ;
+                }
+            } ) ;
+    }
+
+}
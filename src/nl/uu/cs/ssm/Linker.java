@@ -0,0 +1,130 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Linker, combining relocatable modules into one program image.
+ * Modules are placed one after another in the order added, so execution starts with the first one,
+ * and a halt is added at the end.
+ * Addresses within a module are relocated, references to imported labels get the address exported by another module.
+ * A label exported by several modules is taken from the first, which is reported.
+ * Imports are resolved with the exported labels only, a label local to another module is not visible.
+ * The symbol table of the result has all exported labels, and the labels local to a module when not defined before,
+ * the latter only to be shown.
+ */
+public class Linker
+{
+    private Vector<ObjectModule>    modules     = new Vector<ObjectModule>() ;
+    private Vector<String>          names       = new Vector<String>() ;
+
+    public Linker()
+    {
+    }
+
+    /**
+     * Add a module, with a name used in messages.
+     */
+    public void add( String name, ObjectModule m )
+    {
+        names.addElement( name ) ;
+        modules.addElement( m ) ;
+    }
+
+    public ProgramImage link()
+    {
+        int nModules = modules.size() ;
+        int bases[] = new int[ nModules ] ;
+        int codeSize = 0, nInstrs = 0 ;
+        for ( int k = 0 ; k < nModules ; k++ )
+        {
+            ObjectModule m = modules.elementAt( k ) ;
+            bases[ k ] = codeSize ;
+            codeSize += m.getCodeSize() ;
+            nInstrs += m.getNrInstrs() ;
+        }
+
+        Vector<String> messages = new Vector<String>() ;
+        Hashtable<String,Integer> exported = new Hashtable<String,Integer>() ;
+        for ( int k = 0 ; k < nModules ; k++ )
+        {
+            ObjectModule m = modules.elementAt( k ) ;
+            for ( Enumeration<String> e = m.getMessages() ; e.hasMoreElements() ; )
+                messages.addElement( names.elementAt( k ) + ": " + e.nextElement() ) ;
+            for ( int i = 0 ; i < m.getNrExports() ; i++ )
+            {
+                String l = m.getExport( i ) ;
+                if ( exported.containsKey( l ) )
+                    messages.addElement( names.elementAt( k ) + ": label " + l + " already exported" ) ;
+                else
+                    exported.put( l, bases[ k ] + m.getSymbolAddress( l ) ) ;
+            }
+        }
+        Hashtable<String,Integer> symbols = new Hashtable<String,Integer>( exported ) ;
+
+        int code[] = new int[ codeSize + 1 ] ;
+        int instrLocs[] = new int[ nInstrs + 1 ] ;
+        int lineNrs[] = new int[ nInstrs + 1 ] ;
+        String labelNames[] = new String[ nInstrs + 1 ] ;
+        String usedLabels[] = new String[ nInstrs + 1 ] ;
+        MetaInstruction metas[][] = new MetaInstruction[ nInstrs + 1 ][] ;
+        Vector<String> unresolved = new Vector<String>() ;
+        int instrBase = 0 ;
+        for ( int k = 0 ; k < nModules ; k++ )
+        {
+            ObjectModule m = modules.elementAt( k ) ;
+            int base = bases[ k ] ;
+            System.arraycopy( m.code, 0, code, base, m.getCodeSize() ) ;
+            for ( int i = 0 ; i < m.getNrRelocs() ; i++ )
+                code[ base + m.getReloc( i ) ] += base ;
+            for ( int i = 0 ; i < m.getNrImportRefs() ; i++ )
+            {
+                Integer loc = exported.get( m.getImportLabel( i ) ) ;
+                int at = base + m.getImportAt( i ) ;
+                if ( loc == null )
+                {
+                    code[ at ] = Assembler.UNDEFINED ;
+                    unresolved.addElement( m.getImportLabel( i ) ) ;
+                }
+                else
+                    code[ at ] = m.isImportRelative( i ) ? loc - ( base + m.getImportPCOffset( i ) ) : loc ;
+            }
+            for ( int i = 0 ; i < m.getNrInstrs() ; i++ )
+            {
+                instrLocs[ instrBase + i ] = base + m.getInstrLoc( i ) ;
+                lineNrs[ instrBase + i ] = m.getLineNr( i ) ;
+                labelNames[ instrBase + i ] = m.getLabelName( i ) ;
+                usedLabels[ instrBase + i ] = m.getUsedLabel( i ) ;
+                Vector<MetaInstruction> ms = m.getMetaInstructions( i ) ;
+                if ( ms != null )
+                    metas[ instrBase + i ] = ms.toArray( new MetaInstruction[ ms.size() ] ) ;
+            }
+            instrBase += m.getNrInstrs() ;
+            for ( Enumeration<String> e = m.getSymbols() ; e.hasMoreElements() ; )
+            {
+                String l = e.nextElement() ;
+                if ( ! symbols.containsKey( l ) )
+                    symbols.put( l, base + m.getSymbolAddress( l ) ) ;
+            }
+        }
+        if ( unresolved.size() > 0 )
+            messages.addElement( "unresolved labels " + unresolved ) ;
+
+        code[ codeSize ] = Instruction.I_HALT ;
+        instrLocs[ nInstrs ] = codeSize ;
+        return new ProgramImage
+            ( code, instrLocs, lineNrs, labelNames, usedLabels, metas, symbols
+            , messages.toArray( new String[ messages.size() ] )
+            ) ;
+    }
+
+}
@@ -14,11 +14,29 @@ import java.io.UnsupportedEncodingException;
 
 public class Machine
 {
+    /**
+     * Reasons for run to stop
+     */
+    public static final int     STOP_STEPS          = 0 ;
+    public static final int     STOP_HALTED         = 1 ;
+    public static final int     STOP_BREAKPOINT     = 2 ;
+    public static final int     STOP_WATCHPOINT     = 3 ;
+    public static final int     STOP_WATCH_EXPR     = 4 ;
+    public static final int     STOP_NO_CODE        = 5 ;
+    
     protected Memory            memory      ;
     protected Registers         registers   ;
     protected MachineState      state       ;
     
     private Messenger           messenger   ;
+    private CodeSupply          codeSupply  ;
+    private boolean             inBounds[]  ;
+    private RegisterEngine      registerEngine ;
+    private OutputSink          outputSink  ;
+    private InputSource         inputSource ;
+    private Intrinsics          intrinsics  = Intrinsics.getStandard() ;
+    
+    protected long              nrSteps     ;
     
     public Machine( MachineState st, Messenger m )
     {
@@ -32,6 +50,91 @@ public class Machine
         state.reset() ;
         memory = state.getMemory() ;
         registers = state.getRegisters( ) ;
+        nrSteps = 0 ;
+    }
+    
+    /**
+     * @return The number of instructions executed since the last reset
+     */
+    public long getNrSteps()
+    {
+        return nrSteps ;
+    }
+    
+    /**
+     * Reset and load a program.
+     */
+    public void load( ProgramImage image )
+    {
+        reset() ;
+        codeSupply = null ;
+        inBounds = null ;
+        if ( registerEngine != null )
+            registerEngine.reset() ;
+        state.load( image ) ;
+    }
+    
+    /**
+     * Print the output of the print traps to a sink instead of the messenger, the sink is flushed when halting.
+     * Messages still go to the messenger, which should write to the same sink to keep the order.
+     */
+    public void setOutputSink( OutputSink sink )
+    {
+        outputSink = sink ;
+    }
+    
+    /**
+     * Read the input of the input traps from a source instead of asking the messenger.
+     */
+    public void setInputSource( InputSource source )
+    {
+        inputSource = source ;
+    }
+    
+    /**
+     * Use other intrinsics than the standard ones for trap 40.
+     */
+    public void setIntrinsics( Intrinsics i )
+    {
+        intrinsics = i ;
+    }
+    
+    /**
+     * Run by translating the code into register instructions, see RegisterEngine, instead of interpreting it.
+     * Only used by run, when no breakpoints, watchpoints or watch expressions are set.
+     */
+    public void setUseRegisterEngine( boolean b )
+    {
+        registerEngine = b ? new RegisterEngine( this ) : null ;
+    }
+    
+    /**
+     * Skip the check on addresses for the lds, sts, ldl and stl instructions proven to stay within memory by a Verifier,
+     * as long as the program does not write into its code.
+     */
+    public void setInBounds( boolean inBounds[] )
+    {
+        this.inBounds = inBounds ;
+    }
+    
+    private boolean isInBounds()
+    {
+        int pc = state.instrPC ;
+        return inBounds != null && pc < inBounds.length && inBounds[ pc ] && ! memory.isCodeWritten() ;
+    }
+    
+    /**
+     * Run code which still is arriving, asking the supply for the code of each instruction before executing it.
+     * The stack then should be placed beyond the code, see MachineState.setStackBottom.
+     */
+    public void setCodeSupply( CodeSupply s )
+    {
+        codeSupply = s ;
+    }
+    
+    public CodeSupply getCodeSupply()
+    {
+        return codeSupply ;
     }
     
     public MachineState state()
@@ -169,7 +272,7 @@ public class Machine
         return code ;
     }
     
-    public int execBinop( int code, int o1, int o2 )
+    public static int execBinop( int code, int o1, int o2 )
     {
         switch( code )
         {
@@ -272,7 +375,7 @@ public class Machine
         return o1 ;
     }
     
-    public int execUnop( int code, int o1 )
+    public static int execUnop( int code, int o1 )
     {
         switch( code )
         {
@@ -288,10 +391,182 @@ public class Machine
         return o1 ;
     }
     
+    /**
+     * Read from the input source for an input trap.
+     * When that fails, the value read is 0, or -1 for a character, or the empty string.
+     */
+    private int[] readInput( int trap )
+    {
+        try
+        {
+            switch ( trap )
+            {
+                case Instruction.TR_IN_INT :
+                    return new int[] { inputSource.readInt() } ;
+                case Instruction.TR_IN_CHAR :
+                    return new int[] { inputSource.readChar() } ;
+                default :
+                    return inputSource.readCharArray() ;
+            }
+        }
+        catch ( IOException ex )
+        {
+            messenger.println( "Error: " + ex.getMessage() + "." ) ;
+            return trap == Instruction.TR_IN_CHAR_ARRAY ? new int[ 0 ] : new int[] { trap == Instruction.TR_IN_CHAR ? -1 : 0 } ;
+        }
+    }
+    
+    /**
+     * Call an intrinsic with its arguments from the stack.
+     * When it fails its arguments are popped and 0 is pushed as result, if it has one.
+     * An unknown code is reported only, as the number of arguments to pop is unknown.
+     */
+    private void callIntrinsic( int code )
+    {
+        Intrinsic in = intrinsics.get( code ) ;
+        if ( in == null )
+        {
+            messenger.println( "Error: no intrinsic " + code + "." ) ;
+            return ;
+        }
+        int args[] = new int[ in.getNrArgs() ] ;
+        for ( int i = args.length - 1 ; i >= 0 ; i-- )
+            args[ i ] = pop() ;
+        int res ;
+        try
+        {
+            res = in.call( args, memory, messenger ) ;
+        }
+        catch ( RuntimeException ex )
+        {
+            // an intrinsic registered as service may fail in any way
+            String msg = ex instanceof IllegalArgumentException ? ex.getMessage() : ex.toString() ;
+            messenger.println( "Error: intrinsic " + in.getName() + ", " + msg + "." ) ;
+            res = 0 ;
+        }
+        if ( in.hasResult() )
+            push( res ) ;
+    }
+    
+    /**
+     * Print the characters from addr up to the first 0.
+     */
+    private void printString( int addr )
+    {
+        int len = memory.lengthOfString( addr ) ;
+        int chars[] = len < 0 ? null : memory.load( addr, len ) ;
+        if ( chars == null )
+            return ;
+        if ( outputSink != null )
+        {
+            for ( int c : chars )
+                outputSink.printCodePoint( c ) ;
+            return ;
+        }
+        StringBuilder s = new StringBuilder() ;
+        try
+        {
+            for ( int c : chars )
+                s.append( Utils.codePointToString( c ) ) ;
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            messenger.println( "Error: UTF-32 encoding missing." ) ;
+        }
+        messenger.print( s.toString() ) ;
+    }
+    
+    /**
+     * Put characters on the heap, followed by a 0.
+     * @return The address of the first, 0 if they do not fit
+     */
+    private int storeOnHeap( int chars[] )
+    {
+        int addr = registers.getHP() ;
+        int cells[] = new int[ chars.length + 1 ] ;
+        System.arraycopy( chars, 0, cells, 0, chars.length ) ;
+        if ( ! memory.store( addr, cells ) )
+            return 0 ;
+        registers.adjustHP( cells.length ) ;
+        if ( cells.length == 1 )
+            memory.setAnnotationAt( addr, new MemoryAnnotation( "begin / end", null ) ) ;
+        else
+        {
+            memory.setAnnotationAt( addr, new MemoryAnnotation( "begin", null ) ) ;
+            memory.setAnnotationAt( addr + cells.length - 1, new MemoryAnnotation( "end", null ) ) ;
+        }
+        return addr ;
+    }
+    
     public void halt()
     {
         state.setHalted() ;
         messenger.println( "machine halted" ) ;
+        if ( outputSink != null )
+            outputSink.flush() ;
+    }
+    
+    /**
+     * Count a breakpoint at the current PC, if any.
+     * @return True if execution should stop before the instruction at PC
+     */
+    public boolean breakpointHitAtPC()
+    {
+        int pc = registers.getPC() ;
+        return state.breakpoints.isSetAt( pc ) && state.breakpoints.hit( pc ) ;
+    }
+    
+    /**
+     * Execute at most maxSteps instructions, or without limit when maxSteps is negative.
+     * A breakpoint at the PC at which execution resumes is passed, so a run started from a breakpoint continues.
+     * @return The reason for stopping, one of the STOP_ constants
+     */
+    public int run( long maxSteps )
+    {
+        if ( registerEngine != null && registerEngine.canRun() )
+            return registerEngine.run( maxSteps ) ;
+        for ( long n = 0 ; n != maxSteps ; n++ )
+        {
+            if ( n > 0 && breakpointHitAtPC() )
+                return STOP_BREAKPOINT ;
+            if ( codeSupply != null && ! codeSupply.awaitCode( registers.getPC() ) )
+                return STOP_NO_CODE ;
+            executeOne() ;
+            if ( state.isHalted )
+                return STOP_HALTED ;
+            if ( memory.getWatchpoints().isHit() )
+                return STOP_WATCHPOINT ;
+            if ( watchExpressionChanged() )
+                return STOP_WATCH_EXPR ;
+        }
+        return STOP_STEPS ;
+    }
+    
+    /**
+     * @return True if the last executed instruction accessed a watched memory cell
+     */
+    public boolean watchpointHit()
+    {
+        return memory.getWatchpoints().isHit() ;
+    }
+    
+    public String watchpointHitMessage()
+    {
+        return memory.getWatchpoints().getHitDescription( state.instrPC ) ;
+    }
+    
+    /**
+     * Check the watch expressions, to be called after each step.
+     * @return True if one of them changed value
+     */
+    public boolean watchExpressionChanged()
+    {
+        return ! state.watchExpressions.isEmpty() && state.watchExpressions.check() ;
+    }
+    
+    public String watchExpressionMessage()
+    {
+        return state.watchExpressions.getChangeDescription() ;
     }
     
     public void executeOne()
@@ -299,6 +574,8 @@ public class Machine
         if ( state.isHalted )
             return ;
 
+        memory.getWatchpoints().clearHit() ;
+        nrSteps++ ;
         int code = fetchNextInstr() ;
         //System.out.println( "exec1 " + state ) ;
         int tmp1, tmp2, tmp3, addr, offset, size ;
@@ -356,7 +633,10 @@ public class Machine
                         break ;
                         
                     case Instruction.I_LDS :
-                        push( registers.getRegDisplInd( Registers.SP, dir(state.inlineOpnds[ 0 ]) ) ) ;
+                        if ( isInBounds() )
+                            push( memory.getAtInBounds( registers.getRegDispl( Registers.SP, dir(state.inlineOpnds[ 0 ]) ) ) ) ;
+                        else
+                            push( registers.getRegDisplInd( Registers.SP, dir(state.inlineOpnds[ 0 ]) ) ) ;
                         break ;
                         
                     case Instruction.I_LDMS :
@@ -376,7 +656,10 @@ public class Machine
                         break ;
                         
                     case Instruction.I_LDL :
-                        push( registers.getRegDisplInd( Registers.MP, dir(state.inlineOpnds[ 0 ]) ) ) ;
+                        if ( isInBounds() )
+                            push( memory.getAtInBounds( registers.getRegDispl( Registers.MP, dir(state.inlineOpnds[ 0 ]) ) ) ) ;
+                        else
+                            push( registers.getRegDisplInd( Registers.MP, dir(state.inlineOpnds[ 0 ]) ) ) ;
                         break ;
                         
                     case Instruction.I_LDML :
@@ -420,7 +703,10 @@ public class Machine
                         
                     case Instruction.I_STS :
                     	tmp1 = registers.getRegDispl( Registers.SP, dir(state.inlineOpnds[ 0 ]) ) ;
-                        memory.setAt( tmp1, pop() ) ;
+                    	if ( isInBounds() )
+                    	    memory.setAtInBounds( tmp1, pop() ) ;
+                    	else
+                            memory.setAt( tmp1, pop() ) ;
                         break ;
                         
                     case Instruction.I_STMS :
@@ -439,7 +725,10 @@ public class Machine
                         break ;
                         
                     case Instruction.I_STL :
-                    	registers.setRegDisplInd( Registers.MP, dir(state.inlineOpnds[ 0 ]), pop() ) ;
+                    	if ( isInBounds() )
+                    	    memory.setAtInBounds( registers.getRegDispl( Registers.MP, dir(state.inlineOpnds[ 0 ]) ), pop() ) ;
+                    	else
+                    	    registers.setRegDisplInd( Registers.MP, dir(state.inlineOpnds[ 0 ]), pop() ) ;
                         break ;
                         
                     case Instruction.I_STML :
@@ -480,9 +769,17 @@ public class Machine
                         switch( state.inlineOpnds[ 0 ] )
                         {
                             case Instruction.TR_PR_INT :
-                                messenger.println( "" + pop() ) ;
+                                if ( outputSink != null )
+                                    outputSink.printlnInt( pop() ) ;
+                                else
+                                    messenger.println( "" + pop() ) ;
                                 break ;
                             case Instruction.TR_PR_CHAR :
+                                if ( outputSink != null )
+                                {
+                                    outputSink.printCodePoint( pop() ) ;
+                                    break ;
+                                }
                                 try
                                 {
                                     messenger.print( "" + Utils.codePointToString(pop()) ) ;
@@ -493,19 +790,43 @@ public class Machine
                                 }
                                 break;
                             case Instruction.TR_IN_INT :
-                                push(messenger.promptInt());
+                                push(inputSource != null ? readInput(Instruction.TR_IN_INT)[0] : messenger.promptInt());
                                 break;
                             case Instruction.TR_IN_CHAR :
-                                push(messenger.promptChar());
+                                push(inputSource != null ? readInput(Instruction.TR_IN_CHAR)[0] : messenger.promptChar());
                                 break;
                             case Instruction.TR_IN_CHAR_ARRAY :
                                 push(0);
-                                int[] chars = messenger.promptCharArray();
+                                int[] chars = inputSource != null ? readInput(Instruction.TR_IN_CHAR_ARRAY) : messenger.promptCharArray();
                                 for (int i = chars.length - 1; i >= 0; i--)
                                 {
                                     push(chars[i]);
                                 }
                                 break;
+                            case Instruction.TR_MEM_COPY :
+                                tmp1 = pop() ;
+                                tmp2 = pop() ;
+                                memory.copy( tmp2, pop(), tmp1 ) ;
+                                break ;
+                            case Instruction.TR_MEM_SET :
+                                tmp1 = pop() ;
+                                tmp2 = pop() ;
+                                memory.fill( pop(), tmp1, tmp2 ) ;
+                                break ;
+                            case Instruction.TR_MEM_COMPARE :
+                                tmp1 = pop() ;
+                                tmp2 = pop() ;
+                                push( memory.compare( pop(), tmp2, tmp1 ) ) ;
+                                break ;
+                            case Instruction.TR_PR_STRING :
+                                printString( pop() ) ;
+                                break ;
+                            case Instruction.TR_INTRINSIC :
+                                callIntrinsic( pop() ) ;
+                                break ;
+                            case Instruction.TR_IN_LINE_HEAP :
+                                push( storeOnHeap( inputSource != null ? readInput( Instruction.TR_IN_CHAR_ARRAY ) : messenger.promptCharArray() ) ) ;
+                                break ;
                             case Instruction.TR_FILE_OPEN_READ :
                             case Instruction.TR_FILE_OPEN_WRITE :
                                 StringBuilder filename = new StringBuilder();
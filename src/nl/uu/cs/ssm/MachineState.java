@@ -9,8 +9,6 @@
 package nl.uu.cs.ssm ;
 
 import java.io.Closeable;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Enumeration;
@@ -19,6 +17,7 @@ import java.util.EventListener;
 public class MachineState extends Model
 {
     protected int           stackBottom     ;
+    protected int           fixedStackBottom = -1 ;
     protected int           stackGrowthDir  ;
     
     private final int startAddressOfHeap;
@@ -31,7 +30,10 @@ public class MachineState extends Model
     protected Memory		memory			;
     protected Registers		registers		;
     protected MemoryUser    memoryUser      ;
+    protected Breakpoints   breakpoints     ;
+    protected WatchExpressions watchExpressions ;
     protected ArrayList<Closeable> filePtrs;
+    protected FileSupply    fileSupply      = new DiskFiles() ;
     
     public    boolean       isHalted        ;
     
@@ -39,6 +41,8 @@ public class MachineState extends Model
     {
     	memory = new Memory( initMemCapacity, m ) ;
     	registers = new Registers( memory, m ) ;
+    	breakpoints = new Breakpoints() ;
+    	watchExpressions = new WatchExpressions() ;
     	stackGrowthDir = 1 ;
     	this.startAddressOfHeap = startAddressOfHeap;
     	filePtrs = new ArrayList<Closeable>();
@@ -68,17 +72,39 @@ public class MachineState extends Model
     {
 		memory.reset() ;
 		registers.reset() ;
+		breakpoints.clearAll() ;
+		watchExpressions.clearAll() ;
 		resetToInitialState() ;
     }
     
+    /**
+     * Put the code of a program in memory, replacing the current code, and reset to the initial state.
+     */
+    public void load( ProgramImage image )
+    {
+        memory.loadCode( image.code, image.code.length ) ;
+        resetToInitialState() ;
+    }
+    
     public void resetToInitialState()
     {
         registers.setPC( 0 ) ;
-        stackBottom = memory.getUsedForCode() + 16 ;
+        stackBottom = fixedStackBottom >= 0 ? fixedStackBottom : memory.getUsedForCode() + 16 ;
         registers.setSP( stackBottom - stackGrowthDir ) ;
         registers.setMP( registers.getSP() ) ;
         registers.setHP(startAddressOfHeap);
         isHalted = false ;
+        breakpoints.resetHitCounts() ;
+        memory.getWatchpoints().clearHit() ;
+        watchExpressions.resample() ;
+        closeFiles() ;
+    }
+
+    /**
+     * Close the files the program left open, and forget all file pointers.
+     */
+    public void closeFiles()
+    {
         try
         {
             for(Closeable f : filePtrs)
@@ -95,6 +121,19 @@ public class MachineState extends Model
         }
         filePtrs = new ArrayList<Closeable>();
     }
+
+    /**
+     * Open the files of the file traps from a supply other than the disk, for the files opened next.
+     */
+    public void setFileSupply( FileSupply files )
+    {
+        fileSupply = files ;
+    }
+
+    public FileSupply getFileSupply()
+    {
+        return fileSupply ;
+    }
     
     public int dir( int v )
     {
@@ -116,11 +155,30 @@ public class MachineState extends Model
     	return memory ;
     }
     
+    public Breakpoints getBreakpoints()
+    {
+    	return breakpoints ;
+    }
+    
+    public WatchExpressions getWatchExpressions()
+    {
+    	return watchExpressions ;
+    }
+    
     public int getStackBottom()
     {
     	return stackBottom ;
     }
     
+    /**
+     * Start the stack at a fixed address instead of just after the code, or again after the code when -1.
+     * Takes effect on the next reset.
+     */
+    public void setStackBottom( int addr )
+    {
+    	fixedStackBottom = addr ;
+    }
+    
     public int getStartAddressOfHeap() {
     	
     	return startAddressOfHeap;
@@ -138,7 +196,7 @@ public class MachineState extends Model
     
     public int stackTop()
     {
-        return registers.getRegInd( Registers.SP ) ;
+        return memory.peekAt( registers.getSP() ) ;
     }
     
     public int getSR( )
@@ -187,7 +245,7 @@ public class MachineState extends Model
     }
 
     /**
-     * Opens a file
+     * Opens a file of the file supply, on disk unless set otherwise
      * @param fname Name of the file
      * @param readOnly True if the file should be open for reading, false otherwise
      * @return The 'file pointer' of the file
@@ -196,10 +254,10 @@ public class MachineState extends Model
     public int openFile(String fname, boolean readOnly) throws IOException {
         if (readOnly)
         {
-            filePtrs.add(new FileReader(fname));
+            filePtrs.add(fileSupply.openForReading(fname));
         }
         else {
-            filePtrs.add(new FileWriter(fname));
+            filePtrs.add(fileSupply.openForWriting(fname));
         }
         return filePtrs.size() - 1;
     }
@@ -211,7 +269,7 @@ public class MachineState extends Model
      * @throws IOException
      */
     public int readFromFile(int index) throws IOException {
-        FileReader file = (FileReader) filePtrs.get(index);
+        InputFile file = (InputFile) filePtrs.get(index);
         int i16 = file.read(); // UTF-16 as int
         char c16 = (char)i16; // UTF-16
         if (Character.isHighSurrogate(c16))
@@ -231,8 +289,12 @@ public class MachineState extends Model
      * @throws IOException
      */
     public int writeToFile(int n, int index) throws IOException {
-        FileWriter file = (FileWriter) filePtrs.get(index);
-        file.write(Utils.codePointToString(n));
+        OutputSink file = (OutputSink) filePtrs.get(index);
+        file.printCodePoint(n);
+        if (file.checkError())
+        {
+            throw new IOException("cannot write to file");
+        }
         return index;
     }
 
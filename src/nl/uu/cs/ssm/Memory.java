@@ -8,6 +8,7 @@
 
 package nl.uu.cs.ssm ;
 
+import java.util.Arrays;
 import java.util.Hashtable;
 
 public class Memory extends AbstractMemoryCellModel
@@ -16,6 +17,10 @@ public class Memory extends AbstractMemoryCellModel
     private int             cells[]         ;
     private Hashtable<Integer,MemoryAnnotation>       annotations     ;
     private int             nUsedForCode    ;
+    private boolean         codeWritten     ;
+    
+    protected byte          watchedPages[]  ;
+    private Watchpoints     watchpoints     ;
     
     private Messenger messenger             ;
     
@@ -27,12 +32,22 @@ public class Memory extends AbstractMemoryCellModel
                
         messenger = m ;
         
+        watchedPages = new byte[ nrPagesFor( cells.length ) ] ;
+        watchpoints = new Watchpoints( this ) ;
+        
         reset() ;
     }
     
+    private static int nrPagesFor( int nCells )
+    {
+        return ( nCells + Watchpoints.PAGE_SIZE - 1 ) >> Watchpoints.PAGE_SHIFT ;
+    }
+    
     public void reset()
     {
+    	watchpoints.clearAll() ;
     	nUsedForCode = 0 ;
+    	codeWritten = false ;
     	annotations = new Hashtable<Integer,MemoryAnnotation>() ;
         for ( int i = 0 ; i < cells.length ; i++ )
             setAt( i, 0 ) ;
@@ -43,6 +58,11 @@ public class Memory extends AbstractMemoryCellModel
         return cells.length ;
     }
     
+    public Watchpoints getWatchpoints()
+    {
+        return watchpoints ;
+    }
+    
     public int getUsedForCode()
     {
         return nUsedForCode ;
@@ -62,6 +82,145 @@ public class Memory extends AbstractMemoryCellModel
         return ! res ;
     }
     
+    /**
+     * Check the n cells from addr at once, complaining about the first outside memory.
+     */
+    private boolean checkWithinMemory( int addr, int n )
+    {
+        if ( n < 0 )
+        {
+            messenger.println( "attempt to access " + n + " locations" ) ;
+            return false ;
+        }
+        return n == 0 || checkWithinMemory( addr ) && checkWithinMemory( addr + n - 1 ) ;
+    }
+    
+    /**
+     * @return True if the n cells from addr must be accessed one by one, for watchpoints or for listeners
+     */
+    private boolean isObserved( int addr, int n )
+    {
+        if ( getListeners().hasMoreElements() )
+            return true ;
+        for ( int p = addr >> Watchpoints.PAGE_SHIFT ; p <= ( addr + n - 1 ) >> Watchpoints.PAGE_SHIFT ; p++ )
+            if ( watchedPages[ p ] != 0 )
+                return true ;
+        return false ;
+    }
+    
+    /**
+     * Copy n cells, also when the ranges overlap, checking the ranges once.
+     * @return False if not within memory
+     */
+    public boolean copy( int from, int to, int n )
+    {
+        if ( ! checkWithinMemory( from, n ) || ! checkWithinMemory( to, n ) )
+            return false ;
+        if ( n == 0 )
+            return true ;
+        if ( isObserved( from, n ) || isObserved( to, n ) )
+            return store( to, load( from, n ) ) ;
+        System.arraycopy( cells, from, cells, to, n ) ;
+        if ( to < nUsedForCode )
+            codeWritten = true ;
+        return true ;
+    }
+    
+    /**
+     * Set n cells to v, checking the range once.
+     * @return False if not within memory
+     */
+    public boolean fill( int addr, int n, int v )
+    {
+        if ( ! checkWithinMemory( addr, n ) )
+            return false ;
+        if ( n == 0 )
+            return true ;
+        if ( isObserved( addr, n ) )
+        {
+            for ( int i = 0 ; i < n ; i++ )
+                setAtInBounds( addr + i, v ) ;
+            return true ;
+        }
+        Arrays.fill( cells, addr, addr + n, v ) ;
+        if ( addr < nUsedForCode )
+            codeWritten = true ;
+        return true ;
+    }
+    
+    /**
+     * Compare n cells as signed numbers, checking the ranges once.
+     * @return -1, 0 or 1 for the first cells differing, 0 also if not within memory
+     */
+    public int compare( int a, int b, int n )
+    {
+        if ( n == 0 || ! checkWithinMemory( a, n ) || ! checkWithinMemory( b, n ) )
+            return 0 ;
+        boolean observed = isObserved( a, n ) || isObserved( b, n ) ;
+        for ( int i = 0 ; i < n ; i++ )
+        {
+            int va = observed ? getAtInBounds( a + i ) : cells[ a + i ] ;
+            int vb = observed ? getAtInBounds( b + i ) : cells[ b + i ] ;
+            if ( va != vb )
+                return va < vb ? -1 : 1 ;
+        }
+        return 0 ;
+    }
+    
+    /**
+     * @return The n cells from addr, checking the range once, null if not within memory
+     */
+    public int[] load( int addr, int n )
+    {
+        if ( ! checkWithinMemory( addr, n ) )
+            return null ;
+        if ( n == 0 )
+            return new int[ 0 ] ;
+        if ( ! isObserved( addr, n ) )
+            return Arrays.copyOfRange( cells, addr, addr + n ) ;
+        int res[] = new int[ n ] ;
+        for ( int i = 0 ; i < n ; i++ )
+            res[ i ] = getAtInBounds( addr + i ) ;
+        return res ;
+    }
+    
+    /**
+     * Set the cells from addr to vals, checking the range once.
+     * @return False if not within memory
+     */
+    public boolean store( int addr, int vals[] )
+    {
+        int n = vals.length ;
+        if ( n == 0 )
+            return true ;
+        if ( ! checkWithinMemory( addr, n ) )
+            return false ;
+        if ( isObserved( addr, n ) )
+        {
+            for ( int i = 0 ; i < n ; i++ )
+                setAtInBounds( addr + i, vals[ i ] ) ;
+            return true ;
+        }
+        System.arraycopy( vals, 0, cells, addr, n ) ;
+        if ( addr < nUsedForCode )
+            codeWritten = true ;
+        return true ;
+    }
+    
+    /**
+     * @return The nr of cells from addr up to the first being 0, -1 if there is none within memory
+     */
+    public int lengthOfString( int addr )
+    {
+        if ( ! checkWithinMemory( addr ) )
+            return -1 ;
+        for ( int i = addr ; i < cells.length ; i++ )
+            if ( cells[ i ] == 0 )
+                return i - addr ;
+        checkWithinMemory( cells.length ) ;
+        return -1 ;
+    }
+    
     class UndoMemoryModification implements Modification
     {
     	private int offset, value ;
@@ -81,11 +240,21 @@ public class Memory extends AbstractMemoryCellModel
     public void setAt( int addr, int v )
     {
         if ( checkWithinMemory( addr ) )
-        {
-            int oldv = cells[ addr ] ;
-            cells[ addr ] = v ;
-            fireCellChange( this, addr, oldv, new UndoMemoryModification( addr, oldv ) ) ;
-        }
+            setAtInBounds( addr, v ) ;
+    }
+    
+    /**
+     * Set the value at an address known to be within memory, see Verifier.
+     */
+    protected void setAtInBounds( int addr, int v )
+    {
+        int oldv = cells[ addr ] ;
+        cells[ addr ] = v ;
+        if ( addr < nUsedForCode )
+            codeWritten = true ;
+        if ( watchedPages[ addr >> Watchpoints.PAGE_SHIFT ] != 0 )
+            watchpoints.written( addr, oldv, v ) ;
+        fireCellChange( this, addr, oldv, new UndoMemoryModification( addr, oldv ) ) ;
     }
     
     public void setAt( int addr, String v )
@@ -95,27 +264,49 @@ public class Memory extends AbstractMemoryCellModel
     
     public int getAt( int addr )
     {
-        int res = 0 ;
-        if ( checkWithinMemory( addr ) )
-        {
-            res = cells[ addr ] ;
-        }
+        return checkWithinMemory( addr ) ? getAtInBounds( addr ) : 0 ;
+    }
+    
+    /**
+     * Get the value at an address known to be within memory, see Verifier.
+     */
+    protected int getAtInBounds( int addr )
+    {
+        int res = cells[ addr ] ;
+        if ( watchedPages[ addr >> Watchpoints.PAGE_SHIFT ] != 0 )
+            watchpoints.read( addr, res ) ;
         return res ;
     }
     
+    /**
+     * @return True if the program wrote into its code since it was loaded
+     */
+    public boolean isCodeWritten()
+    {
+        return codeWritten ;
+    }
+    
+    /**
+     * Get the value at addr for display, without complaining about addresses outside memory and without triggering watchpoints.
+     */
+    public int peekAt( int addr )
+    {
+        return ( addr >= 0 && addr < cells.length ) ? cells[ addr ] : 0 ;
+    }
+    
     public int[] getAt( int addr, int len )
     {
         int res[] = new int[ len ] ;
-        for ( int i = 0 ; i < len && checkWithinMemory( addr + i ) ; i++ )
+        for ( int i = 0 ; i < len ; i++ )
         {
-            res[ i ] = cells[ addr + i ] ;
+            res[ i ] = peekAt( addr + i ) ;
         }
         return res ;
     }
     
     public String getAsHexAt( int addr )
     {
-        return Utils.asHex( getAt( addr ) ) ;
+        return Utils.asHex( peekAt( addr ) ) ;
     }
     
     class UndoAnnotationModification implements Modification
@@ -165,13 +356,15 @@ public class Memory extends AbstractMemoryCellModel
             int newCells[] = new int[ 2 * (nCells + 10) + cells.length ] ;
             System.arraycopy( cells, 0, newCells, 0, cells.length ) ;
             cells = newCells ;
+            byte newWatchedPages[] = new byte[ nrPagesFor( cells.length ) ] ;
+            System.arraycopy( watchedPages, 0, newWatchedPages, 0, watchedPages.length ) ;
+            watchedPages = newWatchedPages ;
         }
     }
     
     public void deleteAt( int pos, int n )
     {
-        for( int i = pos + n ; i < nUsedForCode ; i++ )
-            cells[ i-n ] = cells[ i ] ;
+        System.arraycopy( cells, pos + n, cells, pos, nUsedForCode - pos - n ) ;
         nUsedForCode -= n ;
     }
     
@@ -180,12 +373,8 @@ public class Memory extends AbstractMemoryCellModel
     	// Disable the automated expansion of the memory since the start address of the heap is fixed 
         // in MachineState.java and because the references to cells in the heap cannot change. 
         //ensureCapacity( n ) ;
-        for( int i = nUsedForCode - 1 ; i >= pos ; i-- )
-        {
-            cells[ i+n ] = cells[ i ] ;
-        }
-        for( int i = 0 ; i < n ; i++ )
-            cells[ i+pos ] = 0 ;
+        System.arraycopy( cells, pos, cells, pos + n, nUsedForCode - pos ) ;
+        Arrays.fill( cells, pos, pos + n, 0 ) ;
         nUsedForCode += n ;
     }
     
@@ -199,8 +388,30 @@ public class Memory extends AbstractMemoryCellModel
     
     public void copyAt( int pos, int[] vals )
     {
-        for( int i = 0 ; i < vals.length ; i++ )
-            cells[ i+pos ] = vals[ i ] ;
+        System.arraycopy( vals, 0, cells, pos, vals.length ) ;
+    }
+    
+    /**
+     * Replace the code by the first size cells of code, in one copy and without notifying listeners.
+     */
+    public void loadCode( int[] code, int size )
+    {
+        ensureCapacity( size - nUsedForCode ) ;
+        System.arraycopy( code, 0, cells, 0, size ) ;
+        if ( size < nUsedForCode )
+            Arrays.fill( cells, size, nUsedForCode, 0 ) ;
+        nUsedForCode = size ;
+        codeWritten = false ;
+    }
+    
+    /**
+     * Extend the code with the cells of code following the code loaded so far, up to size.
+     */
+    public void appendCode( int[] code, int size )
+    {
+        ensureCapacity( size - nUsedForCode ) ;
+        System.arraycopy( code, nUsedForCode, cells, nUsedForCode, size - nUsedForCode ) ;
+        nUsedForCode = size ;
     }
     
     public void insertAt( int pos, int[] vals )
@@ -0,0 +1,107 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Files kept in memory, for a single machine, so runs in parallel do not share files and the disk is not used.
+ * <p>
+ * Files to be read are put in beforehand, for example from the fixtures of a test.
+ * A file written becomes available when it is closed, which MachineState.closeFiles does for the files still open,
+ * and then can be read by the program again or be compared by the test.
+ */
+public class MemoryFiles
+	implements FileSupply
+{
+    private Hashtable<String,byte[]>    files   = new Hashtable<String,byte[]>() ;
+    private Charset                     charset ;
+
+    public MemoryFiles()
+    {
+        this( Charset.defaultCharset() ) ;
+    }
+
+    /**
+     * @param cs The charset of the contents as text
+     */
+    public MemoryFiles( Charset cs )
+    {
+        charset = cs ;
+    }
+
+    public void put( String name, byte contents[] )
+    {
+        files.put( name, contents ) ;
+    }
+
+    public void put( String name, String contents )
+    {
+        put( name, contents.getBytes( charset ) ) ;
+    }
+
+    /**
+     * Put in a copy of a file on disk.
+     */
+    public void put( String name, Path file ) throws IOException
+    {
+        put( name, Files.readAllBytes( file ) ) ;
+    }
+
+    /**
+     * @return The contents of a file, null if not there
+     */
+    public byte[] get( String name )
+    {
+        return files.get( name ) ;
+    }
+
+    /**
+     * @return The contents of a file as text, null if not there
+     */
+    public String getText( String name )
+    {
+        byte contents[] = get( name ) ;
+        return contents == null ? null : new String( contents, charset ) ;
+    }
+
+    public Enumeration<String> getNames()
+    {
+        return files.keys() ;
+    }
+
+    public InputFile openForReading( String name ) throws IOException
+    {
+        byte contents[] = get( name ) ;
+        if ( contents == null )
+            throw new FileNotFoundException( name ) ;
+        return new InputFile( ByteBuffer.wrap( contents ), charset ) ;
+    }
+
+    public OutputSink openForWriting( final String name )
+    {
+        put( name, new byte[ 0 ] ) ;
+        return new OutputSink( new ByteArrayOutputStream()
+            {
+                public void close()
+                {
+                    put( name, toByteArray() ) ;
+                }
+            }, charset ) ;
+    }
+
+}
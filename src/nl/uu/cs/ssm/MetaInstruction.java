@@ -35,14 +35,29 @@ public abstract class MetaInstruction
     }
     
     protected Instruction instruction ;
+    private Vector<String> args ;
     
-    private MetaInstruction( Instruction instr )
+    private MetaInstruction( Instruction instr, Vector<String> args )
     {
         instruction = instr ;
+        this.args = args ;
     }
     
     public abstract void exec( MachineState machineState ) ;
 
+    public Instruction getInstruction()
+    {
+        return instruction ;
+    }
+
+    /**
+     * @return The arguments as written, from which the meta instruction can be instantiated again
+     */
+    public Vector<String> getArgs()
+    {
+        return args ;
+    }
+
     private static class Annote extends MetaInstruction
     {
         int register ;
@@ -50,9 +65,9 @@ public abstract class MetaInstruction
         Color color ;
         String text ;
         
-        Annote( Instruction i, int r, int l, int h, Color c, String t )
+        Annote( Instruction i, Vector<String> args, int r, int l, int h, Color c, String t )
         {
-            super( i ) ;
+            super( i, args ) ;
             register = r ;
             loDispl = l ;
             hiDispl = h ;
@@ -85,7 +100,7 @@ public abstract class MetaInstruction
         String t = args.elementAt(4) ;
         
         if ( r >= 0 && l <= h && c != null && t != null )
-            return new Annote( instr, r, l, h, c, t ) ;
+            return new Annote( instr, args, r, l, h, c, t ) ;
         else
             return null ;
     }
@@ -0,0 +1,97 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Hashtable;
+
+/**
+ * A relocatable program image, assembled as if placed at address 0, to be combined with other modules by a Linker.
+ * Next to the image it tells which labels it exports, which code words hold an address within the module
+ * and thus must be relocated, and which code words refer to labels imported from other modules.
+ */
+public class ObjectModule extends ProgramImage
+{
+    private String      exports[]           ;
+    private int         relocs[]            ;
+    private String      importLabels[]      ;
+    private int         importAts[]         ;
+    private int         importPCOffsets[]   ;
+    private boolean     importIsRelative[]  ;
+
+    protected ObjectModule
+        ( int code[], int instrLocs[], int lineNrs[], String labelNames[], String usedLabels[]
+        , MetaInstruction metas[][], Hashtable<String,Integer> symbols, String messages[]
+        , String exports[], int relocs[]
+        , String importLabels[], int importAts[], int importPCOffsets[], boolean importIsRelative[]
+        )
+    {
+        super( code, instrLocs, lineNrs, labelNames, usedLabels, metas, symbols, messages ) ;
+        this.exports = exports ;
+        this.relocs = relocs ;
+        this.importLabels = importLabels ;
+        this.importAts = importAts ;
+        this.importPCOffsets = importPCOffsets ;
+        this.importIsRelative = importIsRelative ;
+    }
+
+    public int getNrExports()
+    {
+        return exports.length ;
+    }
+
+    public String getExport( int i )
+    {
+        return exports[ i ] ;
+    }
+
+    public int getNrRelocs()
+    {
+        return relocs.length ;
+    }
+
+    /**
+     * @return The address of a code word holding an address within the module
+     */
+    public int getReloc( int i )
+    {
+        return relocs[ i ] ;
+    }
+
+    public int getNrImportRefs()
+    {
+        return importLabels.length ;
+    }
+
+    public String getImportLabel( int i )
+    {
+        return importLabels[ i ] ;
+    }
+
+    /**
+     * @return The address of the code word to hold the value of the i'th imported label reference
+     */
+    public int getImportAt( int i )
+    {
+        return importAts[ i ] ;
+    }
+
+    /**
+     * @return The address a relative reference is relative to
+     */
+    public int getImportPCOffset( int i )
+    {
+        return importPCOffsets[ i ] ;
+    }
+
+    public boolean isImportRelative( int i )
+    {
+        return importIsRelative[ i ] ;
+    }
+
+}
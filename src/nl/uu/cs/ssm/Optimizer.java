@@ -0,0 +1,564 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Peephole optimizer, removing wasteful instruction sequences from an assembled program:
+ * <pre>
+ * ldc 0 ; add (also sub, or, xor, lsl, lsr, rol, ror)
+ * ldc 1 ; mul (also div)
+ * link 0 ; unlink
+ * ldl n ; stl n
+ * push ; ajs -1        where push is ldc, ldl, lds, ldla, ldsa or ldr
+ * push ; ajs -n        becomes ajs -(n-1)
+ * ajs 0, nop
+ * bra to the next instruction
+ * </pre>
+ * A sequence is only replaced when control cannot enter it halfway, so none but its first instruction may be a branch target or labeled.
+ * Meta instructions after a removed sequence are moved to the instruction before it, where the stack is the same,
+ * and a sequence is kept when that is not possible.
+ * Branches, labels used as operand and the symbol table are adjusted to the new addresses.
+ * Addresses computed by the program itself cannot be adjusted, so code using the PC register is left as it is.
+ * <p>
+ * With folding switched on, also constant expressions are computed as the machine would,
+ * <pre>
+ * ldc a ; ldc b ; binop    becomes ldc (a binop b)
+ * ldc a ; unop             becomes ldc (unop a)
+ * ldc c ; brt/brf          becomes bra, or is removed when the branch is not taken
+ * </pre>
+ * and instructions which cannot be reached from the start are removed.
+ * Code is taken to be reached by the flow of control from address 0 and from labels used as operand, for jsr.
+ */
+public class Optimizer
+{
+    private ProgramImage        image       ;
+
+    private int                 nInstrs     ;
+    private Instruction         instrs[]    ;
+    private int                 opnds[][]   ;
+    private boolean             keep[]      ;
+    private boolean             isTarget[]  ;
+    private String              labelNames[] ;
+    private String              usedLabels[] ;
+    private boolean             labelOpnd[] ;
+    private Vector<MetaInstruction> metas[] ;
+
+    private int                 nRemoved    ;
+    private int                 nRewritten  ;
+    private int                 nCellsSaved ;
+    private boolean             fold        ;
+    private int                 nFolded     ;
+    private int                 nUnreachable ;
+    private String              notDoneReason ;
+
+    public Optimizer( ProgramImage image )
+    {
+        this.image = image ;
+    }
+
+    /**
+     * Also fold constants and remove unreachable code.
+     */
+    public void setFolding( boolean b )
+    {
+        fold = b ;
+    }
+
+    /**
+     * @return The optimized program, the program itself when nothing could be done
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public ProgramImage optimize()
+    {
+        nInstrs = image.getNrInstrs() ;
+        instrs = new Instruction[ nInstrs ] ;
+        opnds = new int[ nInstrs ][] ;
+        keep = new boolean[ nInstrs ] ;
+        isTarget = new boolean[ nInstrs ] ;
+        labelNames = new String[ nInstrs ] ;
+        usedLabels = new String[ nInstrs ] ;
+        labelOpnd = new boolean[ nInstrs ] ;
+        metas = new Vector[ nInstrs ] ;
+        nRemoved = nRewritten = nCellsSaved = nFolded = nUnreachable = 0 ;
+        notDoneReason = null ;
+
+        for ( int i = 0 ; i < nInstrs ; i++ )
+        {
+            Instruction instr = instrs[ i ] = image.getInstruction( i ) ;
+            if ( instr == null )
+                return notDone( "unknown instruction at " + Utils.asHex( image.getInstrLoc( i ) ) ) ;
+            opnds[ i ] = new int[ instr.getNrInlineOpnds() ] ;
+            for ( int k = 0 ; k < opnds[ i ].length ; k++ )
+            {
+                opnds[ i ][ k ] = image.getCodeAt( image.getInstrLoc( i ) + 1 + k ) ;
+                if ( instr.isRegisterOpnd( k ) && opnds[ i ][ k ] == Registers.PC )
+                    return notDone( "the code uses the PC register" ) ;
+            }
+            keep[ i ] = true ;
+            labelNames[ i ] = image.getLabelName( i ) ;
+            usedLabels[ i ] = image.getUsedLabel( i ) ;
+            labelOpnd[ i ] = isLabelOpnd( i ) ;
+            metas[ i ] = image.getMetaInstructions( i ) ;
+        }
+        if ( nInstrs == 0 )
+            return image ;
+        findTargets() ;
+
+        boolean changed = true ;
+        while ( changed )
+        {
+            changed = false ;
+            int prev = -1 ;
+            for ( int i = 0 ; i < nInstrs ; i = nextKept( i ) )
+            {
+                if ( ! keep[ i ] )
+                    continue ;
+                if ( peephole( prev, i, nextKept( i ) ) || ( fold && foldConstants( prev, i, nextKept( i ) ) ) )
+                    changed = true ;
+                if ( keep[ i ] )
+                    prev = i ;
+            }
+            if ( fold && removeUnreachable() )
+                changed = true ;
+        }
+        return nRemoved == 0 && nRewritten == 0 ? image : relocate() ;
+    }
+
+    private ProgramImage notDone( String reason )
+    {
+        notDoneReason = reason ;
+        return image ;
+    }
+
+    /**
+     * Mark the instructions which can be jumped to: labeled, referred to by a branch or label operand, or the start.
+     */
+    private void findTargets()
+    {
+        isTarget[ 0 ] = true ;
+        for ( Enumeration<String> e = image.getSymbols() ; e.hasMoreElements() ; )
+            markTarget( image.getSymbolAddress( e.nextElement() ) ) ;
+        for ( int i = 0 ; i < nInstrs ; i++ )
+        {
+            if ( labelNames[ i ] != null )
+                isTarget[ i ] = true ;
+            for ( int k = 0 ; k < opnds[ i ].length ; k++ )
+                if ( instrs[ i ].isRelativeOpnd( k ) )
+                    markTarget( image.getInstrLoc( i ) + instrs[ i ].getNrMemCells() + opnds[ i ][ k ] ) ;
+                else if ( k == 0 && labelOpnd[ i ] )
+                    markTarget( opnds[ i ][ 0 ] ) ;
+        }
+    }
+
+    private void markTarget( int addr )
+    {
+        int t = image.getInstrIndexAt( addr ) ;
+        if ( t >= 0 )
+            isTarget[ t ] = true ;
+    }
+
+    /**
+     * @return True if the first operand of instruction i is the address of the label written for it
+     */
+    private boolean isLabelOpnd( int i )
+    {
+        String l = image.getUsedLabel( i ) ;
+        return l != null && opnds[ i ].length > 0 && ! instrs[ i ].isRegisterOpnd( 0 ) && ! instrs[ i ].isRelativeOpnd( 0 )
+            && image.getSymbolAddress( l ) == opnds[ i ][ 0 ] ;
+    }
+
+    /**
+     * @return The first instruction kept after i, nInstrs if none
+     */
+    private int nextKept( int i )
+    {
+        for ( i++ ; i < nInstrs && ! keep[ i ] ; i++ )
+            ;
+        return i ;
+    }
+
+    private int firstKept( int i )
+    {
+        return i >= nInstrs || keep[ i ] ? i : nextKept( i ) ;
+    }
+
+    private boolean is( int i, int code )
+    {
+        return i < nInstrs && instrs[ i ].getCode() == code ;
+    }
+
+    private boolean is( int i, int code, int opnd )
+    {
+        return is( i, code ) && opnds[ i ][ 0 ] == opnd ;
+    }
+
+    /**
+     * @return True if instruction i loads a constant which is not the address of a label
+     */
+    private boolean isConst( int i )
+    {
+        return is( i, Instruction.I_LDC ) && ! labelOpnd[ i ] ;
+    }
+
+    private boolean isPush( int i )
+    {
+        return is( i, Instruction.I_LDC ) || is( i, Instruction.I_LDL ) || is( i, Instruction.I_LDS )
+            || is( i, Instruction.I_LDLA ) || is( i, Instruction.I_LDSA ) || is( i, Instruction.I_LDR ) ;
+    }
+
+    private boolean isNeutralWithZero( int i )
+    {
+        if ( i >= nInstrs )
+            return false ;
+        switch ( instrs[ i ].getCode() )
+        {
+            case Instruction.BI_ADD :
+            case Instruction.BI_SUB :
+            case Instruction.BI_OR :
+            case Instruction.BI_XOR :
+            case Instruction.BI_LSL :
+            case Instruction.BI_LSR :
+            case Instruction.BI_ROL :
+            case Instruction.BI_ROR :
+                return true ;
+            default :
+                return false ;
+        }
+    }
+
+    /**
+     * Try the patterns on instruction i, followed by j, with prev the instruction kept before i.
+     * @return True if something was changed
+     */
+    private boolean peephole( int prev, int i, int j )
+    {
+        if ( is( i, Instruction.I_ADJS, 0 ) || is( i, Instruction.I_NOP )
+          || ( is( i, Instruction.I_BRA ) && targetOf( i ) < nInstrs && firstKept( targetOf( i ) ) == j ) )
+            return remove( prev, i, i ) ;
+        if ( j >= nInstrs || isTarget[ j ] || metas[ i ] != null )
+            return false ;
+        if ( ( isConst( i ) && opnds[ i ][ 0 ] == 0 && isNeutralWithZero( j ) )
+          || ( isConst( i ) && opnds[ i ][ 0 ] == 1 && ( is( j, Instruction.BI_MUL ) || is( j, Instruction.BI_DIV ) ) )
+          || ( is( i, Instruction.I_LINK, 0 ) && is( j, Instruction.I_UNLINK ) )
+          || ( is( i, Instruction.I_LDL ) && is( j, Instruction.I_STL, opnds[ i ][ 0 ] ) )
+          || ( isPush( i ) && is( j, Instruction.I_ADJS, -1 ) )
+           )
+            return remove( prev, i, j ) ;
+        if ( isPush( i ) && is( j, Instruction.I_ADJS ) && opnds[ j ][ 0 ] < -1 )
+        {
+            // the push is undone by the ajs, which then has one less to do
+            drop( i, j ) ;
+            opnds[ j ][ 0 ]++ ;
+            nRewritten++ ;
+            return true ;
+        }
+        return false ;
+    }
+
+    /**
+     * Try folding constants at instruction i, followed by j, with prev the instruction kept before i.
+     * The result is put in the ldc at i, which gets the meta instructions of the instruction replaced.
+     * @return True if something was changed
+     */
+    private boolean foldConstants( int prev, int i, int j )
+    {
+        if ( ! isConst( i ) || j >= nInstrs || isTarget[ j ] || metas[ i ] != null )
+            return false ;
+        int k = nextKept( j ) ;
+        if ( isConst( j ) && k < nInstrs && ! isTarget[ k ] && metas[ j ] == null && instrs[ k ].getCategory() == Instruction.CTG_BINOP )
+        {
+            int code = instrs[ k ].getCode() ;
+            if ( opnds[ j ][ 0 ] == 0 && ( code == Instruction.BI_DIV || code == Instruction.BI_MOD ) )
+                return false ;
+            opnds[ i ][ 0 ] = Machine.execBinop( code, opnds[ i ][ 0 ], opnds[ j ][ 0 ] ) ;
+            usedLabels[ i ] = null ;
+            metas[ i ] = metas[ k ] ;
+            drop( j, k ) ;
+            drop( k, nextKept( k ) ) ;
+        }
+        else if ( instrs[ j ].getCategory() == Instruction.CTG_UNOP )
+        {
+            opnds[ i ][ 0 ] = Machine.execUnop( instrs[ j ].getCode(), opnds[ i ][ 0 ] ) ;
+            usedLabels[ i ] = null ;
+            metas[ i ] = metas[ j ] ;
+            drop( j, nextKept( j ) ) ;
+        }
+        else if ( is( j, Instruction.I_BRT ) || is( j, Instruction.I_BRF ) )
+        {
+            boolean taken = is( j, Instruction.I_BRT ) == ( opnds[ i ][ 0 ] != 0 ) ;
+            if ( ! taken )
+                return remove( prev, i, j ) && countFolded() ;
+            drop( i, j ) ;
+            instrs[ j ] = Instruction.findByCode( Instruction.I_BRA ) ;
+            nRewritten++ ;
+            return countFolded() ;
+        }
+        else
+            return false ;
+        nRewritten++ ;
+        return countFolded() ;
+    }
+
+    private boolean countFolded()
+    {
+        nFolded++ ;
+        return true ;
+    }
+
+    /**
+     * Remove instruction i, which is replaced by instruction to.
+     */
+    private void drop( int i, int to )
+    {
+        if ( to < nInstrs && isTarget[ i ] )
+            isTarget[ to ] = true ;
+        keep[ i ] = false ;
+        nRemoved++ ;
+        nCellsSaved += instrs[ i ].getNrMemCells() ;
+        if ( to < nInstrs )
+            moveLabel( i, to ) ;
+    }
+
+    /**
+     * Remove the instructions which cannot be reached from the start, or from a label used as operand.
+     * Nothing is removed when a branch goes to a location which is not an instruction, as then the flow of control is not known.
+     * @return True if something was removed
+     */
+    private boolean removeUnreachable()
+    {
+        boolean reached[] = new boolean[ nInstrs ] ;
+        Vector<Integer> work = new Vector<Integer>() ;
+        work.addElement( 0 ) ;
+        for ( int i = 0 ; i < nInstrs ; i++ )
+            if ( keep[ i ] && labelOpnd[ i ] && image.getInstrIndexAt( opnds[ i ][ 0 ] ) >= 0 )
+                work.addElement( image.getInstrIndexAt( opnds[ i ][ 0 ] ) ) ;
+        while ( work.size() > 0 )
+        {
+            int i = work.lastElement() ;
+            work.removeElementAt( work.size() - 1 ) ;
+            i = firstKept( i ) ;
+            if ( i >= nInstrs || reached[ i ] )
+                continue ;
+            reached[ i ] = true ;
+            if ( instrs[ i ].getNrInlineOpnds() > 0 && instrs[ i ].isRelativeOpnd( 0 ) )
+            {
+                int t = targetOf( i ) ;
+                if ( t >= nInstrs )
+                    return false ;
+                work.addElement( t ) ;
+            }
+            if ( fallsThrough( i ) || is( i, Instruction.I_BRT ) || is( i, Instruction.I_BRF )
+              || is( i, Instruction.I_BSR ) || is( i, Instruction.I_JSR ) )
+                work.addElement( i + 1 ) ;
+        }
+        boolean removed = false ;
+        for ( int i = 0 ; i < nInstrs ; i++ )
+        {
+            if ( keep[ i ] && ! reached[ i ] )
+            {
+                keep[ i ] = false ;
+                nRemoved++ ;
+                nUnreachable++ ;
+                nCellsSaved += instrs[ i ].getNrMemCells() ;
+                removed = true ;
+            }
+        }
+        return removed ;
+    }
+
+    /**
+     * Remove the instructions i up to j, which together leave the stack as it was.
+     * Meta instructions after j are moved to prev.
+     * @return False if not possible
+     */
+    private boolean remove( int prev, int i, int j )
+    {
+        int next = nextKept( j ) ;
+        if ( next >= nInstrs )
+            return false ;
+        if ( metas[ j ] != null )
+        {
+            if ( prev < 0 || isTarget[ i ] || ! fallsThrough( prev ) )
+                return false ;
+            if ( metas[ prev ] == null )
+                metas[ prev ] = new Vector<MetaInstruction>() ;
+            metas[ prev ].addAll( metas[ j ] ) ;
+            metas[ j ] = null ;
+        }
+        for ( int k = i ; k <= j ; k = nextKept( k ) )
+            drop( k, next ) ;
+        return true ;
+    }
+
+    /**
+     * Keep the label shown with a removed instruction, by showing it with the instruction taking its place.
+     */
+    private void moveLabel( int from, int to )
+    {
+        if ( labelNames[ from ] != null && labelNames[ to ] == null )
+            labelNames[ to ] = labelNames[ from ] ;
+    }
+
+    private boolean fallsThrough( int i )
+    {
+        switch ( instrs[ i ].getCode() )
+        {
+            case Instruction.I_BRA :
+            case Instruction.I_BRF :
+            case Instruction.I_BRT :
+            case Instruction.I_BSR :
+            case Instruction.I_JSR :
+            case Instruction.I_RET :
+            case Instruction.I_HALT :
+                return false ;
+            default :
+                return true ;
+        }
+    }
+
+    /**
+     * @return The index of the instruction a branch goes to, nInstrs if not an instruction
+     */
+    private int targetOf( int i )
+    {
+        int addr = image.getInstrLoc( i ) + instrs[ i ].getNrMemCells() + opnds[ i ][ 0 ] ;
+        int t = image.getInstrIndexAt( addr ) ;
+        return ( t >= 0 && image.getInstrLoc( t ) == addr ) ? t : nInstrs ;
+    }
+
+    /**
+     * Lay out the instructions kept, adjusting addresses.
+     */
+    private ProgramImage relocate()
+    {
+        int n = nInstrs - nRemoved ;
+        int newLocs[] = new int[ nInstrs + 1 ] ;
+        int loc = 0 ;
+        for ( int i = 0 ; i < nInstrs ; i++ )
+        {
+            newLocs[ i ] = loc ;
+            if ( keep[ i ] )
+                loc += instrs[ i ].getNrMemCells() ;
+        }
+        newLocs[ nInstrs ] = loc ;
+
+        int code[] = new int[ image.getCodeSize() - nCellsSaved ] ;
+        int instrLocs[] = new int[ n ] ;
+        int lineNrs[] = new int[ n ] ;
+        String newLabelNames[] = new String[ n ] ;
+        String newUsedLabels[] = new String[ n ] ;
+        MetaInstruction newMetas[][] = new MetaInstruction[ n ][] ;
+        int k = 0 ;
+        for ( int i = 0 ; i < nInstrs ; i++ )
+        {
+            if ( ! keep[ i ] )
+                continue ;
+            Instruction instr = instrs[ i ] ;
+            int at = newLocs[ i ] ;
+            code[ at ] = instr.getCode() ;
+            for ( int a = 0 ; a < opnds[ i ].length ; a++ )
+            {
+                int v = opnds[ i ][ a ] ;
+                if ( instr.isRelativeOpnd( a ) )
+                    v = newAddress( image.getInstrLoc( i ) + instr.getNrMemCells() + v, newLocs ) - ( at + instr.getNrMemCells() ) ;
+                else if ( a == 0 && labelOpnd[ i ] )
+                    v = newAddress( v, newLocs ) ;
+                code[ at + 1 + a ] = v ;
+            }
+            instrLocs[ k ] = at ;
+            lineNrs[ k ] = image.getLineNr( i ) ;
+            newLabelNames[ k ] = labelNames[ i ] ;
+            newUsedLabels[ k ] = usedLabels[ i ] ;
+            if ( metas[ i ] != null )
+                newMetas[ k ] = metas[ i ].toArray( new MetaInstruction[ metas[ i ].size() ] ) ;
+            k++ ;
+        }
+
+        Hashtable<String,Integer> symbols = new Hashtable<String,Integer>() ;
+        for ( Enumeration<String> e = image.getSymbols() ; e.hasMoreElements() ; )
+        {
+            String l = e.nextElement() ;
+            symbols.put( l, newAddress( image.getSymbolAddress( l ), newLocs ) ) ;
+        }
+        Vector<String> messages = new Vector<String>() ;
+        for ( Enumeration<String> e = image.getMessages() ; e.hasMoreElements() ; )
+            messages.addElement( e.nextElement() ) ;
+        return new ProgramImage
+            ( code, instrLocs, lineNrs, newLabelNames, newUsedLabels, newMetas, symbols
+            , messages.toArray( new String[ messages.size() ] )
+            ) ;
+    }
+
+    /**
+     * @return The address after optimizing of addr, a removed instruction being replaced by the one kept after it
+     */
+    private int newAddress( int addr, int newLocs[] )
+    {
+        if ( addr < 0 )
+            return addr ;
+        if ( addr >= image.getCodeSize() )
+            return addr - nCellsSaved ;
+        int i = image.getInstrIndexAt( addr ) ;
+        int offset = addr - image.getInstrLoc( i ) ;
+        return keep[ i ] ? newLocs[ i ] + offset : newLocs[ firstKept( i ) ] ;
+    }
+
+    /**
+     * @return The number of instructions removed
+     */
+    public int getNrRemoved()
+    {
+        return nRemoved ;
+    }
+
+    /**
+     * @return The number of instructions changed
+     */
+    public int getNrRewritten()
+    {
+        return nRewritten ;
+    }
+
+    /**
+     * @return The number of constant expressions and branches on constants folded
+     */
+    public int getNrFolded()
+    {
+        return nFolded ;
+    }
+
+    /**
+     * @return The number of instructions removed because they cannot be reached
+     */
+    public int getNrUnreachable()
+    {
+        return nUnreachable ;
+    }
+
+    /**
+     * @return The number of memory cells no longer used for code
+     */
+    public int getNrCellsSaved()
+    {
+        return nCellsSaved ;
+    }
+
+    /**
+     * @return Why the program was not optimized, null if it was
+     */
+    public String getNotDoneReason()
+    {
+        return notDoneReason ;
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Buffered output of the print traps, see Machine.setOutputSink, and of the files written by the file traps.
+ * <p>
+ * Characters are collected in a buffer and encoded in blocks by a single encoder,
+ * so printing a character or number does not create any objects.
+ * The output is written when the buffer is full and when flushed,
+ * which the user of the sink does before asking for input and when the machine stops.
+ * Like a PrintStream, errors while writing do not throw exceptions, but are remembered, see checkError.
+ */
+public class OutputSink
+	implements Closeable
+{
+    private static final int    BUFFER_SIZE     = 64 * 1024 ;
+    private static final String LINE_SEPARATOR  = System.lineSeparator() ;
+
+    private OutputStream        out     ;
+    private CharsetEncoder      encoder ;
+    private CharBuffer          chars   ;
+    private ByteBuffer          bytes   ;
+    private char                digits[]    = new char[ 11 ] ;
+    private boolean             error   ;
+
+    public OutputSink( OutputStream o )
+    {
+        this( o, Charset.defaultCharset() ) ;
+    }
+
+    public OutputSink( OutputStream o, Charset cs )
+    {
+        out = o ;
+        encoder = cs.newEncoder()
+                    .onMalformedInput( CodingErrorAction.REPLACE )
+                    .onUnmappableCharacter( CodingErrorAction.REPLACE ) ;
+        chars = CharBuffer.allocate( BUFFER_SIZE ) ;
+        bytes = ByteBuffer.allocate( (int)( BUFFER_SIZE * encoder.maxBytesPerChar() ) ) ;
+    }
+
+    /**
+     * Print a unicode code point, a value not being one is printed as the replacement character.
+     */
+    public void printCodePoint( int c )
+    {
+        if ( chars.remaining() < 2 )
+            encode() ;
+        if ( ! Character.isValidCodePoint( c ) )
+            chars.put( '\uFFFD' ) ;
+        else if ( ! Character.isBmpCodePoint( c ) )
+        {
+            chars.put( Character.highSurrogate( c ) ) ;
+            chars.put( Character.lowSurrogate( c ) ) ;
+        }
+        else if ( ! Character.isSurrogate( (char)c ) )
+            chars.put( (char)c ) ;
+        else
+        {
+            // half a pair is not combined with a next one, but replaced like any character which cannot be encoded
+            encode() ;
+            byte replacement[] = encoder.replacement() ;
+            if ( bytes.remaining() < replacement.length )
+                write() ;
+            bytes.put( replacement ) ;
+        }
+    }
+
+    /**
+     * Print a number on a line of its own.
+     */
+    public void printlnInt( int v )
+    {
+        int i = digits.length ;
+        long n = Math.abs( (long)v ) ;
+        do
+        {
+            digits[ --i ] = (char)( '0' + n % 10 ) ;
+            n /= 10 ;
+        } while ( n > 0 ) ;
+        if ( v < 0 )
+            digits[ --i ] = '-' ;
+        if ( chars.remaining() < digits.length - i )
+            encode() ;
+        chars.put( digits, i, digits.length - i ) ;
+        print( LINE_SEPARATOR ) ;
+    }
+
+    public void print( String s )
+    {
+        for ( int i = 0 ; i < s.length() ; )
+        {
+            if ( ! chars.hasRemaining() )
+                encode() ;
+            int n = Math.min( chars.remaining(), s.length() - i ) ;
+            chars.put( s, i, i + n ) ;
+            i += n ;
+        }
+    }
+
+    public void println( String s )
+    {
+        print( s ) ;
+        print( LINE_SEPARATOR ) ;
+    }
+
+    /**
+     * Encode the characters collected, writing the bytes when full.
+     * A surrogate pair split by the end of the buffer is kept for the next time.
+     */
+    private void encode()
+    {
+        chars.flip() ;
+        while ( encoder.encode( chars, bytes, false ).isOverflow() )
+            write() ;
+        chars.compact() ;
+    }
+
+    private void write()
+    {
+        try
+        {
+            out.write( bytes.array(), 0, bytes.position() ) ;
+        }
+        catch ( IOException ex )
+        {
+            error = true ;
+        }
+        bytes.clear() ;
+    }
+
+    /**
+     * Write all output printed.
+     */
+    public void flush()
+    {
+        encode() ;
+        write() ;
+        try
+        {
+            out.flush() ;
+        }
+        catch ( IOException ex )
+        {
+            error = true ;
+        }
+    }
+
+    /**
+     * @return True if writing failed since the sink was created
+     */
+    public boolean checkError()
+    {
+        return error ;
+    }
+
+    /**
+     * Flush and close the stream written to.
+     * @throws IOException If writing failed, now or before
+     */
+    public void close() throws IOException
+    {
+        flush() ;
+        out.close() ;
+        if ( error )
+            throw new IOException( "output could not be written" ) ;
+    }
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of assembled programs, keyed by the SHA-256 hash of their source text,
+ * so running the same program many times assembles it only once.
+ * The most recently used images are kept in memory, the least recently used one being dropped when full.
+ * Optionally images are also kept as object files in a directory, named by their hash,
+ * where they survive the process and can be shared by several processes.
+ * A program with assembly errors is not cached, so it is assembled again, and reported again, each time.
+ * A cache can be used by several threads at once.
+ */
+public class ProgramCache
+{
+    private LinkedHashMap<String,ProgramImage>  images      ;
+    private File                                dir         ;
+
+    private int                                 hits        ;
+    private int                                 diskHits    ;
+    private int                                 misses      ;
+
+    /**
+     * @param capacity The number of images kept in memory
+     * @param dir The directory for object files, null if none
+     */
+    public ProgramCache( final int capacity, File dir )
+    {
+        this.dir = dir ;
+        images = new LinkedHashMap<String,ProgramImage>( 16, 0.75f, true )
+            {
+                private static final long serialVersionUID = 1L ;
+
+                protected boolean removeEldestEntry( Map.Entry<String,ProgramImage> eldest )
+                {
+                    return size() > capacity ;
+                }
+            } ;
+        if ( dir != null )
+            dir.mkdirs() ;
+    }
+
+    /**
+     * The key of a source, which also depends on the version, so images of another version are not used.
+     */
+    private static String keyOf( CharBuffer source )
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" ) ;
+            md.update( ( Config.version() + "/" + ProgramImageFile.VERSION + "\n" ).getBytes( StandardCharsets.UTF_8 ) ) ;
+            md.update( StandardCharsets.UTF_8.encode( source.duplicate() ) ) ;
+            StringBuffer b = new StringBuffer() ;
+            for ( byte v : md.digest() )
+                b.append( Character.forDigit( ( v >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( v & 0xF, 16 ) ) ;
+            return b.toString() ;
+        }
+        catch ( NoSuchAlgorithmException ex )
+        {
+            throw new IllegalStateException( ex ) ;
+        }
+    }
+
+    /**
+     * Get the image of a source, assembling it if not cached.
+     */
+    public ProgramImage get( CharBuffer source )
+    {
+        String key = keyOf( source ) ;
+        ProgramImage image ;
+        synchronized ( this )
+        {
+            image = images.get( key ) ;
+            if ( image != null )
+            {
+                hits++ ;
+                return image ;
+            }
+        }
+
+        File f = dir == null ? null : new File( dir, key + "." + Config.extensionSSMO ) ;
+        boolean fromDisk = false ;
+        if ( f != null && f.exists() )
+        {
+            try
+            {
+                image = ProgramImageFile.read( f ) ;
+                fromDisk = true ;
+            }
+            catch ( IOException ex )
+            {
+                // a damaged file is replaced below
+            }
+        }
+        if ( image == null )
+        {
+            image = new Assembler().assemble( source ) ;
+            if ( f != null && ! image.hasMessages() )
+                store( image, f ) ;
+        }
+
+        synchronized ( this )
+        {
+            if ( fromDisk )
+                diskHits++ ;
+            else
+                misses++ ;
+            if ( ! image.hasMessages() )
+                images.put( key, image ) ;
+        }
+        return image ;
+    }
+
+    /**
+     * Get the image of a file, which is loaded from the file itself if it is an object file, see ProgramImageFile.load.
+     */
+    public ProgramImage get( File f ) throws IOException
+    {
+        if ( ProgramImageFile.isObjectFile( f ) )
+            return ProgramImageFile.load( f ) ;
+        try ( FileChannel ch = FileChannel.open( f.toPath(), StandardOpenOption.READ ) )
+        {
+            MappedByteBuffer bytes = ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() ) ;
+            return get( Charset.defaultCharset().decode( bytes ) ) ;
+        }
+    }
+
+    /**
+     * Write an object file under another name first, so other processes never see it half written.
+     */
+    private static void store( ProgramImage image, File f )
+    {
+        File tmp = null ;
+        try
+        {
+            tmp = File.createTempFile( "ssm", ".tmp", f.getParentFile() ) ;
+            ProgramImageFile.write( image, tmp ) ;
+            Files.move( tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE ) ;
+        }
+        catch ( IOException ex )
+        {
+            // the cache directory only is an optimisation
+            if ( tmp != null )
+                tmp.delete() ;
+        }
+    }
+
+    public synchronized int getHits()
+    {
+        return hits ;
+    }
+
+    public synchronized int getDiskHits()
+    {
+        return diskHits ;
+    }
+
+    public synchronized int getMisses()
+    {
+        return misses ;
+    }
+
+    public synchronized void clear()
+    {
+        images.clear() ;
+    }
+
+    public synchronized String toString()
+    {
+        return "program cache: " + hits + " hits, " + diskHits + " disk hits, " + misses + " misses, " + images.size() + " in memory" ;
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * An assembled program: code words, symbol table, the source line of each instruction,
+ * meta instructions and the messages given while assembling.
+ * An image does not change after it has been made, so it can be loaded into any number of machines,
+ * also from different threads.
+ */
+public class ProgramImage
+{
+    protected int                       code[]          ;
+    private int                         instrLocs[]     ;
+    private int                         lineNrs[]       ;
+    private String                      labelNames[]    ;
+    private String                      usedLabels[]    ;
+    private MetaInstruction             metas[][]       ;
+    private Hashtable<String,Integer>   symbols         ;
+    private String                      messages[]      ;
+
+    protected ProgramImage
+        ( int code[], int instrLocs[], int lineNrs[], String labelNames[], String usedLabels[]
+        , MetaInstruction metas[][], Hashtable<String,Integer> symbols, String messages[]
+        )
+    {
+        this.code = code ;
+        this.instrLocs = instrLocs ;
+        this.lineNrs = lineNrs ;
+        this.labelNames = labelNames ;
+        this.usedLabels = usedLabels ;
+        this.metas = metas ;
+        this.symbols = symbols ;
+        this.messages = messages ;
+    }
+
+    public int getCodeSize()
+    {
+        return code.length ;
+    }
+
+    public int getCodeAt( int addr )
+    {
+        return code[ addr ] ;
+    }
+
+    public int[] getCode()
+    {
+        return code.clone() ;
+    }
+
+    public int getNrInstrs()
+    {
+        return instrLocs.length ;
+    }
+
+    /**
+     * @return The address of the i'th instruction
+     */
+    public int getInstrLoc( int i )
+    {
+        return instrLocs[ i ] ;
+    }
+
+    public Instruction getInstruction( int i )
+    {
+        return Instruction.findByCode( code[ instrLocs[ i ] ] ) ;
+    }
+
+    /**
+     * @return The index of the instruction occupying addr, -1 if outside the code
+     */
+    public int getInstrIndexAt( int addr )
+    {
+        if ( addr < 0 || addr >= code.length )
+            return -1 ;
+        int i = Arrays.binarySearch( instrLocs, addr ) ;
+        return i >= 0 ? i : -i - 2 ;
+    }
+
+    /**
+     * @return The source line of the i'th instruction, 0 for the halt added at the end
+     */
+    public int getLineNr( int i )
+    {
+        return lineNrs[ i ] ;
+    }
+
+    /**
+     * @return The label shown with the i'th instruction, null if none
+     */
+    public String getLabelName( int i )
+    {
+        return labelNames[ i ] ;
+    }
+
+    /**
+     * @return The label used as operand by the i'th instruction, null if none
+     */
+    public String getUsedLabel( int i )
+    {
+        return usedLabels[ i ] ;
+    }
+
+    /**
+     * @return The meta instructions to be done after the i'th instruction, null if none
+     */
+    public Vector<MetaInstruction> getMetaInstructions( int i )
+    {
+        return metas[ i ] == null ? null : Utils.asVector( metas[ i ] ) ;
+    }
+
+    /**
+     * @return The address of a label, -1 if it is not defined
+     */
+    public int getSymbolAddress( String nm )
+    {
+        Integer loc = symbols.get( nm ) ;
+        return loc == null ? -1 : loc ;
+    }
+
+    public Enumeration<String> getSymbols()
+    {
+        return symbols.keys() ;
+    }
+
+    public Enumeration<String> getMessages()
+    {
+        return Utils.asVector( messages ).elements() ;
+    }
+
+    public boolean hasMessages()
+    {
+        return messages.length > 0 ;
+    }
+
+}
@@ -0,0 +1,321 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+/**
+ * Reading and writing of program images as .ssmo object files, so a program need not be assembled each time it is run.
+ * A file starts with a header of 4 ints: magic, version, CRC32 and length of the rest.
+ * The rest holds, all as big endian ints:
+ * the code words, a string table (length and chars of each string), the instructions
+ * (address, line, label, used label, and the meta instructions with their arguments),
+ * the symbol table and the messages.
+ * Since version 2 these are followed by the kind of image, 0 for a program and 1 for a relocatable module,
+ * where a module continues with its exported labels, relocated addresses,
+ * and references to imported labels (label, address, relative to, whether relative).
+ * Strings are referred to by their index in the string table, -1 for none.
+ */
+public class ProgramImageFile
+{
+    public static final int     MAGIC       = 0x53534D4F ; // "SSMO"
+    public static final int     VERSION     = 2 ;
+
+    private static final int    KIND_PROGRAM    = 0 ;
+    private static final int    KIND_MODULE     = 1 ;
+
+    private static final int    HEADER_SIZE = 16 ;
+
+    private ProgramImageFile()
+    {
+    }
+
+    public static boolean isObjectFile( File f )
+    {
+        return Config.extensionSSMO.equals( Utils.getExtension( f ) ) ;
+    }
+
+    /**
+     * Load a program, read from an object file or else assembled.
+     * A relocatable module is linked on its own.
+     */
+    public static ProgramImage load( File f ) throws IOException
+    {
+        if ( ! isObjectFile( f ) )
+            return new Assembler().assemble( f ) ;
+        ProgramImage image = read( f ) ;
+        if ( image instanceof ObjectModule )
+        {
+            Linker linker = new Linker() ;
+            linker.add( f.getName(), (ObjectModule)image ) ;
+            image = linker.link() ;
+        }
+        return image ;
+    }
+
+    /**
+     * Load a relocatable module, read from an object file or else assembled as module.
+     */
+    public static ObjectModule loadModule( File f ) throws IOException
+    {
+        if ( ! isObjectFile( f ) )
+            return new Assembler().assembleModule( f ) ;
+        ProgramImage image = read( f ) ;
+        if ( ! ( image instanceof ObjectModule ) )
+            throw new IOException( f + ": not a relocatable module" ) ;
+        return (ObjectModule)image ;
+    }
+
+    private static class StringTable
+    {
+        Hashtable<String,Integer>   indices = new Hashtable<String,Integer>() ;
+        Vector<String>              strings = new Vector<String>() ;
+
+        int indexOf( String s )
+        {
+            if ( s == null )
+                return -1 ;
+            Integer i = indices.get( s ) ;
+            if ( i == null )
+            {
+                i = strings.size() ;
+                indices.put( s, i ) ;
+                strings.addElement( s ) ;
+            }
+            return i ;
+        }
+    }
+
+    public static void write( ProgramImage image, File f ) throws IOException
+    {
+        StringTable strs = new StringTable() ;
+        ByteArrayOutputStream tables = new ByteArrayOutputStream() ;
+        DataOutputStream out = new DataOutputStream( tables ) ;
+        out.writeInt( image.getNrInstrs() ) ;
+        for ( int i = 0 ; i < image.getNrInstrs() ; i++ )
+        {
+            out.writeInt( image.getInstrLoc( i ) ) ;
+            out.writeInt( image.getLineNr( i ) ) ;
+            out.writeInt( strs.indexOf( image.getLabelName( i ) ) ) ;
+            out.writeInt( strs.indexOf( image.getUsedLabel( i ) ) ) ;
+            Vector<MetaInstruction> metas = image.getMetaInstructions( i ) ;
+            out.writeInt( metas == null ? -1 : metas.size() ) ;
+            for ( Enumeration<MetaInstruction> e = metas == null ? null : metas.elements() ; e != null && e.hasMoreElements() ; )
+            {
+                MetaInstruction m = e.nextElement() ;
+                out.writeInt( strs.indexOf( m.getInstruction().getRepr() ) ) ;
+                out.writeInt( m.getArgs().size() ) ;
+                for ( Enumeration<String> a = m.getArgs().elements() ; a.hasMoreElements() ; )
+                    out.writeInt( strs.indexOf( a.nextElement() ) ) ;
+            }
+        }
+        Vector<String> symbols = new Vector<String>() ;
+        Utils.addAllTo( symbols, image.getSymbols() ) ;
+        Collections.sort( symbols ) ; // so equal images give equal files
+        out.writeInt( symbols.size() ) ;
+        for ( Enumeration<String> e = symbols.elements() ; e.hasMoreElements() ; )
+        {
+            String s = e.nextElement() ;
+            out.writeInt( strs.indexOf( s ) ) ;
+            out.writeInt( image.getSymbolAddress( s ) ) ;
+        }
+        Vector<String> messages = new Vector<String>() ;
+        Utils.addAllTo( messages, image.getMessages() ) ;
+        out.writeInt( messages.size() ) ;
+        for ( Enumeration<String> e = messages.elements() ; e.hasMoreElements() ; )
+            out.writeInt( strs.indexOf( e.nextElement() ) ) ;
+        if ( image instanceof ObjectModule )
+        {
+            ObjectModule m = (ObjectModule)image ;
+            out.writeInt( KIND_MODULE ) ;
+            out.writeInt( m.getNrExports() ) ;
+            for ( int i = 0 ; i < m.getNrExports() ; i++ )
+                out.writeInt( strs.indexOf( m.getExport( i ) ) ) ;
+            out.writeInt( m.getNrRelocs() ) ;
+            for ( int i = 0 ; i < m.getNrRelocs() ; i++ )
+                out.writeInt( m.getReloc( i ) ) ;
+            out.writeInt( m.getNrImportRefs() ) ;
+            for ( int i = 0 ; i < m.getNrImportRefs() ; i++ )
+            {
+                out.writeInt( strs.indexOf( m.getImportLabel( i ) ) ) ;
+                out.writeInt( m.getImportAt( i ) ) ;
+                out.writeInt( m.getImportPCOffset( i ) ) ;
+                out.writeInt( m.isImportRelative( i ) ? 1 : 0 ) ;
+            }
+        }
+        else
+            out.writeInt( KIND_PROGRAM ) ;
+        out.flush() ;
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream( 4 * image.getCodeSize() + tables.size() + 1024 ) ;
+        out = new DataOutputStream( payload ) ;
+        out.writeInt( image.getCodeSize() ) ;
+        for ( int i = 0 ; i < image.getCodeSize() ; i++ )
+            out.writeInt( image.getCodeAt( i ) ) ;
+        out.writeInt( strs.strings.size() ) ;
+        for ( Enumeration<String> e = strs.strings.elements() ; e.hasMoreElements() ; )
+        {
+            String s = e.nextElement() ;
+            out.writeInt( s.length() ) ;
+            out.writeChars( s ) ;
+        }
+        tables.writeTo( out ) ;
+        out.flush() ;
+
+        byte bytes[] = payload.toByteArray() ;
+        CRC32 crc = new CRC32() ;
+        crc.update( bytes ) ;
+        try ( DataOutputStream fileOut = new DataOutputStream( new FileOutputStream( f ) ) )
+        {
+            fileOut.writeInt( MAGIC ) ;
+            fileOut.writeInt( VERSION ) ;
+            fileOut.writeInt( (int)crc.getValue() ) ;
+            fileOut.writeInt( bytes.length ) ;
+            fileOut.write( bytes ) ;
+        }
+    }
+
+    /**
+     * Read an object file, which is mapped into memory.
+     * The code words are copied from the mapping in one bulk transfer.
+     */
+    public static ProgramImage read( File f ) throws IOException
+    {
+        try ( FileChannel ch = FileChannel.open( f.toPath(), StandardOpenOption.READ ) )
+        {
+            MappedByteBuffer in = ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() ) ;
+            if ( in.limit() < HEADER_SIZE || in.getInt() != MAGIC )
+                throw new IOException( f + ": not an SSM object file" ) ;
+            int version = in.getInt() ;
+            if ( version < 1 || version > VERSION )
+                throw new IOException( f + ": unsupported object file version " + version ) ;
+            int crcValue = in.getInt() ;
+            int length = in.getInt() ;
+            if ( length != in.remaining() )
+                throw new IOException( f + ": object file has wrong length" ) ;
+            CRC32 crc = new CRC32() ;
+            crc.update( in.duplicate() ) ;
+            if ( (int)crc.getValue() != crcValue )
+                throw new IOException( f + ": object file checksum mismatch" ) ;
+            try
+            {
+                return read( in, version ) ;
+            }
+            catch ( RuntimeException ex )
+            {
+                throw new IOException( f + ": corrupt object file", ex ) ;
+            }
+        }
+    }
+
+    private static String stringAt( String strings[], int i )
+    {
+        return i < 0 ? null : strings[ i ] ;
+    }
+
+    private static ProgramImage read( ByteBuffer in, int version ) throws IOException
+    {
+        int code[] = new int[ in.getInt() ] ;
+        in.asIntBuffer().get( code ) ;
+        in.position( in.position() + 4 * code.length ) ;
+
+        String strings[] = new String[ in.getInt() ] ;
+        char buf[] = new char[ 64 ] ;
+        for ( int i = 0 ; i < strings.length ; i++ )
+        {
+            int len = in.getInt() ;
+            if ( len > buf.length )
+                buf = new char[ len ] ;
+            in.asCharBuffer().get( buf, 0, len ) ;
+            in.position( in.position() + 2 * len ) ;
+            strings[ i ] = new String( buf, 0, len ) ;
+        }
+
+        int n = in.getInt() ;
+        int instrLocs[] = new int[ n ] ;
+        int lineNrs[] = new int[ n ] ;
+        String labelNames[] = new String[ n ] ;
+        String usedLabels[] = new String[ n ] ;
+        MetaInstruction metas[][] = new MetaInstruction[ n ][] ;
+        for ( int i = 0 ; i < n ; i++ )
+        {
+            instrLocs[ i ] = in.getInt() ;
+            lineNrs[ i ] = in.getInt() ;
+            labelNames[ i ] = stringAt( strings, in.getInt() ) ;
+            usedLabels[ i ] = stringAt( strings, in.getInt() ) ;
+            int nMetas = in.getInt() ;
+            if ( nMetas < 0 )
+                continue ;
+            Vector<MetaInstruction> ms = new Vector<MetaInstruction>( nMetas ) ;
+            for ( int j = 0 ; j < nMetas ; j++ )
+            {
+                Instruction instr = Instruction.findByRepr( stringAt( strings, in.getInt() ) ) ;
+                Vector<String> args = new Vector<String>() ;
+                for ( int k = in.getInt() ; k > 0 ; k-- )
+                    args.addElement( stringAt( strings, in.getInt() ) ) ;
+                MetaInstruction m = instr == null || ! instr.isMeta() ? null : instr.instantiateMeta( args ) ;
+                if ( m == null )
+                    throw new IOException( "invalid meta instruction " + args ) ;
+                ms.addElement( m ) ;
+            }
+            metas[ i ] = ms.toArray( new MetaInstruction[ nMetas ] ) ;
+        }
+
+        Hashtable<String,Integer> symbols = new Hashtable<String,Integer>() ;
+        for ( int i = in.getInt() ; i > 0 ; i-- )
+        {
+            String s = stringAt( strings, in.getInt() ) ;
+            symbols.put( s, in.getInt() ) ;
+        }
+
+        String messages[] = new String[ in.getInt() ] ;
+        for ( int i = 0 ; i < messages.length ; i++ )
+            messages[ i ] = stringAt( strings, in.getInt() ) ;
+
+        if ( version < 2 || in.getInt() == KIND_PROGRAM )
+            return new ProgramImage( code, instrLocs, lineNrs, labelNames, usedLabels, metas, symbols, messages ) ;
+
+        String exports[] = new String[ in.getInt() ] ;
+        for ( int i = 0 ; i < exports.length ; i++ )
+            exports[ i ] = stringAt( strings, in.getInt() ) ;
+        int relocs[] = new int[ in.getInt() ] ;
+        for ( int i = 0 ; i < relocs.length ; i++ )
+            relocs[ i ] = in.getInt() ;
+        int nRefs = in.getInt() ;
+        String importLabels[] = new String[ nRefs ] ;
+        int importAts[] = new int[ nRefs ] ;
+        int importPCOffsets[] = new int[ nRefs ] ;
+        boolean importIsRelative[] = new boolean[ nRefs ] ;
+        for ( int i = 0 ; i < nRefs ; i++ )
+        {
+            importLabels[ i ] = stringAt( strings, in.getInt() ) ;
+            importAts[ i ] = in.getInt() ;
+            importPCOffsets[ i ] = in.getInt() ;
+            importIsRelative[ i ] = in.getInt() != 0 ;
+        }
+        return new ObjectModule
+            ( code, instrLocs, lineNrs, labelNames, usedLabels, metas, symbols, messages
+            , exports, relocs, importLabels, importAts, importPCOffsets, importIsRelative
+            ) ;
+    }
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Input read from a stream, such as standard input when not a console, or a file.
+ * The stream is read ahead in large blocks, so the input traps rarely wait for it.
+ */
+public class ReaderInputSource extends InputSource
+{
+    private static final int    BUFFER_SIZE = 1 << 16 ;
+
+    private BufferedReader      in  ;
+
+    public ReaderInputSource( Reader r )
+    {
+        in = new BufferedReader( r, BUFFER_SIZE ) ;
+    }
+
+    protected String nextLine() throws IOException
+    {
+        return in.readLine() ;
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Input from another source, keeping the lines read, so a run can be repeated with a ValuesInputSource of them.
+ */
+public class RecordingInputSource extends InputSource
+{
+    private InputSource     source  ;
+    private List<String>    lines   ;
+
+    /**
+     * @param lines Where the lines read are added
+     */
+    public RecordingInputSource( InputSource source, List<String> lines )
+    {
+        this.source = source ;
+        this.lines = lines ;
+    }
+
+    protected String nextLine() throws IOException
+    {
+        String line = source.nextLine() ;
+        if ( line != null )
+            lines.add( line ) ;
+        return line ;
+    }
+
+}
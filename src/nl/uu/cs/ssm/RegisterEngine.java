@@ -0,0 +1,609 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Vector;
+
+/**
+ * Execution engine translating the code into blocks of register instructions, instead of interpreting each stack instruction.
+ * <p>
+ * A block starts at the address the PC has when it is entered, and runs up to a branch, a store to a runtime address, or an instruction not translated.
+ * Within a block each stack location above, or popped below, the SP at the start is kept in a virtual register,
+ * so pushing and popping are done without touching memory.
+ * The memory of those locations is written once, when leaving the block, and only if it was changed,
+ * so afterwards memory and registers are as if the instructions were executed one by one.
+ * Addresses only known at runtime, used by ldl, stl, lda and sta, are checked for falling in the virtual registers.
+ * A store to such an address ends the block, so a program writing into its code never runs instructions translated before.
+ * The instruction which ends a block, if not a branch, is executed by the machine itself,
+ * as are calls, traps, changes of registers other than by push and pop, and the instructions moving several words.
+ * <p>
+ * The engine only runs without breakpoints, watchpoints and watch expressions, and stops being used once the program writes into its code.
+ * It does not annotate memory.
+ */
+public class RegisterEngine
+{
+    private static final int    MAX_INSTRS  = 256 ;     // instructions in a block
+    private static final int    SLOT_LIMIT  = 64 ;      // locations relative to the SP at the start
+
+    /**
+     * Register instructions, each taking OPSIZE ints: code followed by operands.
+     * Positions are relative to the SP at the start of the block.
+     */
+    private static final int    OPSIZE      = 5 ;
+
+    private static final int    R_CONST     = 0 ;   // d c      : r[d] = c
+    private static final int    R_LOAD      = 1 ;   // d p      : r[d] = M[sp+p]
+    private static final int    R_PEEK      = 2 ;   // d p      : r[d] = M[sp+p], not complaining
+    private static final int    R_MOV       = 3 ;   // d s      : r[d] = r[s]
+    private static final int    R_BINOP     = 4 ;   // d a b op : r[d] = r[a] op r[b]
+    private static final int    R_UNOP      = 5 ;   // d a op   : r[d] = op r[a]
+    private static final int    R_ADDSP     = 6 ;   // d n      : r[d] = sp+n
+    private static final int    R_ADDMP     = 7 ;   // d n      : r[d] = MP+n
+    private static final int    R_ADDI      = 8 ;   // d a n    : r[d] = r[a]+n
+    private static final int    R_LDR       = 9 ;   // d reg    : r[d] = reg
+    private static final int    R_LDL       = 10 ;  // d n s    : r[d] = M[MP+n]
+    private static final int    R_LDA       = 11 ;  // d a n s  : r[d] = M[r[a]+n]
+    private static final int    R_STL       = 12 ;  // v n s    : M[MP+n] = r[v]
+    private static final int    R_STA       = 13 ;  // v a n s  : M[r[a]+n] = r[v]
+    private static final int    R_STORE     = 14 ;  // v p      : M[sp+p] = r[v]
+    private static final int    R_WRITEBACK = 15 ;  // v p      : M[sp+p] = r[v], if changed
+    private static final int    R_SETSP     = 16 ;  // p        : SP = sp+p
+    private static final int    R_JUMP      = 17 ;  // a        : PC = a
+    private static final int    R_BRT       = 18 ;  // v a b    : PC = r[v] != 0 ? a : b
+    private static final int    R_BRF       = 19 ;  // v a b    : PC = r[v] == 0 ? a : b
+    private static final int    R_EXEC      = 20 ;  // a        : PC = a, execute one instruction by the machine
+
+    /**
+     * A translated block.
+     * For runtime addresses a snapshot tells which locations are in registers: the first position, followed by the registers.
+     */
+    private static class Block
+    {
+        int         ops[]       ;
+        int         snapshots[][] ;
+        int         nRegs       ;
+        int         nInstrs     ;   // translated, excluding the one executed by the machine
+        int         lo          ;   // the lowest location written
+    }
+
+    private Machine             machine     ;
+    private Memory              memory      ;
+    private Registers           registers   ;
+
+    private Block               blocks[]    ;
+    private int                 regs[]      = new int[ 16 ] ;
+    private boolean             disabled    ;
+
+    // translation state
+    private int                 ops[]       ;
+    private int                 nOps        ;
+    private Vector<int[]>       snapshots   ;
+    private int                 nRegs       ;
+    private int                 depth       ;
+    private int                 lo, hi      ;
+    private int                 regAt[]     = new int[ 2 * SLOT_LIMIT + 1 ] ;
+    private boolean             dirty[]     = new boolean[ 2 * SLOT_LIMIT + 1 ] ;
+    private boolean             hasDynamicStore ;
+
+    public RegisterEngine( Machine m )
+    {
+        machine = m ;
+    }
+
+    /**
+     * Forget the blocks translated, for a program loaded anew.
+     */
+    public void reset()
+    {
+        blocks = null ;
+        disabled = false ;
+    }
+
+    /**
+     * @return True if the engine can be used for the machine in its current state
+     */
+    public boolean canRun()
+    {
+        MachineState state = machine.state ;
+        return ! disabled && machine.getCodeSupply() == null && state.dir( 1 ) == 1
+            && state.breakpoints.isEmpty() && state.watchExpressions.isEmpty()
+            && state.getMemory().getWatchpoints().isEmpty() && ! state.getMemory().isCodeWritten() ;
+    }
+
+    /**
+     * Execute at most maxSteps instructions, or without limit when maxSteps is negative.
+     * @return The reason for stopping, Machine.STOP_STEPS or Machine.STOP_HALTED
+     */
+    public int run( long maxSteps )
+    {
+        memory = machine.memory ;
+        registers = machine.registers ;
+        if ( blocks == null || blocks.length != memory.getCapacity() )
+            blocks = new Block[ memory.getCapacity() ] ;
+        long n = 0 ;
+        while ( n != maxSteps )
+        {
+            int pc = registers.getPC() ;
+            Block b = null ;
+            if ( ! disabled && pc >= 0 && pc < memory.getUsedForCode() )
+            {
+                if ( ( b = blocks[ pc ] ) == null )
+                    b = blocks[ pc ] = translate( pc ) ;
+                // the stack may run into the code, which then must be written in the order of the instructions
+                if ( maxSteps >= 0 && maxSteps - n <= b.nInstrs || registers.getReg( Registers.SP ) + b.lo < memory.getUsedForCode() )
+                    b = null ;
+            }
+            if ( b == null )
+            {
+                machine.executeOne() ;
+                n++ ;
+            }
+            else
+            {
+                machine.nrSteps += b.nInstrs ;
+                n += b.nInstrs + exec( b ) ;
+            }
+            if ( memory.isCodeWritten() )
+                disabled = true ;
+            if ( machine.state.isHalted )
+                return Machine.STOP_HALTED ;
+        }
+        return Machine.STOP_STEPS ;
+    }
+
+    /**
+     * @return The index in regs of the register holding the location addr, -1 if not in a register
+     */
+    private static int regOf( int snapshot[], int addr, int sp )
+    {
+        int i = addr - sp - snapshot[ 0 ] + 1 ;
+        return ( i >= 1 && i < snapshot.length ) ? snapshot[ i ] : -1 ;
+    }
+
+    /**
+     * Execute a block.
+     * @return The nr of instructions executed besides those translated, 1 if it ended with an instruction executed by the machine
+     */
+    private int exec( Block b )
+    {
+        if ( regs.length < b.nRegs )
+            regs = new int[ b.nRegs ] ;
+        int r[] = regs ;
+        int ops[] = b.ops ;
+        int sp = registers.getReg( Registers.SP ) ;
+        int i, a ;
+        for ( int pc = 0 ; ; pc += OPSIZE )
+        {
+            switch ( ops[ pc ] )
+            {
+                case R_CONST :
+                    r[ ops[ pc+1 ] ] = ops[ pc+2 ] ;
+                    break ;
+
+                case R_LOAD :
+                    r[ ops[ pc+1 ] ] = memory.getAt( sp + ops[ pc+2 ] ) ;
+                    break ;
+
+                case R_PEEK :
+                    r[ ops[ pc+1 ] ] = memory.peekAt( sp + ops[ pc+2 ] ) ;
+                    break ;
+
+                case R_MOV :
+                    r[ ops[ pc+1 ] ] = r[ ops[ pc+2 ] ] ;
+                    break ;
+
+                case R_BINOP :
+                    r[ ops[ pc+1 ] ] = Machine.execBinop( ops[ pc+4 ], r[ ops[ pc+2 ] ], r[ ops[ pc+3 ] ] ) ;
+                    break ;
+
+                case R_UNOP :
+                    r[ ops[ pc+1 ] ] = Machine.execUnop( ops[ pc+3 ], r[ ops[ pc+2 ] ] ) ;
+                    break ;
+
+                case R_ADDSP :
+                    r[ ops[ pc+1 ] ] = sp + ops[ pc+2 ] ;
+                    break ;
+
+                case R_ADDMP :
+                    r[ ops[ pc+1 ] ] = registers.getReg( Registers.MP ) + ops[ pc+2 ] ;
+                    break ;
+
+                case R_ADDI :
+                    r[ ops[ pc+1 ] ] = r[ ops[ pc+2 ] ] + ops[ pc+3 ] ;
+                    break ;
+
+                case R_LDR :
+                    r[ ops[ pc+1 ] ] = registers.getReg( ops[ pc+2 ] ) ;
+                    break ;
+
+                case R_LDL :
+                    a = registers.getReg( Registers.MP ) + ops[ pc+2 ] ;
+                    i = regOf( b.snapshots[ ops[ pc+3 ] ], a, sp ) ;
+                    r[ ops[ pc+1 ] ] = i >= 0 ? r[ i ] : memory.getAt( a ) ;
+                    break ;
+
+                case R_LDA :
+                    a = r[ ops[ pc+2 ] ] + ops[ pc+3 ] ;
+                    i = regOf( b.snapshots[ ops[ pc+4 ] ], a, sp ) ;
+                    r[ ops[ pc+1 ] ] = i >= 0 ? r[ i ] : memory.getAt( a ) ;
+                    break ;
+
+                case R_STL :
+                    a = registers.getReg( Registers.MP ) + ops[ pc+2 ] ;
+                    i = regOf( b.snapshots[ ops[ pc+3 ] ], a, sp ) ;
+                    if ( i >= 0 )
+                        r[ i ] = r[ ops[ pc+1 ] ] ;
+                    else
+                        memory.setAt( a, r[ ops[ pc+1 ] ] ) ;
+                    break ;
+
+                case R_STA :
+                    a = r[ ops[ pc+2 ] ] + ops[ pc+3 ] ;
+                    i = regOf( b.snapshots[ ops[ pc+4 ] ], a, sp ) ;
+                    if ( i >= 0 )
+                        r[ i ] = r[ ops[ pc+1 ] ] ;
+                    else
+                        memory.setAt( a, r[ ops[ pc+1 ] ] ) ;
+                    break ;
+
+                case R_STORE :
+                    memory.setAt( sp + ops[ pc+2 ], r[ ops[ pc+1 ] ] ) ;
+                    break ;
+
+                case R_WRITEBACK :
+                    a = sp + ops[ pc+2 ] ;
+                    if ( a >= 0 && a < memory.getCapacity() && memory.peekAt( a ) != r[ ops[ pc+1 ] ] )
+                        memory.setAt( a, r[ ops[ pc+1 ] ] ) ;
+                    break ;
+
+                case R_SETSP :
+                    registers.setReg( Registers.SP, sp + ops[ pc+1 ] ) ;
+                    break ;
+
+                case R_JUMP :
+                    registers.setPC( ops[ pc+1 ] ) ;
+                    return 0 ;
+
+                case R_BRT :
+                case R_BRF :
+                    registers.setPC( ( r[ ops[ pc+1 ] ] != 0 ) == ( ops[ pc ] == R_BRT ) ? ops[ pc+2 ] : ops[ pc+3 ] ) ;
+                    return 0 ;
+
+                case R_EXEC :
+                    registers.setPC( ops[ pc+1 ] ) ;
+                    machine.executeOne() ;
+                    return 1 ;
+
+                default :
+                    return 0 ;
+            }
+        }
+    }
+
+    private void emit( int code, int a, int b, int c, int d )
+    {
+        if ( nOps + OPSIZE > ops.length )
+        {
+            int n[] = new int[ 2 * ops.length ] ;
+            System.arraycopy( ops, 0, n, 0, nOps ) ;
+            ops = n ;
+        }
+        ops[ nOps++ ] = code ;
+        ops[ nOps++ ] = a ;
+        ops[ nOps++ ] = b ;
+        ops[ nOps++ ] = c ;
+        ops[ nOps++ ] = d ;
+    }
+
+    private void emit( int code, int a, int b )
+    {
+        emit( code, a, b, 0, 0 ) ;
+    }
+
+    private int newReg()
+    {
+        return nRegs++ ;
+    }
+
+    private boolean inRegs( int p )
+    {
+        return lo <= p && p <= hi ;
+    }
+
+    /**
+     * Take in the locations up to p, reading those between from memory.
+     * The register for p itself is set by the caller.
+     */
+    private void extendTo( int p )
+    {
+        if ( lo > hi )
+        {
+            lo = hi = p ;
+            return ;
+        }
+        while ( lo > p + 1 )
+            peek( --lo ) ;
+        while ( hi < p - 1 )
+            peek( ++hi ) ;
+        lo = Math.min( lo, p ) ;
+        hi = Math.max( hi, p ) ;
+    }
+
+    private void peek( int p )
+    {
+        int r = newReg() ;
+        emit( R_PEEK, r, p ) ;
+        regAt[ p + SLOT_LIMIT ] = r ;
+        dirty[ p + SLOT_LIMIT ] = false ;
+    }
+
+    /**
+     * Let register r hold location p, which is changed.
+     */
+    private void bind( int p, int r )
+    {
+        if ( ! inRegs( p ) )
+            extendTo( p ) ;
+        regAt[ p + SLOT_LIMIT ] = r ;
+        dirty[ p + SLOT_LIMIT ] = true ;
+    }
+
+    /**
+     * @return The register holding the k'th location below the top of the stack, read from memory if not yet there
+     */
+    private int top( int k )
+    {
+        int p = depth - k ;
+        if ( ! inRegs( p ) )
+        {
+            extendTo( p ) ;
+            int r = newReg() ;
+            emit( R_LOAD, r, p ) ;
+            regAt[ p + SLOT_LIMIT ] = r ;
+            dirty[ p + SLOT_LIMIT ] = false ;
+        }
+        return regAt[ p + SLOT_LIMIT ] ;
+    }
+
+    /**
+     * @return The index of a snapshot of the locations held in registers
+     */
+    private int snapshot()
+    {
+        int s[] = new int[ lo > hi ? 1 : hi - lo + 2 ] ;
+        s[ 0 ] = lo ;
+        for ( int p = lo ; p <= hi ; p++ )
+            s[ p - lo + 1 ] = regAt[ p + SLOT_LIMIT ] ;
+        snapshots.addElement( s ) ;
+        return snapshots.size() - 1 ;
+    }
+
+    private static boolean withinLimit( int p )
+    {
+        return p > -SLOT_LIMIT && p < SLOT_LIMIT ;
+    }
+
+    /**
+     * Write the locations changed to memory, and set the SP.
+     */
+    private void flush()
+    {
+        for ( int p = lo ; p <= hi ; p++ )
+            if ( dirty[ p + SLOT_LIMIT ] )
+                emit( R_STORE, regAt[ p + SLOT_LIMIT ], p ) ;
+            else if ( hasDynamicStore )
+                emit( R_WRITEBACK, regAt[ p + SLOT_LIMIT ], p ) ;
+        if ( depth != 0 )
+            emit( R_SETSP, depth, 0 ) ;
+    }
+
+    /**
+     * Translate the code starting at addr into a block.
+     */
+    private Block translate( int addr )
+    {
+        Block b = new Block() ;
+        ops = new int[ 16 * OPSIZE ] ;
+        nOps = 0 ;
+        snapshots = new Vector<int[]>() ;
+        nRegs = 0 ;
+        depth = 0 ;
+        lo = 1 ;
+        hi = 0 ;
+        hasDynamicStore = false ;
+
+        int nInstrs = 0 ;
+        int endOp = R_EXEC ;
+        int codeEnd = memory.getUsedForCode() ;
+        boolean done = false ;
+        while ( ! done )
+        {
+            // an instruction not translated is executed by the machine, which also complains about wrong code;
+            // only the code is translated, other memory may change without notice
+            Instruction instr = addr >= 0 && addr < codeEnd ? Instruction.findByCode( memory.peekAt( addr ) ) : null ;
+            if ( instr == null || addr + instr.getNrInlineOpnds() >= codeEnd || nInstrs >= MAX_INSTRS
+              || ! withinLimit( depth - 2 ) || ! withinLimit( depth + 1 ) )
+                break ;
+            int code = instr.getCode() ;
+            int opnd = instr.getNrInlineOpnds() > 0 ? memory.peekAt( addr + 1 ) : 0 ;
+            int next = addr + instr.getNrMemCells() ;
+            int r, v, a ;
+            boolean translated = true ;
+            switch ( instr.getCategory() )
+            {
+                case Instruction.CTG_BINOP :
+                    v = top( 0 ) ;
+                    a = top( 1 ) ;
+                    emit( R_BINOP, r = newReg(), a, v, code ) ;
+                    depth-- ;
+                    bind( depth, r ) ;
+                    break ;
+
+                case Instruction.CTG_UNOP :
+                    a = top( 0 ) ;
+                    emit( R_UNOP, r = newReg(), a, code, 0 ) ;
+                    bind( depth, r ) ;
+                    break ;
+
+                case Instruction.CTG_OP :
+                    switch ( code )
+                    {
+                        case Instruction.I_LDC :
+                            emit( R_CONST, r = newReg(), opnd ) ;
+                            bind( ++depth, r ) ;
+                            break ;
+
+                        case Instruction.I_LDL :
+                            emit( R_LDL, r = newReg(), opnd, snapshot(), 0 ) ;
+                            bind( ++depth, r ) ;
+                            break ;
+
+                        case Instruction.I_LDS :
+                            r = newReg() ;
+                            if ( inRegs( depth + opnd ) )
+                                emit( R_MOV, r, regAt[ depth + opnd + SLOT_LIMIT ] ) ;
+                            else
+                                emit( R_LOAD, r, depth + opnd ) ;
+                            bind( ++depth, r ) ;
+                            break ;
+
+                        case Instruction.I_LDLA :
+                            emit( R_ADDMP, r = newReg(), opnd ) ;
+                            bind( ++depth, r ) ;
+                            break ;
+
+                        case Instruction.I_LDSA :
+                            emit( R_ADDSP, r = newReg(), depth + opnd ) ;
+                            bind( ++depth, r ) ;
+                            break ;
+
+                        case Instruction.I_LDR :
+                            r = newReg() ;
+                            if ( opnd == Registers.PC )
+                                emit( R_CONST, r, next ) ;
+                            else if ( opnd == Registers.SP )
+                                emit( R_ADDSP, r, depth ) ;
+                            else
+                                emit( R_LDR, r, opnd ) ;
+                            bind( ++depth, r ) ;
+                            break ;
+
+                        case Instruction.I_LDAA :
+                            a = top( 0 ) ;
+                            emit( R_ADDI, r = newReg(), a, opnd, 0 ) ;
+                            bind( depth, r ) ;
+                            break ;
+
+                        case Instruction.I_LDA :
+                        case Instruction.I_LDH :
+                            a = top( 0 ) ;
+                            emit( R_LDA, r = newReg(), a, opnd, snapshot() ) ;
+                            bind( depth, r ) ;
+                            break ;
+
+                        case Instruction.I_STL :
+                            v = top( 0 ) ;
+                            depth-- ;
+                            emit( R_STL, v, opnd, snapshot(), 0 ) ;
+                            hasDynamicStore = true ;
+                            done = true ;
+                            endOp = R_JUMP ;
+                            break ;
+
+                        case Instruction.I_STA :
+                            a = top( 0 ) ;
+                            v = top( 1 ) ;
+                            depth -= 2 ;
+                            emit( R_STA, v, a, opnd, snapshot() ) ;
+                            hasDynamicStore = true ;
+                            done = true ;
+                            endOp = R_JUMP ;
+                            break ;
+
+                        case Instruction.I_STS :
+                            if ( ! withinLimit( depth + opnd ) )
+                            {
+                                translated = false ;
+                                break ;
+                            }
+                            v = top( 0 ) ;
+                            emit( R_MOV, r = newReg(), v ) ;
+                            bind( depth + opnd, r ) ;
+                            depth-- ;
+                            break ;
+
+                        case Instruction.I_ADJS :
+                            // locations exposed are read when used
+                            if ( ! withinLimit( depth + opnd ) )
+                            {
+                                translated = false ;
+                                break ;
+                            }
+                            depth += opnd ;
+                            break ;
+
+                        case Instruction.I_SWP :
+                            v = top( 0 ) ;
+                            a = top( 1 ) ;
+                            bind( depth, a ) ;
+                            bind( depth - 1, v ) ;
+                            break ;
+
+                        case Instruction.I_NOP :
+                            break ;
+
+                        case Instruction.I_BRA :
+                            endOp = R_JUMP ;
+                            next += opnd ;
+                            done = true ;
+                            break ;
+
+                        case Instruction.I_BRT :
+                        case Instruction.I_BRF :
+                            v = top( 0 ) ;
+                            depth-- ;
+                            nInstrs++ ;
+                            flush() ;
+                            emit( code == Instruction.I_BRT ? R_BRT : R_BRF, v, next + opnd, next, 0 ) ;
+                            return finish( b, nInstrs ) ;
+
+                        default :
+                            translated = false ;
+                            break ;
+                    }
+                    break ;
+
+                default :
+                    translated = false ;
+                    break ;
+            }
+            if ( ! translated )
+                break ;
+            nInstrs++ ;
+            addr = next ;
+        }
+        flush() ;
+        emit( endOp, addr, 0 ) ;
+        return finish( b, nInstrs ) ;
+    }
+
+    private Block finish( Block b, int nInstrs )
+    {
+        b.ops = new int[ nOps ] ;
+        System.arraycopy( ops, 0, b.ops, 0, nOps ) ;
+        b.snapshots = snapshots.toArray( new int[ snapshots.size() ][] ) ;
+        b.nRegs = nRegs ;
+        b.nInstrs = nInstrs ;
+        b.lo = lo > hi ? 0 : lo ;
+        ops = null ;
+        snapshots = null ;
+        return b ;
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Loader assembling a program while it is being read, so the machine can start running it before all of it arrived.
+ * Run in a thread of its own, it assembles the lines read so far, and the machine, asking it for code as a CodeSupply,
+ * gets the code up to the first instruction using a label not yet defined.
+ * When the machine reaches code not available yet it waits for it.
+ * The stack must be placed beyond the code, as the code size is not known when the machine starts.
+ */
+public class StreamingLoader
+	implements CodeSupply, Runnable
+{
+    private static final int    BLOCK_SIZE  = 1 << 16 ;
+
+    private Reader          in              ;
+    private Assembler       assembler       ;
+    private MachineState    state           ;
+
+    // shared with the machine, guarded by this
+    private boolean         finished        ;
+    private ProgramImage    image           ;
+    private String          failure         ;
+
+    // only used by the machine
+    private int             loaded          ;
+    private String          unavailableReason ;
+
+    public StreamingLoader( Reader in, MachineState state )
+    {
+        this.in = in ;
+        this.state = state ;
+        assembler = new Assembler() ;
+        assembler.startParts() ;
+    }
+
+    /**
+     * Read and assemble, one part for the complete lines read at once.
+     */
+    public void run()
+    {
+        char buf[] = new char[ BLOCK_SIZE ] ;
+        int len = 0 ;
+        try
+        {
+            for ( int n ; ( n = in.read( buf, len, buf.length - len ) ) >= 0 ; )
+            {
+                len += n ;
+                int end = len ;
+                while ( end > 0 && buf[ end - 1 ] != '\n' )
+                    end-- ;
+                if ( end > 0 )
+                {
+                    assemblePart( buf, end ) ;
+                    System.arraycopy( buf, end, buf, 0, len - end ) ;
+                    len -= end ;
+                }
+                else if ( len == buf.length )
+                {
+                    char newBuf[] = new char[ 2 * buf.length ] ;
+                    System.arraycopy( buf, 0, newBuf, 0, len ) ;
+                    buf = newBuf ;
+                }
+            }
+            synchronized ( this )
+            {
+                if ( len > 0 )
+                    assembler.assemblePart( CharBuffer.wrap( buf, 0, len ) ) ;
+                image = assembler.finishParts() ;
+                finished = true ;
+                notifyAll() ;
+            }
+        }
+        catch ( IOException ex )
+        {
+            synchronized ( this )
+            {
+                failure = ex.getMessage() ;
+                finished = true ;
+                notifyAll() ;
+            }
+        }
+    }
+
+    private synchronized void assemblePart( char buf[], int len )
+    {
+        assembler.assemblePart( CharBuffer.wrap( buf, 0, len ) ) ;
+        notifyAll() ;
+    }
+
+    /**
+     * Wait until the code at addr is available, then put all code available in memory.
+     * Once everything is read, the machine runs on as for a program loaded at once.
+     */
+    public boolean awaitCode( int addr )
+    {
+        if ( addr < loaded )
+            return true ;
+        synchronized ( this )
+        {
+            try
+            {
+                while ( ! finished && addr >= assembler.getFinishedCodeSize() )
+                    wait() ;
+            }
+            catch ( InterruptedException ex )
+            {
+                unavailableReason = "interrupted while waiting for code" ;
+                return false ;
+            }
+            boolean complete = finished && failure == null ;
+            int size = complete ? image.getCodeSize() : assembler.getFinishedCodeSize() ;
+            int fitting = Math.min( size, state.getStackBottom() ) ;
+            if ( fitting > state.getMemory().getUsedForCode() )
+                state.getMemory().appendCode( complete ? image.code : assembler.getCode(), fitting ) ;
+            loaded = complete && size == fitting ? Integer.MAX_VALUE : fitting ;
+            if ( addr < loaded )
+                return true ;
+            if ( size > fitting )
+                unavailableReason = "code reaches the stack at " + Utils.asHex( state.getStackBottom() ) ;
+            else
+                unavailableReason = "cannot read code: " + failure ;
+            return false ;
+        }
+    }
+
+    public String getUnavailableReason()
+    {
+        return unavailableReason ;
+    }
+
+    public synchronized boolean isFinished()
+    {
+        return finished ;
+    }
+
+    /**
+     * @return The program assembled, null until all of it has been read
+     */
+    public synchronized ProgramImage getImage()
+    {
+        return image ;
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Input given in advance as values, each value being a line, for example from a test.
+ */
+public class ValuesInputSource extends InputSource
+{
+    private List<String>    values  ;
+    private int             next    ;
+
+    public ValuesInputSource( List<String> values )
+    {
+        this.values = values ;
+    }
+
+    public ValuesInputSource( int... values )
+    {
+        this.values = new ArrayList<String>() ;
+        for ( int v : values )
+            this.values.add( Integer.toString( v ) ) ;
+    }
+
+    protected String nextLine()
+    {
+        return next < values.size() ? values.get( next++ ) : null ;
+    }
+
+}
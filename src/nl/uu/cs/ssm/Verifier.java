@@ -0,0 +1,660 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * Static check of the stack use of a program, before running it.
+ * Following the control flow from the start and from subroutines called with bsr,
+ * the stack depth before each instruction is computed, relative to the start of the subroutine it belongs to.
+ * A call continues with the depth at which the subroutine returns, so subroutines which clean up arguments are understood.
+ * Reported are popping below the bottom of the stack, control flow meeting with different depths,
+ * returns with different depths, and branches to a location which is not an instruction.
+ * Code whose depth cannot be known, for example after changing SP by str or after a jsr to a computed address, is not checked.
+ *
+ * Besides, lds, sts, ldl and stl accesses proven to stay within memory are marked,
+ * so the machine can skip checking them, see Machine.setInBounds.
+ * This requires knowing the range of depths at which a subroutine can be entered, so it fails for recursive subroutines.
+ */
+public class Verifier
+{
+    private static final int    UNKNOWN     = Integer.MIN_VALUE ;
+    private static final int    ENTRY_MP    = Integer.MIN_VALUE + 1 ;   // MP as it was at the start of the subroutine
+    private static final int    SHARED      = -1 ;                      // code belonging to several subroutines
+    private static final long   INF         = 1L << 40 ;
+
+    /**
+     * A subroutine, or the main program.
+     */
+    private class Proc
+    {
+        int             entry ;
+        int             retDepth    = UNKNOWN ;
+        boolean         keepsMP ;
+        boolean         returns ;
+        Vector<Integer> waiting     = new Vector<Integer>() ;   // calls waiting for the depth at return
+        long            lo          = INF ;                     // range of absolute depths at entry
+        long            hi          = -INF ;
+
+        Proc( int e )
+        {
+            entry = e ;
+        }
+    }
+
+    /**
+     * A call, the depth being that of the return address.
+     */
+    private class Call
+    {
+        int         caller ;
+        int         depth ;
+        int         callee ;
+
+        Call( int p, int d, int c )
+        {
+            caller = p ;
+            depth = d ;
+            callee = c ;
+        }
+    }
+
+    private ProgramImage        image       ;
+    private int                 stackBottom ;
+    private int                 capacity    ;
+
+    private int                 nInstrs     ;
+    private Instruction         instrs[]    ;
+    private boolean             isTarget[]  ;
+
+    private boolean             visited[]   ;
+    private int                 depth[]     ;
+    private int                 mp[]        ;
+    private int                 savedMP[]   ;
+    private int                 proc[]      ;
+    private boolean             reported[]  ;
+    private int                 need[]      ;   // number of values popped
+    private int                 access[]    ;   // relative depth of the cell accessed by lds, sts, ldl and stl
+
+    private Vector<Proc>        procs       ;
+    private Vector<Call>        calls       ;
+    private Vector<Integer>     work        ;
+    private Vector<String>      messages    ;
+    private boolean             inBounds[]  ;
+    private boolean             unknownJump ;   // control transferred to a location computed at runtime
+
+    /**
+     * Verify a program as it is loaded in a machine, with the stack bottom and memory size of the machine.
+     */
+    public Verifier( ProgramImage image, MachineState state )
+    {
+        this.image = image ;
+        stackBottom = state.getStackBottom() ;
+        capacity = state.getMemory().getCapacity() ;
+    }
+
+    /**
+     * @return True if no problems were found
+     */
+    public boolean verify()
+    {
+        nInstrs = image.getNrInstrs() ;
+        instrs = new Instruction[ nInstrs ] ;
+        isTarget = new boolean[ nInstrs ] ;
+        visited = new boolean[ nInstrs ] ;
+        depth = new int[ nInstrs ] ;
+        mp = new int[ nInstrs ] ;
+        savedMP = new int[ nInstrs ] ;
+        proc = new int[ nInstrs ] ;
+        reported = new boolean[ nInstrs ] ;
+        need = new int[ nInstrs ] ;
+        access = new int[ nInstrs ] ;
+        procs = new Vector<Proc>() ;
+        calls = new Vector<Call>() ;
+        work = new Vector<Integer>() ;
+        messages = new Vector<String>() ;
+        inBounds = new boolean[ image.getCodeSize() ] ;
+        unknownJump = false ;
+
+        for ( int i = 0 ; i < nInstrs ; i++ )
+        {
+            instrs[ i ] = image.getInstruction( i ) ;
+            access[ i ] = UNKNOWN ;
+            Instruction instr = instrs[ i ] ;
+            if ( instr != null && instr.getNrInlineOpnds() > 0 && instr.isRelativeOpnd( 0 ) )
+            {
+                int t = targetOf( i ) ;
+                if ( t >= 0 )
+                    isTarget[ t ] = true ;
+            }
+        }
+
+        if ( nInstrs > 0 )
+        {
+            procs.addElement( new Proc( 0 ) ) ;
+            Proc main = procs.elementAt( 0 ) ;
+            main.lo = main.hi = 0 ;
+            flowTo( 0, 0, 0, UNKNOWN, 0 ) ;
+        }
+        while ( work.size() > 0 )
+        {
+            int i = work.lastElement() ;
+            work.removeElementAt( work.size() - 1 ) ;
+            step( i ) ;
+        }
+        computeEntryDepths() ;
+        check() ;
+        return messages.size() == 0 ;
+    }
+
+    private void addMessage( int i, String msg )
+    {
+        int lineNr = image.getLineNr( i ) ;
+        messages.addElement( lineNr > 0 ? ( "Line " + lineNr + ": " + msg ) : msg ) ;
+    }
+
+    private int opnd( int i, int n )
+    {
+        return image.getCodeAt( image.getInstrLoc( i ) + 1 + n ) ;
+    }
+
+    /**
+     * @return The index of the instruction a pc relative operand refers to, -1 if not an instruction
+     */
+    private int targetOf( int i )
+    {
+        int addr = image.getInstrLoc( i ) + instrs[ i ].getNrMemCells() + opnd( i, 0 ) ;
+        int t = image.getInstrIndexAt( addr ) ;
+        return ( t >= 0 && image.getInstrLoc( t ) == addr ) ? t : -1 ;
+    }
+
+    /**
+     * Let control flow to instruction i, merging with the flow which already got there.
+     */
+    private void flowTo( int i, int d, int m, int sm, int p )
+    {
+        if ( ! visited[ i ] )
+        {
+            visited[ i ] = true ;
+            depth[ i ] = d ;
+            mp[ i ] = m ;
+            savedMP[ i ] = sm ;
+            proc[ i ] = p ;
+            work.addElement( i ) ;
+            return ;
+        }
+        boolean changed = false ;
+        if ( proc[ i ] != p && proc[ i ] != SHARED )
+        {
+            proc[ i ] = SHARED ;
+            changed = true ;
+        }
+        if ( proc[ i ] == SHARED )
+            d = UNKNOWN ;
+        if ( depth[ i ] != d && depth[ i ] != UNKNOWN )
+        {
+            if ( d != UNKNOWN && ! reported[ i ] )
+            {
+                addMessage( i, "stack depth " + depth[ i ] + " here, but " + d + " on another path" ) ;
+                reported[ i ] = true ;
+            }
+            depth[ i ] = UNKNOWN ;
+            changed = true ;
+        }
+        if ( mp[ i ] != m && mp[ i ] != UNKNOWN )
+        {
+            mp[ i ] = UNKNOWN ;
+            changed = true ;
+        }
+        if ( savedMP[ i ] != sm && savedMP[ i ] != UNKNOWN )
+        {
+            savedMP[ i ] = UNKNOWN ;
+            changed = true ;
+        }
+        if ( changed )
+            work.addElement( i ) ;
+    }
+
+    private static boolean isKnown( int v )
+    {
+        return v != UNKNOWN && v != ENTRY_MP ;
+    }
+
+    private static int add( int v, int n )
+    {
+        return isKnown( v ) ? v + n : UNKNOWN ;
+    }
+
+    /**
+     * @return The subroutine starting at instruction t, which is created when new
+     */
+    private int procAt( int t )
+    {
+        for ( int p = 0 ; p < procs.size() ; p++ )
+            if ( procs.elementAt( p ).entry == t )
+                return p ;
+        procs.addElement( new Proc( t ) ) ;
+        flowTo( t, 0, ENTRY_MP, UNKNOWN, procs.size() - 1 ) ;
+        return procs.size() - 1 ;
+    }
+
+    /**
+     * Call the subroutine at instruction t from i, with the return address at depth d.
+     */
+    private void call( int i, int t, int d )
+    {
+        int p = procAt( t ) ;
+        calls.addElement( new Call( proc[ i ], d, p ) ) ;
+        Proc callee = procs.elementAt( p ) ;
+        if ( callee.returns )
+            returnFrom( i, callee ) ;
+        else
+            callee.waiting.addElement( i ) ;
+    }
+
+    /**
+     * Continue after the call at i, the callee having returned.
+     */
+    private void returnFrom( int i, Proc callee )
+    {
+        if ( i + 1 >= nInstrs )
+            return ;
+        int d = depth[ i ] ;
+        if ( instrs[ i ].getCode() == Instruction.I_JSR )
+            d-- ;
+        d = isKnown( callee.retDepth ) ? add( d, callee.retDepth ) : UNKNOWN ;
+        boolean keep = callee.keepsMP && d != UNKNOWN ;
+        flowTo( i + 1, d, keep ? mp[ i ] : UNKNOWN, keep ? savedMP[ i ] : UNKNOWN, proc[ i ] ) ;
+    }
+
+    /**
+     * @return The change in depth by a trap, UNKNOWN if it depends on what happens at runtime
+     */
+    private static int trapEffect( int trap )
+    {
+        switch ( trap )
+        {
+            case Instruction.TR_PR_INT :
+            case Instruction.TR_PR_CHAR :
+            case Instruction.TR_FILE_CLOSE :
+                return -1 ;
+            case Instruction.TR_IN_INT :
+            case Instruction.TR_IN_CHAR :
+                return 1 ;
+            case Instruction.TR_FILE_READ :
+                return 0 ;
+            case Instruction.TR_FILE_WRITE :
+            case Instruction.TR_PR_STRING :
+                return -1 ;
+            case Instruction.TR_MEM_COMPARE :
+                return -2 ;
+            case Instruction.TR_MEM_COPY :
+            case Instruction.TR_MEM_SET :
+                return -3 ;
+            case Instruction.TR_IN_LINE_HEAP :
+                return 1 ;
+            case Instruction.TR_IN_CHAR_ARRAY :
+            case Instruction.TR_INTRINSIC :
+            case Instruction.TR_FILE_OPEN_READ :
+            case Instruction.TR_FILE_OPEN_WRITE :
+                return UNKNOWN ;
+            default :
+                return 0 ;
+        }
+    }
+
+    private static int trapNeed( int trap )
+    {
+        switch ( trap )
+        {
+            case Instruction.TR_PR_INT :
+            case Instruction.TR_PR_CHAR :
+            case Instruction.TR_FILE_CLOSE :
+            case Instruction.TR_FILE_READ :
+            case Instruction.TR_PR_STRING :
+            case Instruction.TR_INTRINSIC :
+                return 1 ;
+            case Instruction.TR_FILE_WRITE :
+                return 2 ;
+            case Instruction.TR_MEM_COPY :
+            case Instruction.TR_MEM_SET :
+            case Instruction.TR_MEM_COMPARE :
+                return 3 ;
+            default :
+                return 0 ;
+        }
+    }
+
+    /**
+     * Follow the control flow from instruction i.
+     */
+    private void step( int i )
+    {
+        Instruction instr = instrs[ i ] ;
+        if ( instr == null )
+            return ;
+        int d = depth[ i ], m = mp[ i ], sm = savedMP[ i ], p = proc[ i ] ;
+        boolean fallsThrough = i + 1 < nInstrs ;
+        int n = 0, t, e ;
+        int after = d ;
+        switch ( instr.getCategory() )
+        {
+            case Instruction.CTG_BINOP :
+                n = 2 ;
+                after = add( d, -1 ) ;
+                break ;
+
+            case Instruction.CTG_UNOP :
+                n = 1 ;
+                break ;
+
+            case Instruction.CTG_OP :
+                switch ( instr.getCode() )
+                {
+                    case Instruction.I_ADJS :
+                        n = Math.max( 0, -opnd( i, 0 ) ) ;
+                        after = add( d, opnd( i, 0 ) ) ;
+                        break ;
+
+                    case Instruction.I_BRA :
+                    case Instruction.I_BRF :
+                    case Instruction.I_BRT :
+                        if ( instr.getCode() != Instruction.I_BRA )
+                        {
+                            n = 1 ;
+                            after = add( d, -1 ) ;
+                        }
+                        else
+                            fallsThrough = false ;
+                        t = targetOf( i ) ;
+                        if ( t >= 0 )
+                            flowTo( t, after, m, sm, p ) ;
+                        else
+                            addMessage( i, instr.getRepr() + " to a location which is not an instruction" ) ;
+                        break ;
+
+                    case Instruction.I_BSR :
+                    case Instruction.I_JSR :
+                        need[ i ] = instr.getCode() == Instruction.I_JSR ? 1 : 0 ;
+                        t = instr.getCode() == Instruction.I_BSR ? targetOf( i ) : jsrTargetOf( i ) ;
+                        if ( t >= 0 )
+                            call( i, t, add( d, 1 - need[ i ] ) ) ;
+                        else if ( instr.getCode() == Instruction.I_BSR )
+                            addMessage( i, "bsr to a location which is not an instruction" ) ;
+                        else
+                        {
+                            unknownJump = true ;
+                            if ( fallsThrough )
+                                flowTo( i + 1, UNKNOWN, UNKNOWN, UNKNOWN, p ) ;
+                        }
+                        return ;
+
+                    case Instruction.I_HALT :
+                        fallsThrough = false ;
+                        break ;
+
+                    case Instruction.I_RET :
+                        need[ i ] = 1 ;
+                        if ( p != SHARED )
+                            returnsFrom( i, procs.elementAt( p ), d, m ) ;
+                        return ;
+
+                    case Instruction.I_LINK :
+                        sm = m ;
+                        m = add( d, 1 ) ;
+                        after = add( d, 1 + opnd( i, 0 ) ) ;
+                        break ;
+
+                    case Instruction.I_UNLINK :
+                        after = add( m, -1 ) ;
+                        m = isKnown( m ) ? sm : UNKNOWN ;
+                        sm = UNKNOWN ;
+                        break ;
+
+                    case Instruction.I_LDS :
+                    case Instruction.I_STS :
+                        access[ i ] = add( d, opnd( i, 0 ) ) ;
+                        n = instr.getCode() == Instruction.I_STS ? 1 : 0 ;
+                        after = add( d, n == 1 ? -1 : 1 ) ;
+                        break ;
+
+                    case Instruction.I_LDL :
+                    case Instruction.I_STL :
+                        access[ i ] = add( m, opnd( i, 0 ) ) ;
+                        n = instr.getCode() == Instruction.I_STL ? 1 : 0 ;
+                        after = add( d, n == 1 ? -1 : 1 ) ;
+                        break ;
+
+                    case Instruction.I_LDC :
+                    case Instruction.I_LDSA :
+                    case Instruction.I_LDLA :
+                    case Instruction.I_LDR :
+                        after = add( d, 1 ) ;
+                        break ;
+
+                    case Instruction.I_LDMS :
+                    case Instruction.I_LDML :
+                        after = add( d, opnd( i, 1 ) ) ;
+                        break ;
+
+                    case Instruction.I_LDA :
+                    case Instruction.I_LDAA :
+                    case Instruction.I_LDH :
+                    case Instruction.I_STH :
+                        n = 1 ;
+                        break ;
+
+                    case Instruction.I_LDMA :
+                    case Instruction.I_LDMH :
+                        n = 1 ;
+                        after = add( d, opnd( i, 1 ) - 1 ) ;
+                        break ;
+
+                    case Instruction.I_STA :
+                        n = 2 ;
+                        after = add( d, -2 ) ;
+                        break ;
+
+                    case Instruction.I_STMS :
+                    case Instruction.I_STML :
+                        n = opnd( i, 1 ) ;
+                        after = add( d, -n ) ;
+                        break ;
+
+                    case Instruction.I_STMA :
+                        n = 1 + opnd( i, 1 ) ;
+                        after = add( d, -n ) ;
+                        break ;
+
+                    case Instruction.I_STMH :
+                        n = opnd( i, 0 ) ;
+                        after = add( d, 1 - n ) ;
+                        break ;
+
+                    case Instruction.I_SWP :
+                        n = 2 ;
+                        break ;
+
+                    case Instruction.I_STR :
+                    case Instruction.I_SWPR :
+                    case Instruction.I_LDRR :
+                    case Instruction.I_SWPRR :
+                        // registers changed, the second only by swprr
+                        int r1 = opnd( i, 0 ) ;
+                        int r2 = instr.getCode() == Instruction.I_SWPRR ? opnd( i, 1 ) : r1 ;
+                        if ( instr.getCode() == Instruction.I_STR || instr.getCode() == Instruction.I_SWPR )
+                            n = 1 ;
+                        if ( instr.getCode() == Instruction.I_STR )
+                            after = add( d, -1 ) ;
+                        if ( r1 == Registers.PC || r2 == Registers.PC )
+                        {
+                            fallsThrough = false ;
+                            unknownJump = true ;
+                        }
+                        if ( r1 == Registers.SP || r2 == Registers.SP )
+                            after = UNKNOWN ;
+                        if ( r1 == Registers.MP || r2 == Registers.MP )
+                            m = sm = UNKNOWN ;
+                        break ;
+
+                    case Instruction.I_TRAP :
+                        n = trapNeed( opnd( i, 0 ) ) ;
+                        e = trapEffect( opnd( i, 0 ) ) ;
+                        after = e == UNKNOWN ? UNKNOWN : add( d, e ) ;
+                        break ;
+
+                    default :
+                        break ;
+                }
+                break ;
+
+            default :
+                break ;
+        }
+        need[ i ] = n ;
+        if ( fallsThrough )
+            flowTo( i + 1, after, m, sm, p ) ;
+    }
+
+    /**
+     * @return The instruction a jsr jumps to, when its address is loaded just before by ldc, -1 if not known
+     */
+    private int jsrTargetOf( int i )
+    {
+        if ( i == 0 || isTarget[ i ] || instrs[ i - 1 ] == null || instrs[ i - 1 ].getCode() != Instruction.I_LDC )
+            return -1 ;
+        int addr = opnd( i - 1, 0 ) ;
+        int t = image.getInstrIndexAt( addr ) ;
+        return ( t >= 0 && image.getInstrLoc( t ) == addr ) ? t : -1 ;
+    }
+
+    /**
+     * A ret at i in subroutine p, with the return address at depth d.
+     */
+    private void returnsFrom( int i, Proc p, int d, int m )
+    {
+        if ( p.returns )
+        {
+            if ( p.retDepth != d && isKnown( p.retDepth ) && isKnown( d ) && ! reported[ i ] )
+            {
+                addMessage( i, "ret with stack depth " + d + ", but " + p.retDepth + " at another ret of the subroutine" ) ;
+                reported[ i ] = true ;
+            }
+            return ;
+        }
+        p.returns = true ;
+        p.retDepth = d ;
+        p.keepsMP = m == ENTRY_MP ;
+        for ( Enumeration<Integer> e = p.waiting.elements() ; e.hasMoreElements() ; )
+            returnFrom( e.nextElement(), p ) ;
+        p.waiting.removeAllElements() ;
+    }
+
+    /**
+     * Compute the range of absolute depths at which each subroutine can be entered, from those of its callers.
+     * Ranges still growing after as many rounds as there are subroutines come from recursion, and are taken to be unbounded.
+     */
+    private void computeEntryDepths()
+    {
+        int nProcs = procs.size() ;
+        boolean growing[] = new boolean[ nProcs ] ;
+        for ( int round = 0 ; round <= 2 * nProcs + 2 ; round++ )
+        {
+            boolean widen = round > nProcs ;
+            boolean changed = false ;
+            for ( Enumeration<Call> e = calls.elements() ; e.hasMoreElements() ; )
+            {
+                Call c = e.nextElement() ;
+                Proc callee = procs.elementAt( c.callee ) ;
+                long lo, hi ;
+                if ( c.caller == SHARED || c.depth == UNKNOWN )
+                {
+                    lo = -INF ;
+                    hi = INF ;
+                }
+                else
+                {
+                    Proc caller = procs.elementAt( c.caller ) ;
+                    if ( caller.lo > caller.hi )
+                        continue ;
+                    lo = caller.lo <= -INF ? -INF : caller.lo + c.depth ;
+                    hi = caller.hi >= INF ? INF : caller.hi + c.depth ;
+                }
+                if ( lo < callee.lo )
+                {
+                    callee.lo = widen && growing[ c.callee ] ? -INF : Math.max( lo, -INF ) ;
+                    growing[ c.callee ] = changed = true ;
+                }
+                if ( hi > callee.hi )
+                {
+                    callee.hi = widen && growing[ c.callee ] ? INF : Math.min( hi, INF ) ;
+                    growing[ c.callee ] = changed = true ;
+                }
+            }
+            if ( ! changed )
+                break ;
+            if ( round == nProcs )
+                for ( int p = 0 ; p < nProcs ; p++ )
+                    growing[ p ] = false ;
+        }
+    }
+
+    /**
+     * Report popping below the stack bottom, and find the accesses staying within memory.
+     * When the target of a jump is computed at runtime, any code may be entered at any depth,
+     * so then no access is taken to be within memory.
+     */
+    private void check()
+    {
+        for ( int i = 0 ; i < nInstrs ; i++ )
+        {
+            if ( ! visited[ i ] || depth[ i ] == UNKNOWN || proc[ i ] == SHARED )
+                continue ;
+            Proc p = procs.elementAt( proc[ i ] ) ;
+            if ( p.lo > p.hi || p.lo <= -INF )
+                continue ;
+            if ( need[ i ] > 0 && p.lo + depth[ i ] - need[ i ] < 0 )
+                addMessage( i, "stack underflow by " + instrs[ i ].getRepr() ) ;
+            if ( access[ i ] != UNKNOWN && p.hi < INF && ! unknownJump )
+            {
+                long lowest = stackBottom - 1 + p.lo + access[ i ] ;
+                long highest = stackBottom - 1 + p.hi + access[ i ] ;
+                inBounds[ image.getInstrLoc( i ) ] = lowest >= 0 && highest < capacity ;
+            }
+        }
+    }
+
+    public Enumeration<String> getMessages()
+    {
+        return messages.elements() ;
+    }
+
+    /**
+     * @return For each address, whether the instruction there only accesses memory within bounds
+     */
+    public boolean[] getInBounds()
+    {
+        return inBounds ;
+    }
+
+    /**
+     * @return The number of accesses found to stay within memory
+     */
+    public int getNrInBounds()
+    {
+        int n = 0 ;
+        for ( int i = 0 ; i < inBounds.length ; i++ )
+            if ( inBounds[ i ] )
+                n++ ;
+        return n ;
+    }
+
+}
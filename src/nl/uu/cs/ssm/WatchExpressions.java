@@ -0,0 +1,113 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+/**
+ * Watch expressions, which stop execution when their value changes.
+ * A condition like SP > 1800 thus stops when it becomes true, and again when it becomes false.
+ * Expressions and their last values are kept in arrays so checking after each step does not allocate.
+ */
+public class WatchExpressions
+{
+    private Expression  expressions[]   = new Expression[ 0 ] ;
+    private int         values[]        = new int[ 0 ] ;
+
+    private int         changed         = -1 ;
+    private int         oldValue        ;
+
+    public void clearAll()
+    {
+        expressions = new Expression[ 0 ] ;
+        values = new int[ 0 ] ;
+        changed = -1 ;
+    }
+
+    public void add( Expression e )
+    {
+        int n = expressions.length ;
+        Expression newExpressions[] = new Expression[ n + 1 ] ;
+        int newValues[] = new int[ n + 1 ] ;
+        System.arraycopy( expressions, 0, newExpressions, 0, n ) ;
+        System.arraycopy( values, 0, newValues, 0, n ) ;
+        newExpressions[ n ] = e ;
+        newValues[ n ] = e.eval() ;
+        expressions = newExpressions ;
+        values = newValues ;
+    }
+
+    public void remove( int i )
+    {
+        int n = expressions.length - 1 ;
+        Expression newExpressions[] = new Expression[ n ] ;
+        int newValues[] = new int[ n ] ;
+        System.arraycopy( expressions, 0, newExpressions, 0, i ) ;
+        System.arraycopy( expressions, i + 1, newExpressions, i, n - i ) ;
+        System.arraycopy( values, 0, newValues, 0, i ) ;
+        System.arraycopy( values, i + 1, newValues, i, n - i ) ;
+        expressions = newExpressions ;
+        values = newValues ;
+        changed = -1 ;
+    }
+
+    public int getNrExpressions()
+    {
+        return expressions.length ;
+    }
+
+    public Expression getExpression( int i )
+    {
+        return expressions[ i ] ;
+    }
+
+    public boolean isEmpty()
+    {
+        return expressions.length == 0 ;
+    }
+
+    /**
+     * Take the current values as the ones to compare with, e.g. after a reset.
+     */
+    public void resample()
+    {
+        for ( int i = 0 ; i < expressions.length ; i++ )
+            values[ i ] = expressions[ i ].eval() ;
+        changed = -1 ;
+    }
+
+    /**
+     * Evaluate all expressions, remembering the first one which changed value.
+     * @return True if some expression changed value
+     */
+    public boolean check()
+    {
+        changed = -1 ;
+        for ( int i = 0 ; i < expressions.length ; i++ )
+        {
+            int v = expressions[ i ].eval() ;
+            if ( v != values[ i ] )
+            {
+                if ( changed < 0 )
+                {
+                    changed = i ;
+                    oldValue = values[ i ] ;
+                }
+                values[ i ] = v ;
+            }
+        }
+        return changed >= 0 ;
+    }
+
+    public String getChangeDescription()
+    {
+        if ( changed < 0 )
+            return "" ;
+        return "watch " + expressions[ changed ] + ": " + oldValue + " -> " + values[ changed ] ;
+    }
+
+}
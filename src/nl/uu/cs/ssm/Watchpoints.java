@@ -0,0 +1,177 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssm ;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * Watchpoints on ranges of memory.
+ * Memory keeps a flag per page of PAGE_SIZE cells telling whether a watchpoint is on that page,
+ * so an access to an unwatched page costs one array probe.
+ * Only accesses on a watched page are matched against the watchpoints themselves.
+ * A hit is remembered until the next instruction starts, execution is stopped by the run loop.
+ */
+public class Watchpoints
+{
+    public static final int     PAGE_SHIFT  = 6 ;
+    public static final int     PAGE_SIZE   = 1 << PAGE_SHIFT ;
+
+    public static final int     READ        = 1 ;
+    public static final int     WRITE       = 2 ;
+
+    private class Watchpoint
+    {
+        int     lo, hi ;
+        int     kind ;
+
+        Watchpoint( int l, int h, int k )
+        {
+            lo = l ;
+            hi = h ;
+            kind = k ;
+        }
+
+        boolean matches( int addr, int k )
+        {
+            return addr >= lo && addr <= hi && ( kind & k ) != 0 ;
+        }
+    }
+
+    private Memory              memory      ;
+    private Vector<Watchpoint>  watchpoints ;
+
+    private boolean             isHit       ;
+    private int                 hitKind     ;
+    private int                 hitAddr     ;
+    private int                 hitOldValue ;
+    private int                 hitNewValue ;
+
+    protected Watchpoints( Memory m )
+    {
+        memory = m ;
+        watchpoints = new Vector<Watchpoint>() ;
+    }
+
+    public void clearAll()
+    {
+        watchpoints.removeAllElements() ;
+        updatePages() ;
+        clearHit() ;
+    }
+
+    /**
+     * Watch the cells lo..hi (inclusive) for the READ and/or WRITE access in kind.
+     */
+    public void set( int lo, int hi, int kind )
+    {
+        watchpoints.addElement( new Watchpoint( Math.min( lo, hi ), Math.max( lo, hi ), kind ) ) ;
+        updatePages() ;
+    }
+
+    public void clear( int addr )
+    {
+        for ( int i = watchpoints.size() - 1 ; i >= 0 ; i-- )
+        {
+            Watchpoint w = watchpoints.elementAt( i ) ;
+            if ( addr >= w.lo && addr <= w.hi )
+                watchpoints.removeElementAt( i ) ;
+        }
+        updatePages() ;
+    }
+
+    /**
+     * @return The kinds of access watched at addr
+     */
+    public int getKindAt( int addr )
+    {
+        int kind = 0 ;
+        for ( Enumeration<Watchpoint> e = watchpoints.elements() ; e.hasMoreElements() ; )
+        {
+            Watchpoint w = e.nextElement() ;
+            if ( addr >= w.lo && addr <= w.hi )
+                kind |= w.kind ;
+        }
+        return kind ;
+    }
+
+    public boolean isEmpty()
+    {
+        return watchpoints.isEmpty() ;
+    }
+
+    private void updatePages()
+    {
+        byte pages[] = memory.watchedPages ;
+        Arrays.fill( pages, (byte)0 ) ;
+        for ( Enumeration<Watchpoint> e = watchpoints.elements() ; e.hasMoreElements() ; )
+        {
+            Watchpoint w = e.nextElement() ;
+            int lo = Math.max( 0, w.lo ) >> PAGE_SHIFT ;
+            int hi = Math.min( pages.length - 1, w.hi >> PAGE_SHIFT ) ;
+            for ( int p = lo ; p <= hi ; p++ )
+                pages[ p ] |= w.kind ;
+        }
+    }
+
+    protected void read( int addr, int v )
+    {
+        access( READ, addr, v, v ) ;
+    }
+
+    protected void written( int addr, int oldv, int newv )
+    {
+        access( WRITE, addr, oldv, newv ) ;
+    }
+
+    private void access( int kind, int addr, int oldv, int newv )
+    {
+        if ( isHit )
+            return ;
+        for ( Enumeration<Watchpoint> e = watchpoints.elements() ; e.hasMoreElements() ; )
+        {
+            if ( e.nextElement().matches( addr, kind ) )
+            {
+                isHit = true ;
+                hitKind = kind ;
+                hitAddr = addr ;
+                hitOldValue = oldv ;
+                hitNewValue = newv ;
+                return ;
+            }
+        }
+    }
+
+    public void clearHit()
+    {
+        isHit = false ;
+    }
+
+    public boolean isHit()
+    {
+        return isHit ;
+    }
+
+    public int getHitAddress()
+    {
+        return hitAddr ;
+    }
+
+    public String getHitDescription( int pc )
+    {
+        if ( hitKind == READ )
+            return "watchpoint: instruction at " + Utils.asHex( pc ) + " read " + Utils.asHex( hitAddr )
+                 + ", value " + Utils.asHex( hitNewValue ) ;
+        else
+            return "watchpoint: instruction at " + Utils.asHex( pc ) + " wrote " + Utils.asHex( hitAddr )
+                 + ", old value " + Utils.asHex( hitOldValue ) + ", new value " + Utils.asHex( hitNewValue ) ;
+    }
+
+}
@@ -0,0 +1,592 @@
+package nl.uu.cs.ssmui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.uu.cs.ssm.Machine;
+import nl.uu.cs.ssm.MachineState;
+import nl.uu.cs.ssm.MemoryFiles;
+import nl.uu.cs.ssm.Messenger;
+import nl.uu.cs.ssm.ProgramCache;
+import nl.uu.cs.ssm.ProgramImage;
+import nl.uu.cs.ssm.ProgramImageFile;
+import nl.uu.cs.ssm.Utils;
+import nl.uu.cs.ssm.ValuesInputSource;
+
+/**
+ * Runs many programs at once, each compared to its expected output like CliTestRunner does for a single one.
+ * <p>
+ * Each test has its own machine, so tests run concurrently on a pool of threads.
+ * The input of a test is given with the test, or else read from [expected output].in when it exists, so one program
+ * can be run against many inputs, each with its own expected output; otherwise there is no input.
+ * The files of the file traps are kept in memory, starting with those in the directory [program].files when it exists,
+ * so tests writing the same file do not disturb each other.
+ * The files written are kept with the result, and those in the directory [expected output].files.out, when it exists,
+ * must have been written with the same contents.
+ * A program cache can be shared by all tests, so a program run for several tests is assembled only once.
+ * The results are reported as JSON or JUnit XML, and nothing exits, so the runner can be used from other code.
+ */
+public class BatchTestRunner {
+    public static final String PASS = "pass";
+    public static final String FAIL = "fail";
+    public static final String TIMEOUT = "timeout";
+    public static final String ERROR = "error";
+
+    /**
+     * The steps run between checks of the time limit.
+     */
+    private static final long SLICE = 100000;
+
+    /**
+     * A program together with its input and the output expected from it.
+     */
+    public static class Test {
+        private File program;
+        private File expectedOutput;
+        private File input;
+
+        public Test(File program, File expectedOutput) {
+            this(program, expectedOutput, null);
+        }
+
+        /**
+         * @param input The input, null for [expected output].in if it exists
+         */
+        public Test(File program, File expectedOutput, File input) {
+            this.program = program;
+            this.expectedOutput = expectedOutput;
+            this.input = input;
+        }
+
+        public File getProgram() {
+            return program;
+        }
+
+        public File getExpectedOutput() {
+            return expectedOutput;
+        }
+
+        /**
+         * @return The input, null if none
+         */
+        public File getInput() {
+            if (input != null) {
+                return input;
+            }
+            File f = new File(Utils.withoutExtension(expectedOutput) + ".in");
+            return f.exists() ? f : null;
+        }
+
+        /**
+         * @return The name of the expected output without its directory and extension,
+         *         which tells tests of the same program apart
+         */
+        public String getName() {
+            String name = expectedOutput.getName();
+            int i = name.lastIndexOf('.');
+            return i > 0 ? name.substring(0, i) : name;
+        }
+
+        /**
+         * @return The file next to the program, with the same name but another extension
+         */
+        File sibling(String extension) {
+            return new File(Utils.withoutExtension(program) + extension);
+        }
+
+        /**
+         * @return The directory of the files the program must write
+         */
+        File expectedFiles() {
+            return new File(Utils.withoutExtension(expectedOutput) + ".files.out");
+        }
+    }
+
+    /**
+     * The outcome of a test, with status one of PASS, FAIL, TIMEOUT or ERROR.
+     */
+    public static class Result {
+        private Test test;
+        private String status;
+        private String message;
+        private String output;
+        private long steps;
+        private long millis;
+        private MemoryFiles files;
+
+        Result(Test test, String status, String message, String output, long steps, long millis) {
+            this.test = test;
+            this.status = status;
+            this.message = message;
+            this.output = output;
+            this.steps = steps;
+            this.millis = millis;
+        }
+
+        public Test getTest() {
+            return test;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isPassed() {
+            return status.equals(PASS);
+        }
+
+        /**
+         * @return Why the test did not pass, null if it did
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return The output of the program, without the message of halting
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        public long getNrSteps() {
+            return steps;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return The files of the test, with those written by the program, null if it did not run
+         */
+        public MemoryFiles getFiles() {
+            return files;
+        }
+    }
+
+    /**
+     * Collects the output of a single test, as the machine of that test only uses print and println.
+     */
+    private static class Capture implements Messenger {
+        private StringBuilder out = new StringBuilder();
+
+        public void print(String s) {
+            out.append(s);
+        }
+
+        public void println(String s) {
+            out.append(s).append('\n');
+        }
+
+        // input is given by an input source, so is never asked for
+        public int promptInt() {
+            return 0;
+        }
+
+        public int promptChar() {
+            return -1;
+        }
+
+        public int[] promptCharArray() {
+            return new int[0];
+        }
+    }
+
+    private Vector<Test> tests = new Vector<Test>();
+    private int threads;
+    private long maxSteps = -1;
+    private long timeout = -1;
+    private boolean registers;
+    private ProgramCache programCache;
+
+    public BatchTestRunner(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Stop a test after maxSteps steps, a negative number for no limit.
+     */
+    public void setMaxSteps(long maxSteps) {
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Stop a test after running millis milliseconds, a negative number for no limit.
+     */
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
+
+    public void setUseRegisterEngine(boolean b) {
+        registers = b;
+    }
+
+    /**
+     * Get the programs from a cache, used by all threads, instead of assembling them for each test.
+     */
+    public void setProgramCache(ProgramCache cache) {
+        programCache = cache;
+    }
+
+    public ProgramCache getProgramCache() {
+        return programCache;
+    }
+
+    public void add(Test t) {
+        tests.addElement(t);
+    }
+
+    /**
+     * Add the programs in a directory which have a file named [program].out next to them.
+     */
+    public void addDirectory(File dir) {
+        File files[] = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isFile() && (name.endsWith(".ssm") || name.endsWith(".ssmo"))) {
+                File expected = new File(Utils.withoutExtension(f) + ".out");
+                if (expected.exists()) {
+                    add(new Test(f, expected));
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the tests listed in a manifest, one per line as the program optionally followed by the expected output,
+     * which otherwise is [program].out, and the input, which otherwise is [expected output].in.
+     * Paths are relative to the manifest, lines starting with # are skipped.
+     */
+    public void addManifest(File manifest) throws IOException {
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        try (BufferedReader r = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String parts[] = line.split("\\s+");
+                File program = resolve(dir, parts[0]);
+                File expected = parts.length > 1 ? resolve(dir, parts[1]) : new File(Utils.withoutExtension(program) + ".out");
+                add(new Test(program, expected, parts.length > 2 ? resolve(dir, parts[2]) : null));
+            }
+        }
+    }
+
+    private static File resolve(File dir, String path) {
+        File f = new File(path);
+        return f.isAbsolute() ? f : new File(dir, path);
+    }
+
+    public Vector<Test> getTests() {
+        return tests;
+    }
+
+    /**
+     * Run all tests added.
+     * @return The results, in the order the tests were added
+     */
+    public Vector<Result> run() {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        Vector<Future<Result>> futures = new Vector<Future<Result>>();
+        for (final Test t : tests) {
+            futures.addElement(pool.submit(new Callable<Result>() {
+                public Result call() {
+                    return runTest(t);
+                }
+            }));
+        }
+        Vector<Result> results = new Vector<Result>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.addElement(futures.elementAt(i).get());
+                } catch (ExecutionException ex) {
+                    results.addElement(new Result(tests.elementAt(i), ERROR, String.valueOf(ex.getCause()), "", 0, 0));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Run a single test on a machine of its own.
+     */
+    public Result runTest(Test t) {
+        long start = System.currentTimeMillis();
+        Capture capture = new Capture();
+        MachineState state = new MachineState(5000, 2000, capture);
+        Machine machine = new Machine(state, capture);
+        machine.setUseRegisterEngine(registers);
+        try {
+            String expected = Utils.readFile(t.getExpectedOutput().toPath(), StandardCharsets.UTF_8);
+            File input = t.getInput();
+            if (input != null) {
+                machine.setInputSource(new ValuesInputSource(Files.readAllLines(input.toPath(), StandardCharsets.UTF_8)));
+            } else {
+                machine.setInputSource(new ValuesInputSource());
+            }
+            MemoryFiles files = new MemoryFiles();
+            File fixtures[] = t.sibling(".files").listFiles();
+            if (fixtures != null) {
+                for (File f : fixtures) {
+                    if (f.isFile()) {
+                        files.put(f.getName(), f.toPath());
+                    }
+                }
+            }
+            state.setFileSupply(files);
+
+            ProgramImage program = programCache == null ? ProgramImageFile.load(t.getProgram()) : programCache.get(t.getProgram());
+            if (program.hasMessages()) {
+                // a program which does not assemble is not run
+                StringBuilder messages = new StringBuilder();
+                for (Enumeration<String> e = program.getMessages(); e.hasMoreElements(); ) {
+                    messages.append(messages.length() > 0 ? "; " : "").append(e.nextElement());
+                }
+                return new Result(t, ERROR, messages.toString(), "", 0, System.currentTimeMillis() - start);
+            }
+            machine.load(program);
+
+            long deadline = timeout < 0 ? Long.MAX_VALUE : start + timeout;
+            int reason = Machine.STOP_STEPS;
+            while (!state.isHalted() && (maxSteps < 0 || machine.getNrSteps() < maxSteps)
+                    && System.currentTimeMillis() < deadline) {
+                long n = maxSteps < 0 ? SLICE : Math.min(SLICE, maxSteps - machine.getNrSteps());
+                if ((reason = machine.run(n)) != Machine.STOP_STEPS) {
+                    break;
+                }
+            }
+            state.closeFiles();
+            String output = capture.out.toString();
+            if (state.isHalted() && output.endsWith("machine halted\n")) {
+                output = output.substring(0, output.length() - "machine halted\n".length());
+            }
+            long millis = System.currentTimeMillis() - start;
+
+            String status = PASS;
+            String message = null;
+            if (!state.isHalted()) {
+                status = reason == Machine.STOP_STEPS ? TIMEOUT : ERROR;
+                message = reason == Machine.STOP_STEPS
+                        ? "not halted after " + machine.getNrSteps() + " steps and " + millis + " ms"
+                        : "stopped at " + Utils.asHex(machine.registers().getPC());
+            } else if ((message = difference(expected, output)) != null
+                    || (message = fileDifference(t.expectedFiles(), files)) != null) {
+                status = FAIL;
+            }
+            Result r = new Result(t, status, message, output, machine.getNrSteps(), millis);
+            r.files = files;
+            return r;
+        } catch (IOException ex) {
+            return new Result(t, ERROR, ex.toString(), capture.out.toString(), machine.getNrSteps(), System.currentTimeMillis() - start);
+        } catch (RuntimeException ex) {
+            return new Result(t, ERROR, ex.toString(), capture.out.toString(), machine.getNrSteps(), System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Compare the output with the expected output, where a missing or extra newline at the end is not a difference.
+     * @return The first difference, null if none
+     */
+    static String difference(String expected, String output) {
+        if (expected.endsWith("\n") != output.endsWith("\n")) {
+            if (expected.endsWith("\n")) {
+                expected = expected.substring(0, expected.length() - 1);
+            } else {
+                output = output.substring(0, output.length() - 1);
+            }
+        }
+        int n = Math.min(expected.length(), output.length());
+        int i = 0, line = 1;
+        for (; i < n && expected.charAt(i) == output.charAt(i); i++) {
+            if (expected.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        if (i == expected.length() && i == output.length()) {
+            return null;
+        }
+        return "line " + line + ": expected " + describe(expected, i) + " but got " + describe(output, i);
+    }
+
+    /**
+     * Compare the files expected with those in memory.
+     * @return The first file differing, null if none or if there are no files expected
+     */
+    static String fileDifference(File expectedDir, MemoryFiles files) throws IOException {
+        File expected[] = expectedDir.listFiles();
+        if (expected == null) {
+            return null;
+        }
+        Arrays.sort(expected);
+        for (File f : expected) {
+            if (!f.isFile()) {
+                continue;
+            }
+            byte written[] = files.get(f.getName());
+            if (written == null) {
+                return "file " + f.getName() + " not written";
+            }
+            if (!Arrays.equals(written, Files.readAllBytes(f.toPath()))) {
+                return "file " + f.getName() + " differs";
+            }
+        }
+        return null;
+    }
+
+    private static String describe(String s, int i) {
+        if (i >= s.length()) {
+            return "end of output";
+        }
+        return s.charAt(i) == '\n' ? "end of line" : "'" + s.charAt(i) + "'";
+    }
+
+    public static int count(Vector<Result> results, String status) {
+        int n = 0;
+        for (Result r : results) {
+            if (r.getStatus().equals(status)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static String jsonString(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder b = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                b.append("\\\"");
+                break;
+            case '\\':
+                b.append("\\\\");
+                break;
+            case '\n':
+                b.append("\\n");
+                break;
+            case '\r':
+                b.append("\\r");
+                break;
+            case '\t':
+                b.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    b.append(String.format("\\u%04x", (int) c));
+                } else {
+                    b.append(c);
+                }
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    private static String xmlString(String s) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '<':
+                b.append("&lt;");
+                break;
+            case '>':
+                b.append("&gt;");
+                break;
+            case '&':
+                b.append("&amp;");
+                break;
+            case '"':
+                b.append("&quot;");
+                break;
+            default:
+                // characters not allowed in XML are left out
+                if (c >= 0x20 || c == '\n' || c == '\r' || c == '\t') {
+                    b.append(c);
+                }
+            }
+        }
+        return b.toString();
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%d.%03d", millis / 1000, millis % 1000);
+    }
+
+    public static void writeJson(Vector<Result> results, File f) throws IOException {
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(f.toPath(), StandardCharsets.UTF_8))) {
+            w.println("{");
+            w.println("  \"tests\": " + results.size() + ",");
+            w.println("  \"passed\": " + count(results, PASS) + ",");
+            w.println("  \"failed\": " + count(results, FAIL) + ",");
+            w.println("  \"timedOut\": " + count(results, TIMEOUT) + ",");
+            w.println("  \"errors\": " + count(results, ERROR) + ",");
+            w.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.elementAt(i);
+                w.println("    { \"name\": " + jsonString(r.getTest().getName())
+                        + ", \"program\": " + jsonString(r.getTest().getProgram().getPath())
+                        + ", \"status\": " + jsonString(r.getStatus())
+                        + ", \"steps\": " + r.getNrSteps()
+                        + ", \"millis\": " + r.getMillis()
+                        + ", \"message\": " + jsonString(r.getMessage())
+                        + " }" + (i < results.size() - 1 ? "," : ""));
+            }
+            w.println("  ]");
+            w.println("}");
+        }
+    }
+
+    public static void writeJUnit(Vector<Result> results, File f) throws IOException {
+        long millis = 0;
+        for (Result r : results) {
+            millis += r.getMillis();
+        }
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(f.toPath(), StandardCharsets.UTF_8))) {
+            w.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            w.println("<testsuite name=\"ssm\" tests=\"" + results.size()
+                    + "\" failures=\"" + (count(results, FAIL) + count(results, TIMEOUT))
+                    + "\" errors=\"" + count(results, ERROR)
+                    + "\" skipped=\"0\" time=\"" + seconds(millis) + "\">");
+            for (Result r : results) {
+                w.print("  <testcase classname=\"ssm\" name=\"" + xmlString(r.getTest().getName())
+                        + "\" time=\"" + seconds(r.getMillis()) + "\">");
+                if (!r.isPassed()) {
+                    String tag = r.getStatus().equals(ERROR) ? "error" : "failure";
+                    w.println();
+                    w.println("    <" + tag + " type=\"" + r.getStatus() + "\" message=\"" + xmlString(r.getMessage()) + "\"/>");
+                    w.println("    <system-out>" + xmlString(r.getOutput()) + "</system-out>");
+                    w.print("  ");
+                }
+                w.println("</testcase>");
+            }
+            w.println("</testsuite>");
+        }
+    }
+}
@@ -1,135 +1,387 @@
 package nl.uu.cs.ssmui;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Reader;
+import java.text.ParseException;
+import java.util.Enumeration;
 import java.util.Vector;
 
+import nl.uu.cs.ssm.Assembler;
+import nl.uu.cs.ssm.Expression;
+import nl.uu.cs.ssm.DiskFiles;
+import nl.uu.cs.ssm.InputFile;
 import nl.uu.cs.ssm.Machine;
+import nl.uu.cs.ssm.InputSource;
 import nl.uu.cs.ssm.MachineState;
+import nl.uu.cs.ssm.MemoryFiles;
 import nl.uu.cs.ssm.Messenger;
+import nl.uu.cs.ssm.Optimizer;
+import nl.uu.cs.ssm.OutputSink;
+import nl.uu.cs.ssm.ProgramCache;
+import nl.uu.cs.ssm.ProgramImage;
+import nl.uu.cs.ssm.ProgramImageFile;
+import nl.uu.cs.ssm.RecordingInputSource;
+import nl.uu.cs.ssm.StreamingLoader;
+import nl.uu.cs.ssm.Utils;
+import nl.uu.cs.ssm.ValuesInputSource;
+import nl.uu.cs.ssm.Verifier;
+import nl.uu.cs.ssm.Watchpoints;
 
 public class CliRunner implements Messenger {
     private static final long STEPS_INFINITE = -1;
 
+    /**
+     * Where the stack starts when streaming, unless set otherwise.
+     */
+    public static final int STREAM_STACK_BOTTOM = 1000;
+
     private long steps;
     private MachineState machineState = new MachineState(5000, 2000, this);
     protected Machine machine = new Machine(machineState, this);
-    private StepManager stepManager = new StepManager(machine, false);
-    private CodeTableModel codeTableModel= new CodeTableModel(null, machineState);
+    private ProgramImage program;
+    private ProgramCache programCache;
+    private StreamingLoader loader;
+    private int stackBottom = -1;
+    private boolean showSteps;
+    private InputSource inputSource;
+    private ProgramImage unoptimized;
+    private Vector<String> inputRead;
+    private OutputSink out = new OutputSink(System.out);
 
     public CliRunner(long steps) {
         this.steps = steps;
+        machine.setOutputSink(out);
     }
 
     public void run() {
-           long count = 0;
-           while (count != steps) {
-               if(doAStepForward()) {
-                   return;
-               }
+        int reason = machine.breakpointHitAtPC() ? Machine.STOP_BREAKPOINT : machine.run(steps);
+        if (reason == Machine.STOP_BREAKPOINT) {
+            int pc = machine.registers().getPC();
+            println("stopped at breakpoint " + Utils.asHex(pc) + " (hit "
+                    + machineState.getBreakpoints().getHitCount(pc) + "), " + machine.registers());
+        } else if (reason == Machine.STOP_WATCHPOINT) {
+            println("stopped at " + machine.watchpointHitMessage() + ", " + machine.registers());
+        } else if (reason == Machine.STOP_WATCH_EXPR) {
+            println("stopped at " + machine.watchExpressionMessage() + ", " + machine.registers());
+        } else if (reason == Machine.STOP_NO_CODE) {
+            println("stopped at " + Utils.asHex(machine.registers().getPC()) + ", "
+                    + loader.getUnavailableReason() + ", " + machine.registers());
+        }
+        if (loader != null && loader.getImage() != null) {
+            program = loader.getImage();
+            for (Enumeration<String> e = program.getMessages(); e.hasMoreElements(); ) {
+                println(e.nextElement());
+            }
+        }
+        out.flush();
+        if (showSteps) {
+            System.err.println(machine.getNrSteps() + " steps executed");
+            if (unoptimized != null && reason == Machine.STOP_HALTED) {
+                long original = stepsUnoptimized();
+                System.err.println(original < 0 ? "unoptimized code did not halt"
+                        : original + " steps executed without optimizing, " + (original - machine.getNrSteps()) + " saved");
+            }
+        }
+        if (programCache != null) {
+            System.err.println(programCache);
+        }
+    }
 
-               if(count != STEPS_INFINITE) {
-                   count ++;
-               }
-           }
+    /**
+     * Run by translating the code into register instructions instead of interpreting the stack instructions one by one.
+     */
+    public void setUseRegisterEngine(boolean b) {
+        machine.setUseRegisterEngine(b);
     }
 
     /**
-     * @return True if we are halted
+     * Read the input of the program from a source instead of asking for it on the console.
      */
-    protected boolean doAStepForward()
-    {
-        stepManager.beginForwardStep() ;
-        machine.executeOne() ;
-        if ( machineState.isHalted() )
-            return true;
+    public void setInputSource(InputSource source) {
+        inputSource = source;
+        machine.setInputSource(source);
+    }
+
+    /**
+     * Run the code as it was before optimizing, with the input read by the optimized run, to count the steps saved.
+     * Nothing is printed, and files written are kept in memory.
+     * @return The number of steps, -1 if it did not halt
+     */
+    private long stepsUnoptimized() {
+        Messenger silent = new Messenger() {
+            public void print(String s) {
+            }
+
+            public void println(String s) {
+            }
+
+            public int promptInt() {
+                return 0;
+            }
+
+            public int promptChar() {
+                return -1;
+            }
+
+            public int[] promptCharArray() {
+                return new int[0];
+            }
+        };
+        MachineState state = new MachineState(5000, 2000, silent);
+        if (stackBottom >= 0) {
+            state.setStackBottom(stackBottom);
+        }
+        final MemoryFiles written = new MemoryFiles();
+        state.setFileSupply(new DiskFiles() {
+            public InputFile openForReading(String name) throws IOException {
+                return written.get(name) != null ? written.openForReading(name) : super.openForReading(name);
+            }
 
-        stepManager.endForwardStep() ;
-        return false;
+            public OutputSink openForWriting(String name) {
+                return written.openForWriting(name);
+            }
+        });
+        Machine m = new Machine(state, silent);
+        m.setInputSource(new ValuesInputSource(inputRead));
+        m.load(unoptimized);
+        int reason = m.run(steps);
+        state.closeFiles();
+        return reason == Machine.STOP_HALTED ? m.getNrSteps() : -1;
     }
 
-    private void reset()
-    {
-        codeTableModel.beforeReset() ;
+    /**
+     * Print the number of steps executed when the run stops, on standard error so the output of the program is not affected.
+     */
+    public void setShowSteps(boolean b) {
+        showSteps = b;
+    }
 
-        machine.reset() ;
-        machineState = machine.getMachineState() ;
+    private int locationOf(String spec) {
+        return Utils.isNumberRepr(spec, false) ? Utils.fromHex(spec, false) : (program == null ? -1 : program.getSymbolAddress(spec));
+    }
 
-        codeTableModel.reset() ;
+    private Expression parseExpression(String s) {
+        try {
+            return Expression.parse(s, machineState);
+        } catch (ParseException ex) {
+            println(ex.getMessage());
+            return null;
+        }
     }
 
-    private void resetToInitialState()
-    {
-        machineState.resetToInitialState() ;
+    /**
+     * Set a breakpoint given as address or label, optionally followed by :n to stop at the n'th hit only,
+     * and by 'if <expression>' to only stop when the expression is true.
+     * @return False if the location or condition is not understood
+     */
+    public boolean addBreakpoint(String spec) {
+        Expression condition = null;
+        int c = spec.indexOf(" if ");
+        if (c > 0) {
+            if ((condition = parseExpression(spec.substring(c + 4))) == null) {
+                return false;
+            }
+            spec = spec.substring(0, c).trim();
+        }
+        int stopAtHit = 1;
+        int i = spec.lastIndexOf(':');
+        if (i > 0 && Utils.isNumberRepr(spec.substring(i + 1), false)) {
+            stopAtHit = Utils.fromHex(spec.substring(i + 1), false);
+            spec = spec.substring(0, i);
+        }
+        int addr = locationOf(spec);
+        if (addr < 0) {
+            println("unknown breakpoint location " + spec);
+            return false;
+        }
+        machineState.getBreakpoints().set(addr, stopAtHit, false, condition);
+        return true;
+    }
+
+    /**
+     * Add an expression which stops execution when its value changes.
+     * @return False if the expression is not understood
+     */
+    public boolean addWatchExpression(String s) {
+        Expression e = parseExpression(s);
+        if (e == null) {
+            return false;
+        }
+        machineState.getWatchExpressions().add(e);
+        return true;
+    }
+
+    /**
+     * Set a watchpoint given as address or range lo..hi, optionally followed by :r, :w or :rw for the access watched (default :w).
+     * @return False if the range is not understood
+     */
+    public boolean addWatchpoint(String spec) {
+        int kind = Watchpoints.WRITE;
+        int i = spec.lastIndexOf(':');
+        if (i > 0) {
+            String k = spec.substring(i + 1);
+            kind = (k.indexOf('r') >= 0 ? Watchpoints.READ : 0) | (k.indexOf('w') >= 0 ? Watchpoints.WRITE : 0);
+            spec = spec.substring(0, i);
+        }
+        int j = spec.indexOf("..");
+        int lo = locationOf(j > 0 ? spec.substring(0, j) : spec);
+        int hi = j > 0 ? locationOf(spec.substring(j + 2)) : lo;
+        if (kind == 0 || lo < 0 || hi < 0) {
+            println("cannot watch " + spec);
+            return false;
+        }
+        machineState.getMemory().getWatchpoints().set(lo, hi, kind);
+        return true;
     }
 
     public void load( Reader r )
     {
-        String msg ;
-        try
-        {
-            Vector<String> leftOverLabels ;
-            AssemblyParseResult apr ;
-            AssemblyParser ap = new AssemblyParser( r ) ;
-            reset() ;
-            codeTableModel.parseInitialize() ;
-            for ( apr = null ; ! ap.isAtEOF() ; )
-            {
-                apr = ap.parse1Line( apr ) ;
-                if ( apr.message != null )
-                    println( "Line " + apr.lineNr + ": " + apr.message ) ;
-                else if ( apr.instrNArgs.size() > 0 )
-                {
-                    leftOverLabels = new Vector<String>() ;
-                    msg = codeTableModel.enterParsedLine( apr.definedLabels, apr.instrNArgs, leftOverLabels ) ;
-                    if ( msg != null )
-                        println( "Line " + apr.lineNr + ": " + msg ) ;
-                    if ( leftOverLabels.size() == 0 )
-                        apr = null ;
-                    else
-                        apr.addLabels( leftOverLabels ) ;
-                }
-            }
-        }
-        catch ( Exception ex )
+        load( new Assembler().assemble( r ) ) ;
+    }
+
+    /**
+     * Replace the program loaded by an optimized version, reporting on standard error what was saved.
+     * @param fold Also fold constants and remove unreachable code
+     */
+    public void optimize( boolean fold )
+    {
+        Optimizer o = new Optimizer( program ) ;
+        o.setFolding( fold ) ;
+        ProgramImage optimized = o.optimize() ;
+        if ( o.getNotDoneReason() != null )
+            System.err.println( "not optimized, " + o.getNotDoneReason() ) ;
+        else
+            System.err.println( "optimized: " + o.getNrRemoved() + " instructions removed, " + o.getNrRewritten() + " changed, "
+                                + o.getNrCellsSaved() + " code cells saved"
+                                + ( fold ? ", " + o.getNrFolded() + " constants folded, " + o.getNrUnreachable() + " unreachable instructions" : "" ) ) ;
+        if ( optimized != program )
         {
-            ex.printStackTrace() ;
+            // the input is kept to run the unoptimized code again
+            unoptimized = program ;
+            inputRead = new Vector<String>() ;
+            if ( inputSource != null )
+                machine.setInputSource( new RecordingInputSource( inputSource, inputRead ) ) ;
+            program = optimized ;
+            machine.load( program ) ;
         }
-        finally
+    }
+
+    /**
+     * Check the stack use of the program loaded, printing the problems found.
+     * The memory accesses found to stay within bounds are not checked anymore when running.
+     * @return False if there are problems
+     */
+    public boolean verify()
+    {
+        Verifier v = new Verifier( program, machineState ) ;
+        boolean ok = v.verify() ;
+        for ( Enumeration<String> e = v.getMessages() ; e.hasMoreElements() ; )
+            println( e.nextElement() ) ;
+        if ( ok )
+            machine.setInBounds( v.getInBounds() ) ;
+        return ok ;
+    }
+
+    /**
+     * Run a program while it still is being read, instead of loading it first.
+     * Messages about the program are printed when it has stopped, if all of it has been read by then.
+     * Breakpoints can only be given as address, as labels are not known in advance.
+     */
+    public void stream( Reader r )
+    {
+        machineState.setStackBottom( stackBottom >= 0 ? stackBottom : STREAM_STACK_BOTTOM ) ;
+        loader = new StreamingLoader( r, machineState ) ;
+        machine.reset() ;
+        machine.setCodeSupply( loader ) ;
+        Thread t = new Thread( loader, "ssm loader" ) ;
+        t.setDaemon( true ) ;
+        t.start() ;
+    }
+
+    /**
+     * Start the stack at a fixed address instead of just after the code, for the programs loaded next.
+     * @return False if the address is not below the heap
+     */
+    public boolean setStackBottom( int addr )
+    {
+        if ( addr >= machineState.getStartAddressOfHeap() )
         {
-            msg = codeTableModel.parseFinalize() ;
-            if ( msg != null )
-                println( msg ) ;
+            println( "stack bottom must be below the heap at " + Utils.asHex( machineState.getStartAddressOfHeap() ) ) ;
+            return false ;
         }
-        resetToInitialState() ;
+        stackBottom = addr ;
+        machineState.setStackBottom( addr ) ;
+        return true ;
+    }
+
+    /**
+     * Use a cache for the programs loaded from file.
+     */
+    public void setProgramCache( ProgramCache cache )
+    {
+        programCache = cache ;
+    }
+
+    /**
+     * Load an assembly source, or an object file with extension .ssmo.
+     */
+    public void load( File f ) throws IOException
+    {
+        load( programCache == null ? ProgramImageFile.load( f ) : programCache.get( f ) ) ;
     }
 
+    public void load( ProgramImage image )
+    {
+        program = image ;
+        for ( Enumeration<String> e = program.getMessages() ; e.hasMoreElements() ; )
+            println( e.nextElement() ) ;
+        machine.load( program ) ;
+    }
+
+    /**
+     * Messages are written right away, the output of the program only when needed, see OutputSink.
+     */
     @Override
     public void println(String s) {
-        System.out.println(s);
+        out.println(s);
+        out.flush();
     }
 
     @Override
     public void print(String s) {
-        System.out.print(s);
+        out.print(s);
+        out.flush();
+    }
+
+    /**
+     * Read a line from the console, kept when optimized to run the unoptimized code again.
+     */
+    private String readLine() {
+        String line = System.console().readLine();
+        if (inputRead != null && line != null) {
+            inputRead.add(line);
+        }
+        return line;
     }
 
     @Override
     public int promptInt() {
-        System.out.print("Please enter an integer: ");
-        return Integer.parseInt(System.console().readLine());
+        print("Please enter an integer: ");
+        return Integer.parseInt(readLine());
     }
 
     @Override
     public int promptChar() {
-        System.out.print("Please enter a character: ");
-        String line = System.console().readLine();
+        print("Please enter a character: ");
+        String line = readLine();
         return line.charAt(0);
     }
 
     @Override
     public int[] promptCharArray() {
-        System.out.print("Please enter a string: ");
-        String s = System.console().readLine();
+        print("Please enter a string: ");
+        String s = readLine();
         int[] result = new int[s.length()];
         for(int i = 0; i < s.length(); i++)
         {
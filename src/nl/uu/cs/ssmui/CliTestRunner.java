@@ -11,6 +11,8 @@ public class CliTestRunner extends CliRunner {
 
     public CliTestRunner(File expectedOutput, long steps) {
         super(steps);
+        // all output passes print and println to be compared
+        machine.setOutputSink(null);
 
         try {
             this.expectedOutput = Utils.readFile(expectedOutput.toPath(), StandardCharsets.UTF_8);
@@ -1,5 +1,8 @@
 package nl.uu.cs.ssmui;
 
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import javax.swing.BoundedRangeModel;
@@ -15,11 +18,12 @@ import nl.uu.cs.ssm.Memory;
 import nl.uu.cs.ssm.MemoryCellEvent;
 import nl.uu.cs.ssm.MemoryCellListener;
 import nl.uu.cs.ssm.MetaInstruction;
+import nl.uu.cs.ssm.ProgramImage;
 import nl.uu.cs.ssm.Registers;
 import nl.uu.cs.ssm.Utils;
 
 public class CodeTableModel extends AbstractTableModel 
-	implements MemoryCellListener, CodeRowSupplier
+	implements MemoryCellListener
 {
 	private static final long serialVersionUID = 1L ;
 
@@ -38,29 +42,44 @@ public class CodeTableModel extends AbstractTableModel
     private MachineState		machineState ;
     private Memory 				memory ;
     private Registers 			registers ;
-    private Labels   			labels ;
+    private Hashtable<String,Row> labelRows ;
+    private Hashtable<String,Vector<Row>> labelUsers ;   // label -> rows using it, in address order
     
     private int                 lastPCRow ;
     
+    private int[]               rowOfLoc ;          // memory location -> row, only valid below indexedUpTo
+    private int                 indexedUpTo ;
+    
     private BoundedRangeModel 	verticalScrollBarModel ;
 	
 	private class Row
     {
         int         memLoc ;
         Instruction cachedInstr ;
-        boolean     hasBreakPoint = false ;
         String      labelName ;
         String		usedLabelName ;
+        int         labelOpnd ;         // the inline operand holding the label value if in labelUsers, else -1
         Vector<MetaInstruction>      metaInstructions ;
         
         Row( Instruction i, int loc, String l )
         {
-            cachedInstr = i ;
-            memLoc = loc ;
+            this( i, loc ) ;
             memory.reserveAt( loc, cachedInstr.getNrMemCells() ) ;
+            machineState.getBreakpoints().shiftAt( loc, cachedInstr.getNrMemCells() ) ;
             memory.setAt( loc, cachedInstr.getCode() ) ;
             labelName = l ;
+        }
+        
+        /**
+         * A row for an instruction already in memory.
+         */
+        Row( Instruction i, int loc )
+        {
+            cachedInstr = i ;
+            memLoc = loc ;
+            labelName = null ;
             usedLabelName = null ;
+            labelOpnd = -1 ;
             metaInstructions = null ;
         }
         
@@ -78,13 +97,26 @@ public class CodeTableModel extends AbstractTableModel
 	            return cachedInstr.getRepr( usedLabelName ) ;
         }
         
+        /**
+         * Replace the instruction, shifting the code after it when the size differs.
+         * The operands using labels which moved relative to their use are patched.
+         */
         boolean replaceInstr( int row, Instruction instr )
         {
         	int shiftUp = instr.getNrMemCells() - getNrMemCells() ;
         	memory.shiftAt( memLoc, shiftUp ) ;
+        	machineState.getBreakpoints().shiftAt( memLoc+1, shiftUp ) ;
         	shiftMemLocations( row+1, shiftUp ) ;
-        	memory.setAt( memLoc, instr.getCode() ) ;
         	cachedInstr = instr ;
+        	if ( shiftUp != 0 )
+        		indexRows( row ) ;
+        	memory.setAt( memLoc, instr.getCode() ) ;
+        	if ( usedLabelName != null && labelOpnd >= getNrInlineOpnds() )
+        		forgetLabelUse( this ) ;
+        	if ( shiftUp != 0 )
+        		patchLabelUses( memLoc ) ;
+        	if ( labelOpnd >= 0 )
+        		patchLabelUse( this, labelRows.get( usedLabelName ) ) ;
         	return shiftUp != 0 ;
         }
         
@@ -98,19 +130,6 @@ public class CodeTableModel extends AbstractTableModel
             return cachedInstr.getNrInlineOpnds() ;
         }
         
-        void addMetaInstruction( MetaInstruction mi )
-        {
-            if ( metaInstructions == null )
-                metaInstructions = new Vector<MetaInstruction>() ;
-            if ( mi != null )
-                metaInstructions.addElement( mi ) ;
-        }
-        
-        void setUsedLabel( String l )
-        {
-        	usedLabelName = l ;
-        }
-        
     }
     
     private Vector<Row> rows ;
@@ -138,28 +157,136 @@ public class CodeTableModel extends AbstractTableModel
 
     private int rowOfMemLoc( int loc )
     {
-        int row ;
-        int max = getRowCount() ;
-    	for ( row = 0 ; row < max ; row++ )
-    	{
-    		Row r = getRowAt( row ) ;
-    		if ( ( loc >= r.memLoc ) && ( loc < ( r.memLoc + r.getNrMemCells() ) ) )
-    			return row ;
-    	}
-        return -1 ;
+        return ( loc >= 0 && loc < indexedUpTo ) ? rowOfLoc[ loc ] : -1 ;
     }
     
-    protected boolean hasBreakpointAtPC()
+    /**
+     * Bring the memory location to row index up to date for all rows starting at fromRow,
+     * the rows before are not affected by a change at fromRow.
+     */
+    private void indexRows( int fromRow )
     {
-        boolean res = false ;
-        int memLoc = registers.getReg( Registers.PC ) ;
-        int row = rowOfMemLoc( memLoc ) ;
-        if ( isValidRow( row ) )
+        int max = getRowCount() ;
+        int end = memLocOfRow( max-1, false ) ;
+        if ( rowOfLoc == null || end > rowOfLoc.length )
+        {
+            int newRowOfLoc[] = new int[ Math.max( end, memory.getCapacity() ) ] ;
+            if ( rowOfLoc != null )
+                System.arraycopy( rowOfLoc, 0, newRowOfLoc, 0, indexedUpTo ) ;
+            rowOfLoc = newRowOfLoc ;
+        }
+        for ( int row = fromRow ; row < max ; row++ )
         {
             Row r = getRowAt( row ) ;
-            res = r.hasBreakPoint ;
+            for ( int loc = r.memLoc ; loc < r.memLoc + r.getNrMemCells() ; loc++ )
+                rowOfLoc[ loc ] = row ;
+        }
+        if ( indexedUpTo > end )
+            Arrays.fill( rowOfLoc, end, indexedUpTo, -1 ) ;
+        indexedUpTo = end ;
+    }
+    
+    /**
+     * The first of the users in address order which is after loc.
+     */
+    private static int firstUserAfter( Vector<Row> users, int loc )
+    {
+        int lo = 0, hi = users.size() ;
+        while ( lo < hi )
+        {
+            int mid = ( lo + hi ) >>> 1 ;
+            if ( users.elementAt( mid ).memLoc > loc )
+                hi = mid ;
+            else
+                lo = mid + 1 ;
+        }
+        return lo ;
+    }
+
+    /**
+     * Patch the operand of a row using a label to the current address of the label.
+     */
+    private void patchLabelUse( Row u, Row def )
+    {
+        int v = def.memLoc ;
+        if ( u.cachedInstr.isRelativeOpnd( u.labelOpnd ) )
+            v -= u.memLoc + u.getNrMemCells() ;
+        int at = u.memLoc + 1 + u.labelOpnd ;
+        if ( memory.peekAt( at ) != v )
+        {
+            memory.copyAt( at, new int[] { v } ) ;
+            int row = rowOfMemLoc( u.memLoc ) ;
+            fireTableRowsUpdated( row, row ) ;
+        }
+    }
+
+    /**
+     * After the code after loc has been shifted, patch the operands using labels for which the distance changed:
+     * all uses of labels after loc, and the relative uses after loc of labels up to loc.
+     * Only the uses found through the labelUsers index are visited.
+     */
+    private void patchLabelUses( int loc )
+    {
+        for ( Enumeration<String> e = labelUsers.keys() ; e.hasMoreElements() ; )
+        {
+            String nm = e.nextElement() ;
+            Row def = labelRows.get( nm ) ;
+            Vector<Row> users = labelUsers.get( nm ) ;
+            boolean defMoved = def.memLoc > loc ;
+            for ( int i = defMoved ? 0 : firstUserAfter( users, loc ) ; i < users.size() ; i++ )
+            {
+                Row u = users.elementAt( i ) ;
+                if ( defMoved || u.cachedInstr.isRelativeOpnd( u.labelOpnd ) )
+                    patchLabelUse( u, def ) ;
+            }
         }
-        return res ;
+    }
+
+    /**
+     * The row no longer uses its label, e.g. because its operand has been overwritten.
+     */
+    private void forgetLabelUse( Row u )
+    {
+        Vector<Row> users = labelUsers.get( u.usedLabelName ) ;
+        if ( users != null )
+        {
+            users.removeElement( u ) ;
+            if ( users.isEmpty() )
+                labelUsers.remove( u.usedLabelName ) ;
+        }
+        u.usedLabelName = null ;
+        u.labelOpnd = -1 ;
+    }
+
+    /**
+     * Add a row to the users of its label, found at load by the operand holding the value of the label.
+     */
+    private void addLabelUse( Row u )
+    {
+        Row def = labelRows.get( u.usedLabelName ) ;
+        if ( def == null )
+            return ;
+        for ( int opnd = u.getNrInlineOpnds() - 1 ; opnd >= 0 ; opnd-- )
+        {
+            int v = def.memLoc ;
+            if ( u.cachedInstr.isRelativeOpnd( opnd ) )
+                v -= u.memLoc + u.getNrMemCells() ;
+            if ( memory.peekAt( u.memLoc + 1 + opnd ) == v )
+            {
+                u.labelOpnd = opnd ;
+                Vector<Row> users = labelUsers.get( u.usedLabelName ) ;
+                if ( users == null )
+                    labelUsers.put( u.usedLabelName, users = new Vector<Row>() ) ;
+                users.addElement( u ) ;
+                return ;
+            }
+        }
+    }
+
+    protected int memLocOfLabel( String nm )
+    {
+        Row r = labelRows.get( nm ) ;
+        return r == null ? -1 : r.memLoc ;
     }
 
 	private void shiftMemLocations( int row, int shift )
@@ -181,6 +308,8 @@ public class CodeTableModel extends AbstractTableModel
         int insertRow = row + (doBefore ? 0 : 1) ;
         shiftMemLocations( insertRow, r.getNrMemCells() ) ;
         rows.insertElementAt( r, insertRow ) ;
+        indexRows( insertRow ) ;
+        patchLabelUses( r.memLoc ) ;
         fireTableRowsInserted( insertRow, insertRow ) ;
         //fireTableChanged( new TableModelEvent( this, insertRow, insertRow, TableModelEvent.ALL_COLUMNS, TableModelEvent.INSERT) ) ;
         fireTableRowsUpdated( insertRow+1, getRowCount()-1 ) ;
@@ -197,13 +326,16 @@ public class CodeTableModel extends AbstractTableModel
     
     public void reset()
     {
-        labels.reset( Registers.getRegNAliasNames() ) ;
+        labelRows = new Hashtable<String,Row>() ;
+        labelUsers = new Hashtable<String,Vector<Row>>() ;
         rows = new Vector<Row>() ;
         memory = machineState.getMemory() ;
         registers = machineState.getRegisters() ;
         memory.addMemoryCellListener( this ) ;
         registers.addMemoryCellListener( this ) ;
         rows.addElement( new Row( "halt", 0, null ) ) ;
+        indexedUpTo = 0 ;
+        indexRows( 0 ) ;
         lastPCRow = 0 ;
         fireTableChanged( new TableModelEvent( this ) ) ;
         //fireTableStructureChanged() ;
@@ -213,7 +345,6 @@ public class CodeTableModel extends AbstractTableModel
     {
     	ssmRunner = sr ;
     	machineState = mst ;
-    	labels = new Labels( this ) ;
         reset() ;
     }
     
@@ -272,7 +403,7 @@ public class CodeTableModel extends AbstractTableModel
     	}
     	else if ( column == C_BP )
     	{
-    		res = r.hasBreakPoint ? Images.check : Images.white ;
+    		res = machineState.getBreakpoints().isSetAt( r.memLoc ) ? Images.check : Images.white ;
     	}
     	else
     	{
@@ -337,13 +468,12 @@ public class CodeTableModel extends AbstractTableModel
 	    		onlyThisRowChanged = ! r.replaceInstr( row, instr ) ;
 	    	}
 	    }
-	    else if ( column == C_ARG1 )
+	    else if ( column == C_ARG1 || column == C_ARG2 )
 	    {
-	    	memory.setAt( r.memLoc + 1, strValue ) ;
-	    }
-	    else if ( column == C_ARG2 )
-	    {
-	    	memory.setAt( r.memLoc + 2, strValue ) ;
+	    	int opnd = column - C_ARG1 ;
+	    	if ( r.usedLabelName != null && r.labelOpnd == opnd )
+	    		forgetLabelUse( r ) ;
+	    	memory.setAt( r.memLoc + 1 + opnd, strValue ) ;
 	    }
 
 	    if ( ! onlyThisRowChanged )
@@ -351,12 +481,6 @@ public class CodeTableModel extends AbstractTableModel
 
     }
     
-    public void setInstrArgAt( int row, int argOffset, int val )
-    {
-        Row r = rows.elementAt( row ) ;
-        memory.setAt( r.memLoc + argOffset, val ) ;
-    }
-
     public String getColumnName( int column )
     {
         return columnNames[ column ] ;
@@ -391,8 +515,11 @@ public class CodeTableModel extends AbstractTableModel
     		{
             	int row = rowOfMemLoc( registers.getReg( Registers.PC ) ) ;
             	if ( isValidRow( lastPCRow ) )
+            	{
         			//fireTableChanged( new TableModelEvent( this, lastPCRow, lastPCRow, C_PC ) ) ;
         			fireTableCellUpdated( lastPCRow, C_PC ) ;
+        			fireTableCellUpdated( lastPCRow, C_BP ) ;
+            	}
     			lastPCRow = row ;
             	if ( isValidRow( row ) )
             	{
@@ -425,85 +552,41 @@ public class CodeTableModel extends AbstractTableModel
 	    if ( column == C_BP )
 	    {
     	    Row r = getRowAt( row ) ;
-    	    r.hasBreakPoint = ! r.hasBreakPoint ;
+    	    machineState.getBreakpoints().toggle( r.memLoc ) ;
             //fireTableChanged( new TableModelEvent( this, row, row, column ) ) ;
             fireTableCellUpdated( row, column ) ;
         }
 	}
 	    
-    protected void parseInitialize()
-    {
-    }
-    
-    protected String parseFinalize()
-    {
-        Vector<Labels.UnresolvedLabelUsage> v = labels.resolveUnresolved() ;
-        return v.size() == 0 ? null : ("unresolved labels " + v) ;
-    }
-    
-    protected String enterParsedLine( Vector<String> definedLabels, Vector<String> instrNArgs, Vector<String> leftOverLabels )
+    /**
+     * Show a program which has just been loaded into the machine.
+     */
+    protected void load( ProgramImage image )
     {
-        Instruction instr = null ;
-        
-        instr = Instruction.findByRepr( instrNArgs.elementAt(0).toLowerCase() ) ;
-        
-        if ( instr == null )
+        int n = image.getNrInstrs() ;
+        rows = new Vector<Row>( n ) ;
+        for ( int i = 0 ; i < n ; i++ )
         {
-            return "unknown instruction: " + instrNArgs ;
+            Row r = new Row( image.getInstruction( i ), image.getInstrLoc( i ) ) ;
+            r.labelName = image.getLabelName( i ) ;
+            r.usedLabelName = image.getUsedLabel( i ) ;
+            r.metaInstructions = image.getMetaInstructions( i ) ;
+            rows.addElement( r ) ;
         }
-        else
+        indexRows( 0 ) ;
+        for ( Enumeration<String> e = image.getSymbols() ; e.hasMoreElements() ; )
         {
-            if ( (instrNArgs.size() - 1) < instr.getNrInlineOpnds() )
-                return "not enough arguments for " + instr.getRepr() ;
-            
-            int insertionPos = getRowCount() - 1 ; // assuming halt at end
-            if ( instr.isMeta() )
-            {
-                if ( insertionPos <= 0 )
-                    return "cannot add meta at start of code (currently)" ;
-                Row r = getRowAt( insertionPos-1 ) ;
-                Utils.addAllTo( leftOverLabels, definedLabels.elements() ) ;
-                instrNArgs.removeElementAt( 0 ) ;
-                MetaInstruction m = instr.instantiateMeta( instrNArgs ) ;
-                //System.out.println( "added meta " + m ) ;
-                r.addMetaInstruction( m ) ;
-            }
-            else
-            {
-                insertNewInstrAt( insertionPos, true ) ;
-                Row r = getRowAt( insertionPos ) ;
-                for ( int i = 0 ; i < definedLabels.size() ; i++ )
-    	        {
-    	        	r.labelName = definedLabels.elementAt(i) ;
-    	            labels.defineLabel( r.labelName, insertionPos ) ;
-    	        }
-                
-                //System.out.println( "code table parse instr " + instr + " vec=" + toks ) ;
-				setValueAt( instr.getRepr(), insertionPos, C_INSTR ) ;
-                //int args[] = new int[ instr.getNrInlineOpnds() ] ;
-                for ( int arg = 0 ; arg < instr.getNrInlineOpnds() ; arg++ )
-                {
-                    String s = instrNArgs.elementAt( arg + 1 ) ;
-                    int val ;
-                    if ( Utils.isNumberRepr( s, false ) )
-                    {
-                        val = Utils.fromHex( s, false ) ;
-                    }
-                    else
-                    {
-                        val = labels.useLabel( s, insertionPos, arg+1, instr.getNrMemCells(), instr.isRelativeOpnd(arg) ) ;
-                        r.setUsedLabel( s ) ;
-                    }
-                    memory.setAt( r.memLoc + arg + 1, val ) ;
-                    //args[ arg ] = val ;
-                }
-				//setValueAt( instr.getRepr( args ), insertionPos, C_INSTR ) ;
-           }
+            String nm = e.nextElement() ;
+            labelRows.put( nm, getRowAt( rowOfMemLoc( image.getSymbolAddress( nm ) ) ) ) ;
         }
-        
-        //System.out.println( "added row=" + insertionPos + " loc=" + r.memLoc + " instr" + instr ) ;
-        
-        return null ;
+        for ( int i = 0 ; i < n ; i++ )
+        {
+            Row r = getRowAt( i ) ;
+            if ( r.usedLabelName != null )
+                addLabelUse( r ) ;
+        }
+        lastPCRow = 0 ;
+        fireTableChanged( new TableModelEvent( this ) ) ;
     }
 
 }
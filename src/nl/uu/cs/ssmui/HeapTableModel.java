@@ -57,7 +57,7 @@ public class HeapTableModel extends AbstractTableModel implements MemoryCellList
         return column == C_VALUE ;
     }
 	
-	private int rowToMemLoc(int row) {
+	protected int rowToMemLoc(int row) {
         
 		return row + machineState.getStartAddressOfHeap();
     }
@@ -69,11 +69,11 @@ public class HeapTableModel extends AbstractTableModel implements MemoryCellList
         switch(column) {
         
             case C_ADDRESS :
-                res = Utils.asHex(memLoc);
+                res = Utils.asHex(memLoc) + (memory.getWatchpoints().getKindAt(memLoc) != 0 ? " W" : "");
                 break;
                 
             case C_VALUE :
-                res = Utils.asHex(memory.getAt(memLoc)) ;
+                res = Utils.asHex(memory.peekAt(memLoc)) ;
                 break;
             case C_ANNOTE :
             	MemoryAnnotation ann = memory.getAnnotationAt(memLoc);
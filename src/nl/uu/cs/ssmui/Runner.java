@@ -10,15 +10,26 @@ package nl.uu.cs.ssmui;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.Vector;
 
 import javax.swing.UIManager;
 
+import nl.uu.cs.ssm.Assembler;
 import nl.uu.cs.ssm.Config;
+import nl.uu.cs.ssm.Linker;
+import nl.uu.cs.ssm.ObjectModule;
+import nl.uu.cs.ssm.ProgramCache;
+import nl.uu.cs.ssm.ProgramImage;
+import nl.uu.cs.ssm.ProgramImageFile;
+import nl.uu.cs.ssm.ReaderInputSource;
 import nl.uu.cs.ssm.Utils;
+import nl.uu.cs.ssm.ValuesInputSource;
 
 public class Runner extends Thread
 {
@@ -56,25 +67,47 @@ public class Runner extends Thread
    public static void usage() {
 	   System.out.println("Simple Stack Machine Interpreter");
 	   System.out.println("Version " + Config.version() + ", " + Config.versionDate());
-	   System.out.println("usage: [--clisteps <steps>] [--cli] [--file <path> OR --stdin]");
+	   System.out.println("usage: [--clisteps <steps>] [--cli] [--break <location>] [--watch <range>] [--watchexpr <expr>] [--compile <path> [--relocatable]] [--link <path>] [--cache <dir>] [--stackbottom <address>] [--optimize [--fold]] [--verify] [--steps] [--registers] [--input <path>] [--file <path> OR --stdin [--stream] OR --batch <path> [--threads <n>] [--timeout <ms>] [--json <path>] [--junit <path>]]");
 	   System.out.println("  --help             : Print this help");
 	   System.out.println("  --version          : Print version");
 	   System.out.println("  --clisteps <steps> : The amount of steps to run. -1 for infinite(default). Only in cli mode");
 	   System.out.println("  --stdin            : Read code from stdin");
-	   System.out.println("  --file <path>      : Read code from path");
+	   System.out.println("  --file <path>      : Read code from path, assembly or precompiled when ending in .ssmo");
 	   System.out.println("  --cli              : No GUI, runs code and exits on halt");
 	   System.out.println("  --testmode         : Use file named [inputfile].out to compare the output result of the program to");
 	   System.out.println("  --guidelay         : Amount of time to sleep in milliseconds between steps in the GUI. Default: 50");
+	   System.out.println("  --break <location> : Stop at the address or label, <location>:<n> stops at the n'th hit,");
+	   System.out.println("                       '<location> if <expr>' only when <expr> holds, e.g. 'loop if mem[MP-2] == 0'. Only in cli mode");
+	   System.out.println("  --watch <range>    : Stop when memory in <address> or <lo>..<hi> is written, add :r to watch reads, :rw for both. Only in cli mode");
+	   System.out.println("  --watchexpr <expr> : Stop when the value of <expr> changes, e.g. 'SP > 1800'. Only in cli mode");
+	   System.out.println("  --compile <path>   : Write the assembled code to <path>, to be run later as .ssmo file, instead of running it");
+	   System.out.println("  --relocatable      : With --compile, write a module to be linked with others, see 'export' and 'import'");
+	   System.out.println("  --link <path>      : Link the module in <path> after the code read, which then also is a module");
+	   System.out.println("  --cache <dir>      : Keep assembled code in <dir>, so an unchanged file is not assembled again, and print how the cache was used. Only in cli mode");
+	   System.out.println("  --stream           : With --stdin, start running while the code still is being read, waiting for code not read yet. Only in cli mode");
+	   System.out.println("  --optimize         : Remove wasteful instruction sequences from the code before running. Only in cli mode");
+	   System.out.println("  --fold             : With --optimize, also compute constant expressions and remove code which cannot be reached");
+	   System.out.println("  --verify           : Check the stack use of the code before running, and do not run it when broken. Only in cli mode");
+	   System.out.println("  --steps            : Print the number of steps executed when stopping, to compare runs, with --optimize also the steps saved. Only in cli mode");
+	   System.out.println("  --registers        : Execute the code translated into register instructions, which is faster, but does not annotate memory. Only in cli mode");
+	   System.out.println("  --input <path>     : Read the input of the program from <path> instead of asking for it. Standard input is used when not a console. Only in cli mode");
+	   System.out.println("  --batch <path>     : Run the programs in directory <path> having an .out file, or those listed in file <path>, and compare their output. Only in cli mode");
+	   System.out.println("                       --clisteps limits the steps of each program, default infinite");
+	   System.out.println("  --threads <n>      : With --batch, run <n> programs at the same time, default the number of processors");
+	   System.out.println("  --timeout <ms>     : With --batch, stop a program after <ms> milliseconds, default infinite");
+	   System.out.println("  --json <path>      : With --batch, write the results as JSON to <path>");
+	   System.out.println("  --junit <path>     : With --batch, write the results as JUnit XML to <path>");
+	   System.out.println("  --stackbottom <address> : Start the stack at <address> instead of after the code, default " + CliRunner.STREAM_STACK_BOTTOM + " with --stream. Only in cli mode");
 	   System.exit(1);
    }
 
 	public void run()
 	{
-		while( true )
+		try
 		{
-			int steppingState = ssmRunner.steppingState() ;
-			if ( steppingState != SSMRunner.STEP_BY_STEP )
+			while( true )
 			{
+				int steppingState = ssmRunner.awaitContinuousStep() ;
 				if ( ssmRunner.hasBreakpointAtPC() )
 					ssmRunner.stopContinuouslyDoingSteps() ;
 				else if ( steppingState == SSMRunner.STEP_CONT_FORWARD )
@@ -82,8 +115,100 @@ public class Runner extends Thread
 				else if ( steppingState == SSMRunner.STEP_CONT_BACKWARD )
 					ssmRunner.doAStepBack() ;
 			}
-			try { sleep( delay ) ; } catch ( InterruptedException e ) {}
 		}
+		catch ( InterruptedException e )
+		{
+		}
+	}
+
+	/**
+	 * Read a module from a file, or from stdin when null.
+	 */
+	private static ObjectModule readModule(File in) throws IOException {
+		if(in != null) {
+			return ProgramImageFile.loadModule(in);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		ObjectModule m = new Assembler().assembleModule(reader);
+		reader.close();
+		return m;
+	}
+
+	/**
+	 * Link the module read from a file, or from stdin when null, with the modules in other files.
+	 */
+	private static ProgramImage link(File in, Vector<File> modules) throws IOException {
+		Linker linker = new Linker();
+		linker.add(in == null ? "stdin" : in.getName(), readModule(in));
+		for (File m : modules) {
+			linker.add(m.getName(), ProgramImageFile.loadModule(m));
+		}
+		return linker.link();
+	}
+
+	/**
+	 * Assemble a file, or stdin when null, into an object file, linked with the given modules,
+	 * or as relocatable module itself.
+	 * @return False if there were errors, in which case nothing is written
+	 */
+	private static boolean compile(File in, File out, boolean relocatable, Vector<File> modules) throws IOException {
+		ProgramImage image;
+		if(relocatable) {
+			image = readModule(in);
+		} else if(!modules.isEmpty()) {
+			image = link(in, modules);
+		} else if(in == null) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+			image = new Assembler().assemble(reader);
+			reader.close();
+		} else {
+			image = ProgramImageFile.load(in);
+		}
+		for (Enumeration<String> e = image.getMessages(); e.hasMoreElements(); ) {
+			System.out.println(e.nextElement());
+		}
+		if (image.hasMessages()) {
+			return false;
+		}
+		ProgramImageFile.write(image, out);
+		return true;
+	}
+
+	/**
+	 * Run the tests in a directory or manifest, printing the result of each and writing the reports asked for.
+	 * @return False if not all tests passed
+	 */
+	private static boolean runBatch(File batch, int threads, long steps, long timeout, boolean registers,
+			File cacheDir, File jsonReport, File junitReport) throws IOException {
+		BatchTestRunner runner = new BatchTestRunner(threads);
+		runner.setMaxSteps(steps);
+		runner.setTimeout(timeout);
+		runner.setUseRegisterEngine(registers);
+		if(batch.isDirectory()) {
+			runner.addDirectory(batch);
+		} else {
+			runner.addManifest(batch);
+		}
+		// a program used by several tests is assembled once
+		runner.setProgramCache(new ProgramCache(Math.max(1, runner.getTests().size()), cacheDir));
+		Vector<BatchTestRunner.Result> results = runner.run();
+		for (BatchTestRunner.Result r : results) {
+			System.out.println(r.getStatus().toUpperCase() + ": " + r.getTest().getName() + ", " + r.getNrSteps() + " steps"
+					+ (r.isPassed() ? "" : ", " + r.getMessage()));
+		}
+		int passed = BatchTestRunner.count(results, BatchTestRunner.PASS);
+		System.out.println(passed + " of " + results.size() + " passed, "
+				+ BatchTestRunner.count(results, BatchTestRunner.FAIL) + " failed, "
+				+ BatchTestRunner.count(results, BatchTestRunner.TIMEOUT) + " timed out, "
+				+ BatchTestRunner.count(results, BatchTestRunner.ERROR) + " errors");
+		System.out.println(runner.getProgramCache());
+		if(jsonReport != null) {
+			BatchTestRunner.writeJson(results, jsonReport);
+		}
+		if(junitReport != null) {
+			BatchTestRunner.writeJUnit(results, junitReport);
+		}
+		return passed == results.size();
 	}
 
 	// Main entry point
@@ -95,6 +220,26 @@ public class Runner extends Thread
 		boolean testMode = false;
 		File expectedOutput = null;
 		int guiDelay =50;
+		Vector<String> breakpoints = new Vector<String>();
+		Vector<String> watchpoints = new Vector<String>();
+		Vector<String> watchExpressions = new Vector<String>();
+		File compileTo = null;
+		File cacheDir = null;
+		boolean relocatable = false;
+		Vector<File> modules = new Vector<File>();
+		boolean stream = false;
+		boolean verify = false;
+		boolean optimize = false;
+		boolean fold = false;
+		boolean showSteps = false;
+		boolean registers = false;
+		File input = null;
+		int stackBottom = -1;
+		File batch = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long timeout = -1;
+		File jsonReport = null;
+		File junitReport = null;
 		for (int i = 0; i< args.length; i++) {
 			String key = args[i];
 			switch(key) {
@@ -135,6 +280,79 @@ public class Runner extends Thread
             case "--testmode":
                 testMode = true;
                 break;
+			case "--break":
+				i++;
+				breakpoints.addElement(args[i]);
+				break;
+			case "--watch":
+				i++;
+				watchpoints.addElement(args[i]);
+				break;
+			case "--watchexpr":
+				i++;
+				watchExpressions.addElement(args[i]);
+				break;
+			case "--compile":
+				i++;
+				compileTo = new File(args[i]);
+				break;
+			case "--relocatable":
+				relocatable = true;
+				break;
+			case "--link":
+				i++;
+				modules.addElement(new File(args[i]));
+				break;
+			case "--cache":
+				i++;
+				cacheDir = new File(args[i]);
+				break;
+			case "--stream":
+				stream = true;
+				break;
+			case "--verify":
+				verify = true;
+				break;
+			case "--optimize":
+				optimize = true;
+				break;
+			case "--fold":
+				fold = true;
+				break;
+			case "--steps":
+				showSteps = true;
+				break;
+			case "--registers":
+				registers = true;
+				break;
+			case "--input":
+				i++;
+				input = new File(args[i]);
+				break;
+			case "--batch":
+				i++;
+				batch = new File(args[i]);
+				break;
+			case "--threads":
+				i++;
+				threads = Integer.parseInt(args[i]);
+				break;
+			case "--timeout":
+				i++;
+				timeout = Long.parseLong(args[i]);
+				break;
+			case "--json":
+				i++;
+				jsonReport = new File(args[i]);
+				break;
+			case "--junit":
+				i++;
+				junitReport = new File(args[i]);
+				break;
+			case "--stackbottom":
+				i++;
+				stackBottom = Utils.fromHex(args[i], false);
+				break;
 			default:
 				usage();
 			}
@@ -145,6 +363,75 @@ public class Runner extends Thread
             usage();
         }
 
+		if(!modules.isEmpty() && !stdin && initialFile == null) {
+			System.out.println("Need some input to link with");
+			usage();
+		}
+		for (File m : modules) {
+			if(!m.exists()) {
+				System.out.println("Module " + m + " does not exist");
+				usage();
+			}
+		}
+
+		if(relocatable && (compileTo == null || !modules.isEmpty())) {
+			System.out.println("--relocatable can only be used with --compile and without --link");
+			usage();
+		}
+
+		if(stream && (!cli || !stdin || !modules.isEmpty() || compileTo != null)) {
+			System.out.println("--stream can only be used with --cli and --stdin, without --link or --compile");
+			usage();
+		}
+
+		if(verify && (!cli || stream)) {
+			System.out.println("--verify can only be used with --cli, without --stream");
+			usage();
+		}
+
+		if((optimize || showSteps || registers || input != null) && !cli) {
+			System.out.println("--optimize, --steps, --registers and --input can only be used with --cli");
+			usage();
+		}
+
+		if(input != null && !input.exists()) {
+			System.out.println("Input " + input + " does not exist");
+			usage();
+		}
+
+		if(fold && !optimize) {
+			System.out.println("--fold can only be used with --optimize");
+			usage();
+		}
+
+		if(optimize && stream) {
+			System.out.println("--optimize cannot be used with --stream");
+			usage();
+		}
+
+		if(batch != null) {
+			if(!cli || stdin || initialFile != null || compileTo != null || testMode) {
+				System.out.println("--batch can only be used with --cli, without --file, --stdin, --compile or --testmode");
+				usage();
+			}
+			if(!batch.exists()) {
+				System.out.println("Batch " + batch + " does not exist");
+				usage();
+			}
+			System.exit(runBatch(batch, threads, steps, timeout, registers, cacheDir, jsonReport, junitReport) ? 0 : 1);
+		} else if(jsonReport != null || junitReport != null) {
+			System.out.println("--json and --junit can only be used with --batch");
+			usage();
+		}
+
+		if(compileTo != null) {
+			if(!stdin && initialFile == null) {
+				System.out.println("Need some input to compile");
+				usage();
+			}
+			System.exit(compile(stdin ? null : initialFile, compileTo, relocatable, modules) ? 0 : 1);
+		}
+
 		if(testMode) {
             if (!cli) {
                 System.out.println("Can only set test mode in cli mode.");
@@ -165,7 +452,27 @@ public class Runner extends Thread
 
 		if(cli) {
 			CliRunner cliRunner = testMode ? new CliTestRunner(expectedOutput, steps) : new CliRunner( steps);
-			if(stdin) {
+			if(cacheDir != null) {
+				cliRunner.setProgramCache(new ProgramCache(1, cacheDir));
+			}
+			if(stackBottom >= 0 && !cliRunner.setStackBottom(stackBottom)) {
+				System.exit(1);
+			}
+			cliRunner.setShowSteps(showSteps);
+			cliRunner.setUseRegisterEngine(registers);
+			if(input != null) {
+				cliRunner.setInputSource(new ReaderInputSource(Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)));
+			} else if(!stdin && System.console() == null) {
+				cliRunner.setInputSource(new ReaderInputSource(new InputStreamReader(System.in)));
+			} else if(System.console() == null) {
+				// standard input holds the code, and there is no console to ask for input
+				cliRunner.setInputSource(new ValuesInputSource());
+			}
+			if(stream) {
+				cliRunner.stream(new BufferedReader(new InputStreamReader(System.in)));
+			} else if(!modules.isEmpty()) {
+				cliRunner.load(link(stdin ? null : initialFile, modules));
+			} else if(stdin) {
 		        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 		        cliRunner.load(reader);
 		        reader.close();
@@ -173,14 +480,35 @@ public class Runner extends Thread
 				if(!stdin && initialFile == null) {
 					System.out.println("Need some input in CLI mode");
 				}
-		        FileReader fr = new FileReader( initialFile ) ;
-		        cliRunner.load(fr);
-		        fr.close();
+		        cliRunner.load(initialFile);
+			}
+			if(optimize) {
+				cliRunner.optimize(fold);
+			}
+			if(verify && !cliRunner.verify()) {
+				System.exit(1);
+			}
+			for (String bp : breakpoints) {
+				if (!cliRunner.addBreakpoint(bp)) {
+					System.exit(1);
+				}
+			}
+			for (String wp : watchpoints) {
+				if (!cliRunner.addWatchpoint(wp)) {
+					System.exit(1);
+				}
+			}
+			for (String we : watchExpressions) {
+				if (!cliRunner.addWatchExpression(we)) {
+					System.exit(1);
+				}
 			}
 			cliRunner.run();
 		} else {
 			Runner r = new Runner(guiDelay);
-			if(stdin) {
+			if(!modules.isEmpty()) {
+				r.ssmRunner.load(link(stdin ? null : initialFile, modules));
+			} else if(stdin) {
 		        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 		        r.loadReader(reader);
 		        reader.close();
@@ -11,8 +11,8 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
-import java.io.FileReader;
 import java.io.Reader;
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Vector;
@@ -24,6 +24,7 @@ import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPopupMenu;
 import javax.swing.JScrollBar;
 import javax.swing.JTable;
 import javax.swing.KeyStroke;
@@ -35,16 +36,23 @@ import javax.swing.event.TableModelListener;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableColumn;
 
+import nl.uu.cs.ssm.Assembler;
+import nl.uu.cs.ssm.Breakpoints;
 import nl.uu.cs.ssm.ColoredText;
 import nl.uu.cs.ssm.Config;
+import nl.uu.cs.ssm.Expression;
 import nl.uu.cs.ssm.HelpSupplier;
 import nl.uu.cs.ssm.Instruction;
 import nl.uu.cs.ssm.Machine;
 import nl.uu.cs.ssm.MachineState;
 import nl.uu.cs.ssm.Messenger;
 import nl.uu.cs.ssm.MetaInstruction;
+import nl.uu.cs.ssm.ProgramImage;
+import nl.uu.cs.ssm.ProgramImageFile;
 import nl.uu.cs.ssm.Registers;
 import nl.uu.cs.ssm.Utils;
+import nl.uu.cs.ssm.WatchExpressions;
+import nl.uu.cs.ssm.Watchpoints;
 
 public class SSMRunner extends JFrame
     implements Messenger, FocusListener, TableModelListener
@@ -83,7 +91,7 @@ public class SSMRunner extends JFrame
     private StatusTableModel    statusTableModel        ;
     private HeapTableModel      heapTableModel          ;
     
-    private int             	steppingState        	;
+    private StepController     	stepController        	;
 
     private Runner              runner                  ;
     private StepManager			stepManager				;
@@ -138,6 +146,9 @@ public class SSMRunner extends JFrame
 	javax.swing.JTextArea outputTextArea = new javax.swing.JTextArea();
 
 	private JMenuItem jMenuRunnerOneStepBack = new JMenuItem();
+	private JMenuItem jMenuRunnerRunToCursor = new JMenuItem();
+	private JMenuItem jMenuRunnerConditionalBreakpoint = new JMenuItem();
+	private JMenuItem jMenuRunnerWatchExpression = new JMenuItem();
 
 	private JMenu jMenuLookAndFeel = new JMenu() ;
 	private JMenu jMenuPrefs = new JMenu() ;
@@ -154,6 +165,7 @@ public class SSMRunner extends JFrame
 	    statusTableModel = new StatusTableModel( machineState ) ;
 	    heapTableModel = new HeapTableModel(machineState);
 	    
+	    stepController = new StepController( runner.delay ) ;
 	    stopContinuouslyDoingSteps() ;
 	    this.runner = runner ;
 	    
@@ -478,6 +490,19 @@ public class SSMRunner extends JFrame
 		setupMenuItem( jMenuRunnerReset, ma, Config.keysFullBackward[0] ) ;
 		setupMenuItem( jMenuRunnerStart, ma, Config.keysFullForward[0] ) ;
 		setupMenuItem( jMenuRunnerPause, ma, Config.keysPause[0] ) ;
+		
+		jMenuRunnerRunToCursor.setToolTipText( "Run until the selected instruction" ) ;
+		jMenuRunnerRunToCursor.setText( "Run to Cursor" ) ;
+		jMenuRunnerRunToCursor.addMouseListener( ma ) ;
+		jMenuRunner.insert( jMenuRunnerRunToCursor, 1 ) ;
+		jMenuRunnerConditionalBreakpoint.setToolTipText( "Set a breakpoint with a condition on the selected instruction" ) ;
+		jMenuRunnerConditionalBreakpoint.setText( "Conditional Breakpoint..." ) ;
+		jMenuRunnerConditionalBreakpoint.addMouseListener( ma ) ;
+		jMenuRunner.add( jMenuRunnerConditionalBreakpoint ) ;
+		jMenuRunnerWatchExpression.setToolTipText( "Stop when the value of an expression changes" ) ;
+		jMenuRunnerWatchExpression.setText( "Watch Expression..." ) ;
+		jMenuRunnerWatchExpression.addMouseListener( ma ) ;
+		jMenuRunner.add( jMenuRunnerWatchExpression ) ;
 
         codeTable.setModel( codeTableModel ) ;
         stackTable.setModel( stackTableModel ) ;
@@ -518,6 +543,10 @@ public class SSMRunner extends JFrame
 	    } ;
         annoteHeapColumn.setCellRenderer( annoteHeapColumnRenderer ) ;
         
+        // watchpoints on stack and heap
+        addWatchpointMenu( stackTable ) ;
+        addWatchpointMenu( heapTable ) ;
+        
         JScrollBar codeScrollPaneScrollBar = codeScrollPane.getVerticalScrollBar() ;
         BoundedRangeModel codeScrollPaneScrollBarModel = codeScrollPaneScrollBar.getModel() ;
         codeTableModel.setScrollBarModel( codeScrollPaneScrollBarModel ) ;
@@ -606,12 +635,17 @@ public class SSMRunner extends JFrame
 	
 	protected int steppingState()
 	{
-		return steppingState ;
+		return stepController.getSteppingState() ;
+	}
+	
+	protected int awaitContinuousStep() throws InterruptedException
+	{
+		return stepController.awaitStep() ;
 	}
 	
 	protected boolean hasBreakpointAtPC()
 	{
-		return codeTableModel.hasBreakpointAtPC() ;
+		return machine.breakpointHitAtPC() ;
 	}
 	
 	protected boolean isSettingUp()
@@ -621,7 +655,7 @@ public class SSMRunner extends JFrame
 	
 	protected void stopContinuouslyDoingSteps()
 	{
-		steppingState = STEP_BY_STEP ;
+		stepController.setSteppingState( STEP_BY_STEP ) ;
 	}
 	
 	protected void doAStepBack()
@@ -639,6 +673,16 @@ public class SSMRunner extends JFrame
         machine.executeOne() ;
         if ( machineState.isHalted() )
             stopContinuouslyDoingSteps() ;
+        if ( machine.watchpointHit() )
+        {
+            stopContinuouslyDoingSteps() ;
+            println( machine.watchpointHitMessage() ) ;
+        }
+        if ( machine.watchExpressionChanged() )
+        {
+            stopContinuouslyDoingSteps() ;
+            println( machine.watchExpressionMessage() ) ;
+        }
         if ( metaInstructions != null )
         {
             for ( Enumeration<MetaInstruction> e = metaInstructions.elements() ; e.hasMoreElements() ; )
@@ -732,6 +776,7 @@ public class SSMRunner extends JFrame
 			{
 				//System.out.println( "Key=" + e ) ;
 				int kc = e.getKeyCode() ;
+				int steppingState = steppingState() ;
 				if	( Utils.contains( Config.keysPause, kc )
 					&&	(  (steppingState == STEP_CONT_FORWARD) 
 						|| (steppingState == STEP_CONT_BACKWARD)
@@ -767,13 +812,15 @@ public class SSMRunner extends JFrame
 	public void tbStartForwardButtonActionPerformed(java.awt.event.ActionEvent e)
 	{
 	    doAStepForward() ;
-	    steppingState = STEP_CONT_FORWARD ;
+	    if ( ! machineState.isHalted() )
+	        stepController.setSteppingState( STEP_CONT_FORWARD ) ;
 	}
 	
 	public void tbStartBackButtonActionPerformed(java.awt.event.ActionEvent e)
 	{
 	    doAStepBack() ;
-	    steppingState = STEP_CONT_BACKWARD ;
+	    if ( stepManager.canDoBackStep() )
+	        stepController.setSteppingState( STEP_CONT_BACKWARD ) ;
 	}
 	
 	public void tbNewInstrButtonActionPerformed(java.awt.event.ActionEvent e)
@@ -810,45 +857,18 @@ public class SSMRunner extends JFrame
 	}
 	
 	protected void load (Reader r) {
-		setupState = SETUP_BUSY ;
+		load( new Assembler().assemble( r ) ) ;
+	}
 
-		String msg ;
+	protected void load( ProgramImage image )
+	{
+		setupState = SETUP_BUSY ;
 
-	    try
-	    {
-	    	Vector<String> leftOverLabels ;
-	    	AssemblyParseResult apr ;
-	        AssemblyParser ap = new AssemblyParser( r ) ;
-			reset() ;
-			codeTableModel.parseInitialize() ;
-	        for ( apr = null ; ! ap.isAtEOF() ; )
-	        {
-	            apr = ap.parse1Line( apr ) ;
-	            if ( apr.message != null )
-	                println( "Line " + apr.lineNr + ": " + apr.message ) ;
-	            else if ( apr.instrNArgs.size() > 0 )
-	            {
-	                leftOverLabels = new Vector<String>() ;
-	                msg = codeTableModel.enterParsedLine( apr.definedLabels, apr.instrNArgs, leftOverLabels ) ;
-    			    if ( msg != null )
-        			    println( "Line " + apr.lineNr + ": " + msg ) ;
-	                if ( leftOverLabels.size() == 0 )
-	                    apr = null ;
-	                else
-	                    apr.addLabels( leftOverLabels ) ;
-	            }
-	        }
-		}
-		catch ( Exception ex )
-		{
-		    ex.printStackTrace() ;
-		}
-		finally
-		{
-		    msg = codeTableModel.parseFinalize() ;
-		    if ( msg != null )
-		        println( msg ) ;
-		}
+		reset() ;
+		for ( Enumeration<String> e = image.getMessages() ; e.hasMoreElements() ; )
+			println( e.nextElement() ) ;
+		machine.load( image ) ;
+		codeTableModel.load( image ) ;
 		resetToInitialState() ;
 
 		setupState = SETUP_READY ;
@@ -859,9 +879,7 @@ public class SSMRunner extends JFrame
 		recentLoadedFile = f ;
 	    try
 	    {
-	        FileReader fr = new FileReader( f ) ;
-	        load(fr);
-			fr.close() ;
+	        load( ProgramImageFile.load( f ) ) ;
 			setTitle(title + " - " + f.getName());
 		}
 		catch ( Exception ex )
@@ -895,7 +913,7 @@ public class SSMRunner extends JFrame
 		if (recentLoadedFile == null) {
 			chooser.setCurrentDirectory(new File ("."));
 		}
-		Utils.ExtensionFileFilter ff = new Utils.ExtensionFileFilter( "ssm" ) ;
+		Utils.ExtensionFileFilter ff = new Utils.ExtensionFileFilter( Config.extensionSSM + " " + Config.extensionSSMO ) ;
 		chooser.setFileFilter( ff ) ;
 		if( chooser.showOpenDialog( this ) == JFileChooser.APPROVE_OPTION )
 		    loadFile( chooser.getSelectedFile() ) ;
@@ -930,6 +948,18 @@ public class SSMRunner extends JFrame
 	    {
 	        tbStartForwardButtonActionPerformed( null ) ;
 	    }
+	    else if ( src == jMenuRunnerRunToCursor )
+	    {
+	        runToCursor() ;
+	    }
+	    else if ( src == jMenuRunnerConditionalBreakpoint )
+	    {
+	        setConditionalBreakpoint() ;
+	    }
+	    else if ( src == jMenuRunnerWatchExpression )
+	    {
+	        addWatchExpression() ;
+	    }
 	    else if ( src == jMenuRunnerReset )
 	    {
 	        tbResetButtonActionPerformed( null ) ;
@@ -948,6 +978,130 @@ public class SSMRunner extends JFrame
 	    }
 	}
 	
+	public void runToCursor()
+	{
+		int row = codeTable.getSelectedRow() ;
+		if ( row >= 0 )
+		{
+			machineState.getBreakpoints().setTemporary( codeTableModel.memLocOfRow( row ) ) ;
+			codeTableModel.fireTableRowsUpdated( row, row ) ;
+			tbStartForwardButtonActionPerformed( null ) ;
+		}
+	}
+	
+	/**
+	 * The answer to askExpression when nothing is entered.
+	 */
+	private static final Expression NO_EXPRESSION = new Expression()
+		{
+			public int eval()
+			{
+				return 1 ;
+			}
+		} ;
+	
+	/**
+	 * @return The expression entered, NO_EXPRESSION if empty, null when cancelled
+	 */
+	private Expression askExpression( String question, String title, String initial )
+	{
+		while ( true )
+		{
+			String s = (String)JOptionPane.showInputDialog( this, question, title, JOptionPane.QUESTION_MESSAGE, null, null, initial ) ;
+			if ( s == null )
+				return null ;
+			if ( s.trim().length() == 0 )
+				return NO_EXPRESSION ;
+			try
+			{
+				return Expression.parse( s, machineState ) ;
+			}
+			catch ( ParseException ex )
+			{
+				JOptionPane.showMessageDialog( this, ex.getMessage(), title, JOptionPane.ERROR_MESSAGE ) ;
+				initial = s ;
+			}
+		}
+	}
+	
+	public void setConditionalBreakpoint()
+	{
+		int row = codeTable.getSelectedRow() ;
+		if ( row < 0 )
+			return ;
+		int memLoc = codeTableModel.memLocOfRow( row ) ;
+		Breakpoints breakpoints = machineState.getBreakpoints() ;
+		Expression old = breakpoints.getCondition( memLoc ) ;
+		Expression cond = askExpression
+			( "Stop at " + Utils.asHex( memLoc ) + " when (e.g. SP > 1800, mem[MP-2] == 0), empty for always:"
+			, "Conditional Breakpoint", old == null ? "" : old.toString()
+			) ;
+		if ( cond == null )
+			return ;
+		breakpoints.set( memLoc, 1, false, cond == NO_EXPRESSION ? null : cond ) ;
+		codeTableModel.fireTableRowsUpdated( row, row ) ;
+	}
+	
+	public void addWatchExpression()
+	{
+		WatchExpressions watchExpressions = machineState.getWatchExpressions() ;
+		StringBuffer current = new StringBuffer() ;
+		for ( int i = 0 ; i < watchExpressions.getNrExpressions() ; i++ )
+			current.append( "\n  " + watchExpressions.getExpression( i ) ) ;
+		Expression e = askExpression
+			( "Stop when the value changes of (e.g. HP - 2000 > 500):" + ( current.length() > 0 ? "\nCurrently watched, empty to remove all:" + current : "" )
+			, "Watch Expression", ""
+			) ;
+		if ( e == NO_EXPRESSION )
+			watchExpressions.clearAll() ;
+		else if ( e != null )
+			watchExpressions.add( e ) ;
+	}
+	
+	private void addWatchpointMenu( final JTable table )
+	{
+		table.addMouseListener( new MouseAdapter() {
+			public void mousePressed( MouseEvent e )
+			{
+				showWatchpointMenu( table, e ) ;
+			}
+			public void mouseReleased( MouseEvent e )
+			{
+				showWatchpointMenu( table, e ) ;
+			}
+		} ) ;
+	}
+	
+	private void showWatchpointMenu( final JTable table, MouseEvent e )
+	{
+		int row = table.rowAtPoint( e.getPoint() ) ;
+		if ( ! e.isPopupTrigger() || row < 0 )
+			return ;
+		final int memLoc = table == stackTable ? stackTableModel.rowToMemLoc( row ) : heapTableModel.rowToMemLoc( row ) ;
+		final Watchpoints watchpoints = machineState.getMemory().getWatchpoints() ;
+		JPopupMenu menu = new JPopupMenu( "Watch " + Utils.asHex( memLoc ) ) ;
+		String[] items = { "Watch Writes", "Watch Reads", "Remove Watch" } ;
+		final int[] kinds = { Watchpoints.WRITE, Watchpoints.READ, 0 } ;
+		for ( int i = 0 ; i < items.length ; i++ )
+		{
+			final int kind = kinds[ i ] ;
+			JMenuItem it = new JMenuItem( items[ i ] ) ;
+			it.setEnabled( kind != 0 || watchpoints.getKindAt( memLoc ) != 0 ) ;
+			it.addActionListener( new java.awt.event.ActionListener() {
+				public void actionPerformed( java.awt.event.ActionEvent ae )
+				{
+					if ( kind == 0 )
+						watchpoints.clear( memLoc ) ;
+					else
+						watchpoints.set( memLoc, memLoc, kind ) ;
+					table.repaint() ;
+				}
+			} ) ;
+			menu.add( it ) ;
+		}
+		menu.show( table, e.getX(), e.getY() ) ;
+	}
+	
 	public void tbPauseButtonActionPerformed(java.awt.event.ActionEvent e)
 	{
 	    stopContinuouslyDoingSteps() ;
@@ -69,7 +69,7 @@ public class StackTableModel extends AbstractTableModel
         return maxAccessedSP - startAddressOfStack;
     }
 
-    private int rowToMemLoc( int row )
+    protected int rowToMemLoc( int row )
     {
         return row + (startAddressOfStack + 1) ;
     }
@@ -96,14 +96,14 @@ public class StackTableModel extends AbstractTableModel
         switch( column )
         {
             case C_ADDRESS :
-                res = Utils.asHex( memLoc ) ;
+                res = Utils.asHex( memLoc ) + ( memory.getWatchpoints().getKindAt( memLoc ) != 0 ? " W" : "" ) ;
                 break ;
                 
             case C_VALUE :
-                res = Utils.asHex( memory.getAt( memLoc ) ) ;
+                res = Utils.asHex( memory.peekAt( memLoc ) ) ;
                 break ;
             case C_VALUE_DEC:
-                res = String.valueOf(memory.getAt(memLoc));
+                res = String.valueOf(memory.peekAt(memLoc));
                 break;
             case C_REGPTRS :
                 {
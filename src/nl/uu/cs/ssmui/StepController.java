@@ -0,0 +1,72 @@
+/**
+ * Simple Stack Machine
+ *
+ * Written by Atze Dijkstra, atze@cs.uu.nl,
+ * Copyright Utrecht University.
+ *
+ */
+
+package nl.uu.cs.ssmui ;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out continuous steps to the Runner thread.
+ * While stepping by hand the Runner blocks on this monitor and uses no CPU,
+ * a change of stepping state wakes it up immediately.
+ * Continuous steps are paced on a fixed schedule of delay ms, so the time spent
+ * in a step does not add to the delay.
+ */
+class StepController
+{
+	private int		steppingState	= SSMRunner.STEP_BY_STEP ;
+	private long	delayNanos		;
+	private long	nextStepAt		;
+
+	protected StepController( int delay )
+	{
+		delayNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0, delay ) ) ;
+	}
+
+	protected synchronized int getSteppingState()
+	{
+		return steppingState ;
+	}
+
+	protected synchronized void setSteppingState( int s )
+	{
+		if ( steppingState == SSMRunner.STEP_BY_STEP && s != SSMRunner.STEP_BY_STEP )
+			nextStepAt = System.nanoTime() + delayNanos ;
+		steppingState = s ;
+		notifyAll() ;
+	}
+
+	/**
+	 * Block until the next continuous step is due.
+	 * @return the stepping state for that step, never STEP_BY_STEP
+	 */
+	protected synchronized int awaitStep() throws InterruptedException
+	{
+		while ( true )
+		{
+			if ( steppingState == SSMRunner.STEP_BY_STEP )
+			{
+				wait() ;
+				continue ;
+			}
+			long now = System.nanoTime() ;
+			long remaining = nextStepAt - now ;
+			if ( remaining > 0 )
+			{
+				TimeUnit.NANOSECONDS.timedWait( this, remaining ) ;
+				continue ;
+			}
+			// fixed rate, but do not try to catch up when we fell behind
+			nextStepAt += delayNanos ;
+			if ( nextStepAt - now < 0 )
+				nextStepAt = now + delayNanos ;
+			return steppingState ;
+		}
+	}
+
+}